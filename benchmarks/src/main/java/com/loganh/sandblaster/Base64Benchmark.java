@@ -0,0 +1,38 @@
+package com.loganh.sandblaster;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark {
+
+  @Param({"1024", "65536"})
+  public int length;
+
+  private byte[] data;
+  private String encoded;
+
+  @Setup
+  public void setUp() {
+    data = new byte[length];
+    new Random(length).nextBytes(data);
+    encoded = Base64.encode(data);
+  }
+
+  @Benchmark
+  public String encode() {
+    return Base64.encode(data);
+  }
+
+  @Benchmark
+  public byte[] decode() {
+    return Base64.decode(encoded);
+  }
+}
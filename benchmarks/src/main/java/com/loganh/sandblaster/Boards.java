@@ -0,0 +1,56 @@
+package com.loganh.sandblaster;
+
+// Boards for the benchmarks, all built on the test element table.
+abstract public class Boards {
+
+  static public final String EMPTY = "empty";
+  static public final String SAND = "sand";
+  static public final String MIXED = "mixed";
+
+  static public SandBox create(String fill, int size) {
+    if (fill.equals(EMPTY)) {
+      return empty(size);
+    } else if (fill.equals(SAND)) {
+      return sandPile(size);
+    } else if (fill.equals(MIXED)) {
+      return mixed(size);
+    }
+    throw new IllegalArgumentException("unknown fill: " + fill);
+  }
+
+  static public SandBox empty(int size) {
+    SandBox sandbox = new SandBox(size, size);
+    sandbox.elementTable = Utils.getTestElementTable();
+    return sandbox;
+  }
+
+  // A wedge of sand over the middle half of a walled floor.
+  static public SandBox sandPile(int size) {
+    SandBox sandbox = empty(size);
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element sand = sandbox.elementTable.resolve("Sand");
+    sandbox.line(wall, 0, 0, size - 1, 0);
+    for (int y = 1; y < size / 2; y++) {
+      sandbox.line(sand, size / 4 + y / 2, y, 3 * size / 4 - y / 2, y);
+    }
+    return sandbox;
+  }
+
+  // Water, fire and plants over a V of walls, as in SandActivityPerformanceTest.
+  static public SandBox mixed(int size) {
+    SandBox sandbox = empty(size);
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element fire = sandbox.elementTable.resolve("Fire");
+    Element plant = sandbox.elementTable.resolve("Plant");
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.line(wall, 0, size / 2, size / 2, 0);
+    sandbox.line(wall, size / 2, 0, size - 1, size / 2);
+    sandbox.addSource(plant, size / 2 - 5, 5);
+    sandbox.addSource(fire, size / 2 + 5, 4);
+    sandbox.addSource(water, size / 2, size - 1);
+    for (int i = 0; i < 4; i++) {
+      sandbox.line(water, i, 3 * size / 4 - i, size - i - 1, 3 * size / 4 - i);
+    }
+    return sandbox;
+  }
+}
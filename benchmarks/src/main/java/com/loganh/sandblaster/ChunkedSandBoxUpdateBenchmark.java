@@ -0,0 +1,41 @@
+package com.loganh.sandblaster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// SandBoxUpdateBenchmark's boards, pasted into the bottom middle of a world
+// of WORLD_SIZE cells on a side, so the cost of the empty tiles around them
+// shows up next to the dense engine's numbers.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkedSandBoxUpdateBenchmark {
+
+  static private final int WORLD_SIZE = 4096;
+
+  @Param({"64", "256", "1024"})
+  public int size;
+
+  @Param({Boards.EMPTY, Boards.SAND, Boards.MIXED})
+  public String fill;
+
+  private ChunkedSandBox sandbox;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    SandBox board = Boards.create(fill, size);
+    sandbox = new ChunkedSandBox(WORLD_SIZE, WORLD_SIZE);
+    sandbox.elementTable = board.elementTable;
+    sandbox.pasteRegion((WORLD_SIZE - size) / 2, 0, size, size, board.copyRegion(0, 0, size, size));
+  }
+
+  @Benchmark
+  public ChunkedSandBox update() {
+    sandbox.update();
+    return sandbox;
+  }
+}
@@ -0,0 +1,58 @@
+package com.loganh.sandblaster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Each benchmark resolves every element of the test table once.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ElementTableBenchmark {
+
+  private ElementTable elementTable;
+  private byte[] ordinals;
+  private char[] ids;
+  private String[] names;
+
+  @Setup
+  public void setUp() {
+    elementTable = Utils.getTestElementTable();
+    int n = elementTable.elements.length;
+    ordinals = new byte[n];
+    ids = new char[n];
+    names = new String[n];
+    for (int i = 0; i < n; i++) {
+      Element element = elementTable.elements[i];
+      ordinals[i] = (byte) element.ordinal;
+      ids[i] = element.id;
+      // XML snapshots refer to elements by lower case name.
+      names[i] = element.name.toLowerCase();
+    }
+  }
+
+  @Benchmark
+  public void resolveOrdinal(Blackhole blackhole) {
+    for (byte ordinal : ordinals) {
+      blackhole.consume(elementTable.resolve(ordinal));
+    }
+  }
+
+  @Benchmark
+  public void resolveId(Blackhole blackhole) {
+    for (char id : ids) {
+      blackhole.consume(elementTable.resolve(id));
+    }
+  }
+
+  @Benchmark
+  public void resolveName(Blackhole blackhole) {
+    for (String name : names) {
+      blackhole.consume(elementTable.resolve(name));
+    }
+  }
+}
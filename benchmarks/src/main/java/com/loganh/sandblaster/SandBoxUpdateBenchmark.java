@@ -0,0 +1,44 @@
+package com.loganh.sandblaster;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SandBoxUpdateBenchmark {
+
+  @Param({"64", "256", "1024"})
+  public int size;
+
+  @Param({Boards.EMPTY, Boards.SAND, Boards.MIXED})
+  public String fill;
+
+  @Param({"1"})
+  public int threads;
+
+  private SandBox sandbox;
+
+  // Start every iteration from the same board, so that iterations measure
+  // comparable scenes instead of one that keeps settling.
+  @Setup(Level.Iteration)
+  public void setUp() {
+    sandbox = Boards.create(fill, size);
+    sandbox.setThreadCount(threads);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    sandbox.setThreadCount(1);
+  }
+
+  @Benchmark
+  public SandBox update() {
+    sandbox.update();
+    return sandbox;
+  }
+}
@@ -0,0 +1,78 @@
+package com.loganh.sandblaster;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+  // Iterations to run the board for before serializing it.
+  static final int SETTLE_ITERATIONS = 200;
+
+  @Param({"64", "256"})
+  public int size;
+
+  @Param({Boards.SAND, Boards.MIXED})
+  public String fill;
+
+  private SandBox sandbox;
+  private String packed;
+  private byte[] bytes;
+  private ByteArrayOutputStream buffer;
+  private ByteBuffer binary;
+
+  @Setup
+  public void setUp() throws IOException {
+    sandbox = Boards.create(fill, size);
+    for (int i = 0; i < SETTLE_ITERATIONS; i++) {
+      sandbox.update();
+    }
+    packed = sandbox.pack();
+    bytes = sandbox.packToBytes();
+    buffer = new ByteArrayOutputStream(bytes.length);
+    ByteBuffer written = BinarySnapshot.write(sandbox);
+    binary = ByteBuffer.allocateDirect(written.remaining());
+    binary.put(written);
+    binary.flip();
+  }
+
+  @Benchmark
+  public String pack() throws IOException {
+    return sandbox.pack();
+  }
+
+  @Benchmark
+  public SandBox unpack() throws IOException {
+    return SandBox.unpack(packed);
+  }
+
+  @Benchmark
+  public int write() throws IOException {
+    buffer.reset();
+    sandbox.write(new DataOutputStream(buffer));
+    return buffer.size();
+  }
+
+  @Benchmark
+  public SandBox read() throws IOException {
+    return SandBox.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  @Benchmark
+  public ByteBuffer writeBinary() throws IOException {
+    return BinarySnapshot.write(sandbox);
+  }
+
+  @Benchmark
+  public SandBox readBinary() throws IOException {
+    return BinarySnapshot.read(binary.duplicate());
+  }
+}
@@ -0,0 +1,205 @@
+package com.loganh.sandblaster;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+// Runs a saved sandbox for a number of iterations as fast as it will go, and
+// reports how long they took. The checksum of the final board is stable for a
+// given snapshot, seed and iteration count, so runs can be compared across
+// builds.
+//
+//   java -jar sandblaster-headless.jar [options] <snapshot> <iterations>
+//
+// Snapshots are .snapshot files as the app saves them, in the binary, chunked
+// or older stream format. Chunked snapshots run on a ChunkedSandBox.
+public class Replay {
+
+  static private final String USAGE =
+      "usage: replay [options] <snapshot> <iterations>\n"
+      + "  -o <file>       write the final board to <file> as a snapshot\n"
+      + "  -seed <n>       reseed the simulation instead of resuming the saved state\n"
+      + "  -threads <n>    update with <n> threads (not for chunked snapshots)\n"
+      + "  -no-skip        simulate settled chunks too\n";
+
+  static private void usage(String problem) {
+    if (problem != null) {
+      System.err.println(problem);
+    }
+    System.err.print(USAGE);
+    System.exit(2);
+  }
+
+  static public void main(String[] args) throws IOException {
+    String output = null;
+    Long seed = null;
+    int threads = 1;
+    boolean skip = true;
+    int i = 0;
+    try {
+      for (; i < args.length && args[i].startsWith("-"); i++) {
+        if (args[i].equals("-o")) {
+          output = args[++i];
+        } else if (args[i].equals("-seed")) {
+          seed = Long.parseLong(args[++i]);
+        } else if (args[i].equals("-threads")) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-no-skip")) {
+          skip = false;
+        } else {
+          usage("unknown option " + args[i]);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException ex) {
+      usage(args[i - 1] + " needs a value");
+    } catch (NumberFormatException ex) {
+      usage("bad number: " + ex.getMessage());
+    }
+    if (args.length - i != 2) {
+      usage(null);
+    }
+    String input = args[i];
+    int iterations = 0;
+    try {
+      iterations = Integer.parseInt(args[i + 1]);
+    } catch (NumberFormatException ex) {
+      usage("bad iteration count " + args[i + 1]);
+    }
+
+    BaseSandBox sandbox = load(new File(input));
+    if (sandbox instanceof ChunkedSandBox) {
+      ChunkedSandBox chunked = (ChunkedSandBox) sandbox;
+      if (threads != 1) {
+        usage("chunked snapshots update with one thread");
+      }
+      if (seed != null) {
+        chunked.setSeed(seed);
+      }
+      chunked.setSkipSettledChunks(skip);
+    } else {
+      SandBox dense = (SandBox) sandbox;
+      if (seed != null) {
+        dense.setSeed(seed);
+      }
+      dense.setThreadCount(threads);
+      dense.setSkipSettledChunks(skip);
+    }
+
+    long[] times = run(sandbox, iterations);
+    report(System.out, sandbox, times);
+    if (sandbox instanceof SandBox) {
+      ((SandBox) sandbox).setThreadCount(1);
+    }
+
+    if (output != null) {
+      save(sandbox, new File(output));
+    }
+  }
+
+  static BaseSandBox load(File file) throws IOException {
+    FileInputStream stream = new FileInputStream(file);
+    try {
+      FileChannel channel = stream.getChannel();
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (ChunkedSandBox.isSnapshot(buffer)) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return ChunkedSandBox.read(new DataInputStream(new ByteArrayInputStream(data)));
+      }
+      if (BinarySnapshot.isSnapshot(buffer)) {
+        return BinarySnapshot.read(buffer);
+      }
+      byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+      if (new String(data, 0, Math.min(data.length, 5), "US-ASCII").equals("<?xml")) {
+        throw new IOException(file + " is an XML snapshot; load and save it in the app first");
+      }
+      return SandBox.read(new DataInputStream(new ByteArrayInputStream(data)));
+    } finally {
+      stream.close();
+    }
+  }
+
+  // Saves the board with an empty undo stack, as the app would.
+  static void save(BaseSandBox sandbox, File file) throws IOException {
+    FileOutputStream stream = new FileOutputStream(file);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    try {
+      if (sandbox instanceof ChunkedSandBox) {
+        ((ChunkedSandBox) sandbox).write(out);
+      } else {
+        BinarySnapshot.write((SandBox) sandbox, stream.getChannel());
+      }
+      new UndoStack().write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  // Runs the iterations and returns how long each took, in nanoseconds.
+  static long[] run(BaseSandBox sandbox, int iterations) {
+    long[] times = new long[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      sandbox.update();
+      times[i] = System.nanoTime() - start;
+    }
+    return times;
+  }
+
+  // Over the cells row by row from the bottom, as SandBox lays them out, a
+  // row at a time so a big chunked world isn't copied whole.
+  static long checksum(BaseSandBox sandbox) {
+    CRC32 crc = new CRC32();
+    for (int y = 0; y < sandbox.getHeight(); y++) {
+      crc.update(sandbox.copyRegion(0, y, sandbox.getWidth(), 1));
+    }
+    return crc.getValue();
+  }
+
+  static private String millis(long nanos) {
+    return String.format("%.3f ms", nanos / 1e6);
+  }
+
+  static void report(PrintStream out, BaseSandBox sandbox, long[] times) {
+    int particles = 0;
+    for (int y = 0; y < sandbox.getHeight(); y++) {
+      for (byte cell : sandbox.copyRegion(0, y, sandbox.getWidth(), 1)) {
+        if (cell != BaseSandBox.EMPTY) {
+          particles++;
+        }
+      }
+    }
+    long total = 0;
+    for (long time : times) {
+      total += time;
+    }
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+
+    out.println("board: " + sandbox.getWidth() + "x" + sandbox.getHeight()
+        + ", " + sandbox.elementTable.elements.length + " elements"
+        + ", " + sandbox.getSources().length + " sources");
+    out.println("iterations: " + times.length);
+    out.println("total: " + millis(total));
+    if (times.length > 0) {
+      out.println("per iteration: mean " + millis(total / times.length)
+          + ", median " + millis(sorted[sorted.length / 2])
+          + ", p99 " + millis(sorted[(int) (sorted.length * 0.99)])
+          + ", max " + millis(sorted[sorted.length - 1]));
+      out.println(String.format("iterations/s: %.1f", times.length / (total / 1e9)));
+    }
+    out.println("particles: " + particles);
+    if (UpdateStats.ENABLED && sandbox instanceof SandBox) {
+      out.println("stats: " + ((SandBox) sandbox).getStats());
+    }
+    if (sandbox instanceof ChunkedSandBox) {
+      out.println("tiles: " + ((ChunkedSandBox) sandbox).getTileCount()
+          + ", dropped: " + ((ChunkedSandBox) sandbox).getDroppedCount());
+    }
+    out.println(String.format("checksum: %08x", checksum(sandbox)));
+  }
+}
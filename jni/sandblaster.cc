@@ -1,5 +1,8 @@
 #include <jni.h>
+#include <math.h>
+#include <stdint.h>
 #include <stdlib.h>
+#include <string.h>
 #include <sys/endian.h>
 #include <time.h>
 
@@ -7,7 +10,17 @@
 
 #define LOG(...) __android_log_print(ANDROID_LOG_INFO, "com.loganh.sandblaster", __VA_ARGS__)
 
-extern JavaVM* jvm;
+// As in BaseSandBox.
+static const jint CHUNK_SHIFT = 4;
+static const jint CHUNK_SIZE = 1 << CHUNK_SHIFT;
+static const jint CHUNK_WAKE_ITERATIONS = 32;
+static const jfloat SOURCE_PROBABILITY = 0.4f;
+static const jfloat SERIALIZATION_VERSION = 1.8f;
+
+// Serialized particle state, as in SandBox: four fields, and up to this many
+// more particles sharing one record of them.
+static const jint STATE_FIELDS = 4;
+static const jint MAX_STATE_REPEAT = 0xff >> STATE_FIELDS;
 
 static int NEIGHBORS[][2] = {
   { 0, 1 },
@@ -26,11 +39,14 @@ struct DataStream {
   char* data;
   jint pos;
   jint size;
+  // Set once a read runs past the end.
+  bool eof;
 
   DataStream(JNIEnv* env, jbyteArray byte_array) {
     this->env = env;
     this->byte_array = byte_array;
     pos = 0;
+    eof = false;
     size = env->GetArrayLength(byte_array);
     this->data = (char*) env->GetPrimitiveArrayCritical(byte_array, NULL);
   }
@@ -40,12 +56,17 @@ struct DataStream {
   }
 
   void Skip(jint n) {
+    if (pos + n > size) {
+      eof = true;
+      pos = size;
+      return;
+    }
     pos += n;
   }
 
   jbyte ReadJbyte() {
     if (pos + 1 > size) {
-      // TODO: exception
+      eof = true;
       return 0;
     }
     return data[pos++];
@@ -57,7 +78,7 @@ struct DataStream {
 
   jshort ReadJshort() {
     if (pos + 2 > size) {
-      // TODO: exception
+      eof = true;
       return 0;
     }
     jchar result = betoh16(*(jchar*) (data + pos));
@@ -67,8 +88,7 @@ struct DataStream {
 
   jint ReadJint() {
     if (pos + 4 > size) {
-      // TODO: exception
-      LOG("EOF on ReadJint");
+      eof = true;
       return 0;
     }
     jint result = betoh32(*(jint*) (data + pos));
@@ -76,72 +96,128 @@ struct DataStream {
     return result;
   }
 
+  jlong ReadJlong() {
+    if (pos + 8 > size) {
+      eof = true;
+      return 0;
+    }
+    jlong result = betoh64(*(jlong*) (data + pos));
+    pos += 8;
+    return result;
+  }
+
   jfloat ReadJfloat() {
     jint i = ReadJint();
     return *(jfloat *) &i;
   }
 };
 
+// Counterpart to DataStream: a growable buffer in the format
+// java.io.DataOutputStream writes.
+struct OutStream {
+  char* data;
+  jint size;
+  jint capacity;
+
+  OutStream() : size(0), capacity(1024) {
+    data = new char[capacity];
+  }
+
+  ~OutStream() {
+    delete[] data;
+  }
+
+  void Write(const void* bytes, jint n) {
+    if (size + n > capacity) {
+      while (size + n > capacity) {
+        capacity *= 2;
+      }
+      char* more = new char[capacity];
+      memcpy(more, data, size);
+      delete[] data;
+      data = more;
+    }
+    memcpy(data + size, bytes, n);
+    size += n;
+  }
+
+  void WriteJbyte(jbyte b) {
+    Write(&b, 1);
+  }
+
+  void WriteJshort(jshort s) {
+    jshort be = htobe16(s);
+    Write(&be, 2);
+  }
+
+  void WriteJint(jint i) {
+    jint be = htobe32(i);
+    Write(&be, 4);
+  }
+
+  void WriteJlong(jlong l) {
+    jlong be = htobe64(l);
+    Write(&be, 8);
+  }
+
+  void WriteJfloat(jfloat f) {
+    WriteJint(*(jint*) &f);
+  }
+};
+
+
+// The xorshift64* generator of SandBox.RNG, draw for draw, so that a native
+// sandbox given the same seed plays out exactly as the Java one does.
 struct RNG {
-  static jboolean rng_initialized;
+  static unsigned long long seed_uniquifier;
+  unsigned long long state;
 
   RNG() {
-    if (!rng_initialized) {
-      time_t now;
-      time(&now);
-      srandom(now);
-      rng_initialized = 1;
+    if (!seed_uniquifier) {
+      seed_uniquifier = time(NULL);
     }
+    seed_uniquifier += 0x9E3779B97F4A7C15ULL;
+    SetSeed(seed_uniquifier);
   }
 
-  jboolean NextBoolean() {
-    return random() & 1;
+  void SetSeed(jlong seed) {
+    unsigned long long z = seed + 0x9E3779B97F4A7C15ULL;
+    z = (z ^ (z >> 30)) * 0xBF58476D1CE4E5B9ULL;
+    z = (z ^ (z >> 27)) * 0x94D049BB133111EBULL;
+    z ^= z >> 31;
+    SetState(z);
   }
 
-  jfloat NextFloat() {
-    jfloat result = random() / (float(0x7fffffff) + 1);
-    return result;
+  void SetState(jlong state) {
+    this->state = state ? state : 0x9E3779B97F4A7C15ULL;
   }
-};
 
+  jlong NextLong() {
+    unsigned long long x = state;
+    x ^= x >> 12;
+    x ^= x << 25;
+    x ^= x >> 27;
+    state = x;
+    return x * 0x2545F4914F6CDD1DULL;
+  }
 
-jboolean RNG::rng_initialized = 0;
+  jboolean NextBoolean() {
+    return NextLong() < 0;
+  }
 
+  jint NextBits24() {
+    return (unsigned long long) NextLong() >> 40;
+  }
 
-template <class T>
-struct List {
-  struct ListNode {
-    T* data;
-    ListNode* next;
-  };
-  typedef ListNode* Node;
-  Node head;
-
-  void add(T* data) {
-    Node node = new ListNode;
-    node->data = data;
-    node->next = head;
-    head = node;
-  }
-
-  bool remove(T* data) {
-    Node prev = 0;
-    for (Node n = head; n; prev = n, n = n->next) {
-      if (n->data == data) {
-        if (prev) {
-          prev->next = n->next;
-        } else {
-          head = n->next;
-        }
-        delete n;
-        return true;
-      }
-    }
-    return false;
+  jfloat NextFloat() {
+    return NextBits24() * (1.0f / (1 << 24));
   }
 };
 
 
+unsigned long long RNG::seed_uniquifier = 0;
+
+
 template <class T>
 struct Grid {
   struct GridCol {
@@ -149,6 +225,8 @@ struct Grid {
     T* data;
     jint h;
 
+    GridCol() : data(NULL), h(0) {}
+
     ~GridCol() {
       if (data) {
         delete[] data;
@@ -157,7 +235,7 @@ struct Grid {
 
     void Init(jint h) {
       this->h = h;
-      data = new T[h];
+      data = new T[h]();
     }
 
     T& operator[](jint y) {
@@ -173,7 +251,17 @@ struct Grid {
   GridCol* data;
   jint w;
 
-  Grid(jint w, jint h) {
+  Grid(jint w, jint h) : data(NULL) {
+    Resize(w, h);
+  }
+
+  ~Grid() {
+    delete[] data;
+  }
+
+  // Discards the contents.
+  void Resize(jint w, jint h) {
+    delete[] data;
     this->w = w;
     data = new GridCol[w];
     for (jint x = 0; x < w; x++) {
@@ -181,10 +269,6 @@ struct Grid {
     }
   }
 
-  ~Grid() {
-    delete[] data;
-  }
-
   GridCol& operator[](jint x) {
     if (x >= 0 && x < w) {
       return data[x];
@@ -202,6 +286,10 @@ struct ProductSet {
   Element** products;
   jfloat* weights;
   jfloat total_weight;
+  // Walker's alias table: column i gives products[i] if 24 random bits fall
+  // below cutoffs[i], and products[aliases[i]] otherwise.
+  jint* cutoffs;
+  jint* aliases;
 
   ProductSet() : size(0) {}
 
@@ -209,19 +297,23 @@ struct ProductSet {
 
   ProductSet& operator=(const ProductSet& ps);
   void Read(DataStream* stream, ElementTable* table);
-  Element* PickProduct();
+  void BuildAliasTable();
+  Element* PickProduct(RNG* rng);
 };
 
 
 struct Transmutation {
   jfloat probability;
+  // The probability as a bound on RNG::NextBits24(), as in ElementTable.
+  jint threshold;
   Element* target;
   ProductSet products;
 
-  Transmutation() : probability(0), target(NULL) {}
+  Transmutation() : probability(0), threshold(0), target(NULL) {}
 
   Transmutation& operator=(const Transmutation& t) {
     probability = t.probability;
+    threshold = t.threshold;
     target = t.target;
     products = t.products;
     return *this;
@@ -231,10 +323,20 @@ struct Transmutation {
 };
 
 
+// a * b / 255, rounded as Skia premultiplies colors.
+static jint MulDiv255Round(jint a, jint b) {
+  jint prod = a * b + 128;
+  return (prod + (prod >> 8)) >> 8;
+}
+
+
 struct Element {
   jbyte ordinal;
   jshort id;
   jint color;
+  // The color as an ARGB_8888 bitmap keeps it in memory: premultiplied, as
+  // the bytes R, G, B, A.
+  jint bitmap_color;
   jboolean mobile;
   jfloat density;
   jfloat viscosity;
@@ -250,6 +352,12 @@ struct Element {
 
     id = stream->ReadJshort();
     color = stream->ReadJint();
+    jint alpha = (color >> 24) & 0xff;
+    unsigned char* rgba = (unsigned char*) &bitmap_color;
+    rgba[0] = MulDiv255Round((color >> 16) & 0xff, alpha);
+    rgba[1] = MulDiv255Round((color >> 8) & 0xff, alpha);
+    rgba[2] = MulDiv255Round(color & 0xff, alpha);
+    rgba[3] = alpha;
 
     // Skip drawable
     stream->ReadJboolean();
@@ -267,14 +375,25 @@ struct ElementTable {
   jint size;
   Element* elements;
   Transmutation* transmutations;
+  // Bit (target % 64) of word agent * reactive_words + target / 64 is set if
+  // the agent has a transmutation for the target.
+  unsigned long long* reactive;
+  jint reactive_words;
+
+  ElementTable() : size(0), elements(NULL), transmutations(NULL), reactive(NULL), reactive_words(0) {}
 
   ~ElementTable() {
     if (size) {
       delete[] elements;
       delete[] transmutations;
+      delete[] reactive;
     }
   }
 
+  bool Reacts(jint agent, jint target) {
+    return (reactive[agent * reactive_words + (target >> 6)] >> (target & 63)) & 1;
+  }
+
   Element* GetElementById(jchar id) {
     for (jint i = 0; i < size; i++) {
       if (elements[i].id == id) {
@@ -290,10 +409,16 @@ struct ElementTable {
 
   void Read(DataStream* stream) {
     size = stream->ReadJbyte();
+    if (size < 0) {
+      size = 0;
+    }
     if (elements) { delete[] elements; }
     if (transmutations) { delete[] transmutations; }
+    if (reactive) { delete[] reactive; }
     elements = new Element[size];
     transmutations = new Transmutation[size * size];
+    reactive_words = (size + 63) / 64;
+    reactive = new unsigned long long[size * reactive_words]();
     for (jint i = 0; i < size; i++) {
       Element* elem = elements + i;
       elem->ordinal = i;
@@ -309,27 +434,27 @@ struct ElementTable {
     // Transmutations
     jbyte ord = stream->ReadJbyte();
     Element* agent = GetElementByOrdinal(ord);
-    while (agent) {
-      agent->transmutation_count++;
+    while (agent && !stream->eof) {
       Transmutation t;
       t.Read(stream, this);
-      transmutations[ord * size + t.target->ordinal] = t;
+      if (t.target) {
+        agent->transmutation_count++;
+        transmutations[ord * size + t.target->ordinal] = t;
+        reactive[ord * reactive_words + (t.target->ordinal >> 6)] |= 1ULL << (t.target->ordinal & 63);
+      }
       ord = stream->ReadJbyte();
       agent = GetElementByOrdinal(ord);
     }
   }
 
-  Element* MaybeTransmutate(Element* agent, Element* target) {
-    if (!agent || !target) {
+  // Draws from the generator exactly as ElementTable.maybeTransmutate does.
+  Element* MaybeTransmutate(Element* agent, Element* target, RNG* rng) {
+    if (!agent || !target || !Reacts(agent->ordinal, target->ordinal)) {
       return target;
     }
     Transmutation& t = transmutations[agent->ordinal * size + target->ordinal];
-    if (t.probability <= 0) {
-      return target;
-    }
-    RNG rng;
-    if (rng.NextFloat() < t.probability) {
-      return t.products.PickProduct();
+    if (rng->NextBits24() < t.threshold) {
+      return t.products.PickProduct(rng);
     }
     return target;
   }
@@ -340,9 +465,13 @@ ProductSet& ProductSet::operator=(const ProductSet& ps)  {
   size = ps.size;
   products = new Element*[size];
   weights = new jfloat[size];
+  cutoffs = new jint[size];
+  aliases = new jint[size];
   for (int i = 0; i < size; i++) {
     products[i] = ps.products[i];
     weights[i] = ps.weights[i];
+    cutoffs[i] = ps.cutoffs[i];
+    aliases[i] = ps.aliases[i];
   }
   total_weight = ps.total_weight;
   return *this;
@@ -352,6 +481,8 @@ ProductSet::~ProductSet() {
   if (size) {
     delete[] products;
     delete[] weights;
+    delete[] cutoffs;
+    delete[] aliases;
   }
 }
 
@@ -359,8 +490,14 @@ void ProductSet::Read(DataStream* stream, ElementTable* table) {
   if (size) {
     delete[] products;
     delete[] weights;
+    delete[] cutoffs;
+    delete[] aliases;
   }
   size = stream->ReadJbyte();
+  if (size < 0) {
+    size = 0;
+    stream->eof = true;
+  }
   products = new Element*[size];
   weights = new jfloat[size];
   total_weight = 0;
@@ -372,30 +509,75 @@ void ProductSet::Read(DataStream* stream, ElementTable* table) {
     weights[i] = stream->ReadJfloat();
     total_weight += weights[i];
   }
+  BuildAliasTable();
 }
 
-Element* ProductSet::PickProduct() {
-  if (!size) {
-    return NULL;
+// Vose's method, as in Element.ProductSet.
+void ProductSet::BuildAliasTable() {
+  cutoffs = new jint[size];
+  aliases = new jint[size];
+  for (int i = 0; i < size; i++) {
+    cutoffs[i] = 0;
+    aliases[i] = 0;
   }
-  if (size == 0) {
-    return products[0];
+  if (!size || total_weight <= 0) {
+    return;
   }
-  RNG rng;
-  jfloat w = rng.NextFloat() * total_weight;
+  double* scaled = new double[size];
+  jint* small = new jint[size];
+  jint* large = new jint[size];
+  jint nsmall = 0;
+  jint nlarge = 0;
   for (int i = 0; i < size; i++) {
-    if (w <= weights[i]) {
-      return products[i];
+    scaled[i] = double(weights[i]) * size / total_weight;
+    if (scaled[i] < 1) {
+      small[nsmall++] = i;
+    } else {
+      large[nlarge++] = i;
+    }
+  }
+  while (nsmall > 0 && nlarge > 0) {
+    jint s = small[--nsmall];
+    jint l = large[--nlarge];
+    cutoffs[s] = jint(ceil(scaled[s] * (1 << 24)));
+    aliases[s] = l;
+    scaled[l] += scaled[s] - 1;
+    if (scaled[l] < 1) {
+      small[nsmall++] = l;
+    } else {
+      large[nlarge++] = l;
     }
-    w -= weights[i];
   }
-  return products[0];
+  while (nlarge > 0) {
+    cutoffs[large[--nlarge]] = 1 << 24;
+  }
+  while (nsmall > 0) {
+    cutoffs[small[--nsmall]] = 1 << 24;
+  }
+  delete[] scaled;
+  delete[] small;
+  delete[] large;
+}
+
+Element* ProductSet::PickProduct(RNG* rng) {
+  if (!size) {
+    return NULL;
+  }
+  if (size == 1) {
+    return products[0];
+  }
+  // The top 32 bits pick the column and the next 24 the side of it.
+  unsigned long long bits = rng->NextLong();
+  jint column = jint(((bits >> 32) * size) >> 32);
+  jint side = jint(bits >> 8) & 0xffffff;
+  return products[side < cutoffs[column] ? column : aliases[column]];
 }
 
 void Transmutation::Read(DataStream* stream, ElementTable* table) {
   jbyte ord = stream->ReadJbyte();
   target = table->GetElementByOrdinal(ord);
   probability = stream->ReadJfloat();
+  threshold = jint(ceil(double(probability) * (1 << 24)));
   products.Read(stream, table);
 }
 
@@ -417,114 +599,322 @@ struct Point {
 };
 
 
+// The native counterpart to SandBox. Given the same state and seed, Iterate()
+// makes the same random draws in the same order as SandBox.update() with a
+// single thread, so the two stay cell for cell identical.
 struct Sandbox {
 
-  typedef List<Sandbox> SandboxList;
-  static SandboxList sandboxes;
-
-  jobject java_ref;
   jint w;
   jint h;
   jint iteration;
   RNG rng;
   ElementTable* elements;
 
+  // The element table as it was read, to be written back out unchanged.
+  char* element_data;
+  jint element_size;
+
   // 2D map of element pointers. NULL means no particle.
   Grid<Point> points;
 
-  // 1D array representation of the resulting bitmap.
-  jintArray pixels;
-  jintArray pixelsGlobalRef;
-  
-
-  Sandbox(JNIEnv* env, jint w, jint h, jobject java_ref) : points(w, h) {
-    this->w = w;
-    this->h = h;
-    this->java_ref = java_ref;
+  // Sources in the order of the Java SourceSet, which is the order their
+  // random draws are made in: cell positions and the ordinals they emit.
+  jint* source_positions;
+  jbyte* source_ordinals;
+  jint source_count;
+  jint source_capacity;
+
+  // Chunk activity, as in BaseSandBox, and which chunks this iteration
+  // simulates.
+  jint chunks_wide;
+  jint chunks_high;
+  jint* chunk_changed;
+  jint* chunk_restless;
+  bool* awake;
+  bool skip_settled_chunks;
+
+  Sandbox(jint w, jint h)
+      : element_data(NULL), element_size(0), points(w, h),
+        source_capacity(8), chunk_changed(NULL), chunk_restless(NULL), awake(NULL),
+        skip_settled_chunks(true) {
     elements = new ElementTable();
-    jintArray localPixelsRef = (jintArray) env->NewIntArray(w * h);
-    pixels = (jintArray) env->NewGlobalRef(localPixelsRef);
-    env->DeleteLocalRef(localPixelsRef);
+    source_positions = new jint[source_capacity];
+    source_ordinals = new jbyte[source_capacity];
+    Resize(w, h);
   }
 
   ~Sandbox() {
     delete elements;
-    JNIEnv *env;
-    jvm->AttachCurrentThread(&env, NULL);
-    env->DeleteGlobalRef(pixels);
-    env->DeleteGlobalRef(java_ref);
+    delete[] element_data;
+    delete[] source_positions;
+    delete[] source_ordinals;
+    delete[] chunk_changed;
+    delete[] chunk_restless;
+    delete[] awake;
   }
 
-  void Read(DataStream* stream) {
-    LOG("reading version");
+  // Empties a board of the given size, as BaseSandBox.clear() does.
+  void Resize(jint w, jint h) {
+    this->w = w;
+    this->h = h;
+    points.Resize(w, h);
+    chunks_wide = (w + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+    chunks_high = (h + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+    delete[] chunk_changed;
+    delete[] chunk_restless;
+    delete[] awake;
+    chunk_changed = new jint[chunks_wide * chunks_high]();
+    chunk_restless = new jint[chunks_wide * chunks_high]();
+    awake = new bool[chunks_wide * chunks_high]();
+    iteration = -1;
+    source_count = 0;
+  }
+
+  jint ChunkIndex(jint x, jint y) {
+    return (y >> CHUNK_SHIFT) * chunks_wide + (x >> CHUNK_SHIFT);
+  }
+
+  // Reads what SandBox.write() writes. Returns false if the version is
+  // unknown or the data runs out.
+  bool Read(DataStream* stream) {
     jfloat version = stream->ReadJfloat();
-    LOG("serialization version: %f", version);
-    if (version != 1.6f) {
-      // TODO: throw exception
-      LOG("  can't parse this version");
-      return;
+    if (version != SERIALIZATION_VERSION && version != 1.7f && version != 1.6f) {
+      LOG("can't read serialization version %f", version);
+      return false;
+    }
+
+    jint start = stream->pos;
+    ElementTable* table = new ElementTable();
+    table->Read(stream);
+    jint new_w = stream->ReadJshort();
+    jint new_h = stream->ReadJshort();
+    if (stream->eof || new_w <= 0 || new_h <= 0) {
+      delete table;
+      return false;
     }
     delete elements;
-    elements = new ElementTable();
-    elements->Read(stream);
+    elements = table;
+    delete[] element_data;
+    element_size = stream->pos - 4 - start;
+    element_data = new char[element_size];
+    memcpy(element_data, stream->data + start, element_size);
+
+    Resize(new_w, new_h);
+    iteration = stream->ReadJint();
+    if (version != 1.6f) {
+      rng.SetState(stream->ReadJlong());
+    }
+
+    jint nsources = stream->ReadJint();
+    for (jint i = 0; i < nsources && !stream->eof; i++) {
+      jint x = stream->ReadJshort();
+      jint y = stream->ReadJshort();
+      Element* e = elements->GetElementByOrdinal(stream->ReadJbyte());
+      if (e) {
+        AddSource(x, y, e);
+      } else {
+        RemoveSource(x, y);
+      }
+    }
+
+    if (version == SERIALIZATION_VERSION) {
+      if (!ReadRuns(stream)) {
+        return false;
+      }
+    } else {
+      ReadParticles(stream);
+    }
+
+    if (version != 1.6f) {
+      for (jint c = 0; c < chunks_wide * chunks_high; c++) {
+        chunk_changed[c] = iteration + stream->ReadJshort();
+        chunk_restless[c] = iteration + stream->ReadJshort();
+      }
+    }
+    return !stream->eof;
   }
 
-  void Resize(jint w, jint h) {
-    JNIEnv *env;
-    jvm->AttachCurrentThread(&env, NULL);
-    env->DeleteGlobalRef(pixels);
-    this->w = w;
-    this->h = h;
-    jintArray localPixelsRef = (jintArray) env->NewIntArray(w * h);
-    pixels = (jintArray) env->NewGlobalRef(localPixelsRef);
-    env->DeleteLocalRef(localPixelsRef);
+  // Reads the particles as Write() writes them. Returns false on a run that
+  // doesn't fit its row.
+  bool ReadRuns(DataStream* stream) {
+    jshort state[STATE_FIELDS] = { 0 };
+    for (jint y = 0; y < h && !stream->eof; y++) {
+      jint x = 0;
+      for (jint gap = stream->ReadJshort(); gap >= 0 && !stream->eof; gap = stream->ReadJshort()) {
+        x += gap;
+        jint length = stream->ReadJshort();
+        Element* e = elements->GetElementByOrdinal(stream->ReadJbyte());
+        if (length <= 0 || x + length > w) {
+          LOG("bad run at %d, %d", x, y);
+          return false;
+        }
+        for (jint end = x + length; x < end && !stream->eof; ) {
+          jint header = (unsigned char) stream->ReadJbyte();
+          for (jint field = 0; field < STATE_FIELDS; field++) {
+            if (header & (1 << field)) {
+              state[field] = stream->ReadJshort();
+            }
+          }
+          jint count = (header >> STATE_FIELDS) + 1;
+          if (x + count > end) {
+            LOG("bad run at %d, %d", x, y);
+            return false;
+          }
+          for (jint n = 0; n < count && e; n++) {
+            SetParticle(x + n, y, e);
+            Point& p = points[x + n][y];
+            p.age = state[0];
+            p.last_set = iteration + state[1];
+            p.last_changed = iteration + state[2];
+            p.last_floated = iteration + state[3];
+          }
+          x += count;
+        }
+      }
+    }
+    return true;
   }
 
-  static SandboxList::Node Lookup(JNIEnv* env, jobject thiz) {
-    for (SandboxList::Node n = sandboxes.head; n; n = n->next) {
-      if (env->IsSameObject(thiz, n->data->java_ref)) {
-        return n;
+  // Reads the particles as versions 1.6 and 1.7 wrote them, each in full.
+  void ReadParticles(DataStream* stream) {
+    for (jint y = 0; y < h && !stream->eof; y++) {
+      jint x = stream->ReadJshort();
+      while (x >= 0 && x < w && !stream->eof) {
+        Element* e = elements->GetElementByOrdinal(stream->ReadJbyte());
+        if (e) {
+          SetParticle(x, y, e);
+          Point& p = points[x][y];
+          p.age = stream->ReadJshort();
+          p.last_set = iteration + stream->ReadJshort();
+          p.last_changed = iteration + stream->ReadJshort();
+          p.last_floated = iteration + stream->ReadJshort();
+        }
+        x = stream->ReadJshort();
       }
     }
-    return NULL;
   }
 
-  static Sandbox* Get(JNIEnv* env, jobject thiz) {
-    SandboxList::Node n = Lookup(env, thiz);
-    if (n) {
-      return n->data;
-    } else {
-      return Create(env, thiz);
+  // Chunks that have been quiet for a long while are all equally asleep.
+  jshort ChunkAge(jint since) {
+    jint age = since - iteration;
+    return age < -32768 ? -32768 : age;
+  }
+
+  // A particle's state as it is serialized: the age, and timestamps relative
+  // to the current iteration, each cut down to a short.
+  jshort StateField(const Point& p, jint field) {
+    switch (field) {
+      case 0: return p.age;
+      case 1: return p.last_set - iteration;
+      case 2: return p.last_changed - iteration;
+      default: return p.last_floated - iteration;
     }
   }
 
-  static Sandbox* Create(JNIEnv* env, jobject thiz) {
-    static jfieldID widthFid, heightFid;
-    if (!widthFid) {
-      jclass cls = env->GetObjectClass(thiz);
-      widthFid = env->GetFieldID(cls, "width", "I");
-      heightFid = env->GetFieldID(cls, "height", "I");
+  bool SameState(const Point& a, const Point& b) {
+    for (jint field = 0; field < STATE_FIELDS; field++) {
+      if (StateField(a, field) != StateField(b, field)) {
+        return false;
+      }
     }
-    jint w = env->GetIntField(thiz, widthFid);
-    jint h = env->GetIntField(thiz, heightFid);
-    Sandbox* sandbox = new Sandbox(env, w, h, env->NewGlobalRef(thiz));
-    sandboxes.add(sandbox);
-    return sandbox;
+    return true;
   }
 
-  static void Delete(JNIEnv* env, jobject thiz) {
-    SandboxList::Node n = Lookup(env, thiz);
-    sandboxes.remove(n->data);
+  // Writes p's state, shared by the repeat particles after it, as the fields
+  // that differ from state, and updates state to it.
+  void WriteState(OutStream* stream, const Point& p, jint repeat, jshort* state) {
+    jint changed = 0;
+    for (jint field = 0; field < STATE_FIELDS; field++) {
+      if (StateField(p, field) != state[field]) {
+        changed |= 1 << field;
+      }
+    }
+    stream->WriteJbyte(repeat << STATE_FIELDS | changed);
+    for (jint field = 0; field < STATE_FIELDS; field++) {
+      if (changed & (1 << field)) {
+        state[field] = StateField(p, field);
+        stream->WriteJshort(state[field]);
+      }
+    }
   }
 
-  void Clear() {
+  // Writes the sandbox as SandBox.write() would.
+  void Write(OutStream* stream) {
+    stream->WriteJfloat(SERIALIZATION_VERSION);
+    if (element_data) {
+      stream->Write(element_data, element_size);
+    } else {
+      // An empty table.
+      stream->WriteJbyte(0);
+      stream->WriteJbyte(-1);
+    }
+    stream->WriteJshort(w);
+    stream->WriteJshort(h);
+    stream->WriteJint(iteration);
+    stream->WriteJlong(rng.state);
+
+    stream->WriteJint(source_count);
+    for (jint i = 0; i < source_count; i++) {
+      stream->WriteJshort(source_positions[i] % w);
+      stream->WriteJshort(source_positions[i] / w);
+      stream->WriteJbyte(source_ordinals[i]);
+    }
+
+    // Runs of one element, and their particles' state, as SandBox.write().
+    jshort state[STATE_FIELDS] = { 0 };
     for (jint y = 0; y < h; y++) {
-      for (jint x = 0; x < w; x++) {
-        points[x][y] = NULL;
+      jint end = 0;
+      for (jint x = 0; x < w; ) {
+        Element* e = points[x][y].element;
+        if (!e) {
+          x++;
+          continue;
+        }
+        jint run_end = x + 1;
+        while (run_end < w && points[run_end][y].element == e) {
+          run_end++;
+        }
+        stream->WriteJshort(x - end);
+        stream->WriteJshort(run_end - x);
+        stream->WriteJbyte(e->ordinal);
+        while (x < run_end) {
+          jint repeat = 0;
+          while (repeat < MAX_STATE_REPEAT && x + repeat + 1 < run_end
+                 && SameState(points[x][y], points[x + repeat + 1][y])) {
+            repeat++;
+          }
+          WriteState(stream, points[x][y], repeat, state);
+          x += repeat + 1;
+        }
+        end = run_end;
       }
+      stream->WriteJshort(-1);
+    }
+
+    for (jint c = 0; c < chunks_wide * chunks_high; c++) {
+      stream->WriteJshort(ChunkAge(chunk_changed[c]));
+      stream->WriteJshort(ChunkAge(chunk_restless[c]));
     }
   }
 
+  // The sandbox whose address NativeSandBox.handle holds. Throws
+  // IllegalStateException and returns NULL if it has been disposed of.
+  static Sandbox* Get(JNIEnv* env, jobject thiz) {
+    static jfieldID handleFid;
+    if (!handleFid) {
+      handleFid = env->GetFieldID(env->GetObjectClass(thiz), "handle", "J");
+    }
+    Sandbox* sandbox = (Sandbox*) (intptr_t) env->GetLongField(thiz, handleFid);
+    if (!sandbox) {
+      env->ThrowNew(env->FindClass("java/lang/IllegalStateException"), "sandbox disposed");
+    }
+    return sandbox;
+  }
+
+  void Clear() {
+    Resize(w, h);
+  }
+
   Element* GetElement(JNIEnv* env, jobject jelement) {
     if (!jelement) {
       return NULL;
@@ -538,34 +928,99 @@ struct Sandbox {
     return elements->GetElementById(id);
   }
 
+  jint FindSource(jint position) {
+    for (jint i = 0; i < source_count; i++) {
+      if (source_positions[i] == position) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Adds or replaces a source as SourceSet.put() does: new sources go last.
+  void AddSource(jint x, jint y, Element* elem) {
+    if (x < 0 || y < 0 || x >= w || y >= h) {
+      return;
+    }
+    jint position = y * w + x;
+    jint i = FindSource(position);
+    if (i < 0) {
+      if (source_count == source_capacity) {
+        source_capacity *= 2;
+        jint* more_positions = new jint[source_capacity];
+        jbyte* more_ordinals = new jbyte[source_capacity];
+        memcpy(more_positions, source_positions, source_count * sizeof(jint));
+        memcpy(more_ordinals, source_ordinals, source_count);
+        delete[] source_positions;
+        delete[] source_ordinals;
+        source_positions = more_positions;
+        source_ordinals = more_ordinals;
+      }
+      i = source_count++;
+      source_positions[i] = position;
+    }
+    source_ordinals[i] = elem->ordinal;
+  }
+
+  // Removes a source as SourceSet.remove() does: the last source takes its
+  // place.
+  void RemoveSource(jint x, jint y) {
+    if (x < 0 || y < 0 || x >= w || y >= h) {
+      return;
+    }
+    jint i = FindSource(y * w + x);
+    if (i >= 0) {
+      --source_count;
+      source_positions[i] = source_positions[source_count];
+      source_ordinals[i] = source_ordinals[source_count];
+    }
+  }
+
   void SetParticle(jint x, jint y, Element* elem) {
-    if (elem != points[x][y].element) {
-      points[x][y].last_changed = iteration;
+    if (x < 0 || y < 0 || x >= w || y >= h) {
+      return;
     }
-    points[x][y].last_set = iteration;
-    points[x][y] = elem;
+    Point& p = points[x][y];
+    if (elem != p.element) {
+      p.last_changed = iteration;
+      chunk_changed[ChunkIndex(x, y)] = iteration;
+    }
+    p.last_set = iteration;
+    p = elem;
   }
 
   void SetParticle(jint x, jint y, Element* elem, jint radius, jfloat prob) {
+    if (!elem || !elem->mobile) {
+      FillCircle(x, y, radius, elem);
+      return;
+    }
     jint r2 = radius * radius;
-    for (jint i = -radius; i < radius; i++) {
-      for (jint j = -radius; j < radius; j++) {
-        if (i * i + j * j <= r2
-            && (!elem || !elem->mobile || rng.NextFloat() < prob)) {
+    for (jint i = -radius; i <= radius; i++) {
+      for (jint j = -radius; j <= radius; j++) {
+        if (i * i + j * j <= r2 && rng.NextFloat() < prob) {
           SetParticle(x + i, y + j, elem);
         }
       }
     }
   }
 
+  // Rounds n / d half up, for positive d.
+  static jint RoundDiv(jint n, jint d) {
+    jint q = 2 * n + d;
+    jint r = q / (2 * d);
+    return q % (2 * d) < 0 ? r - 1 : r;
+  }
+
   void Line(Element* element, jint radius, jint x1, jint y1, jint x2, jint y2) {
     jint dx = x1 - x2;
     jint dy = y1 - y2;
     jint d = (abs(dx) > abs(dy)) ? abs(dx) : abs(dy);
+    if (d == 0) {
+      SetParticle(x2, y2, element, radius, 0.1f);
+      return;
+    }
     for (int i = 0; i <= d; i++) {
-      int x = x2 + ((jfloat) i / d) * dx + .5;
-      int y = y2 + ((jfloat) i / d) * dy + .5;
-      SetParticle(x, y, element, radius, 0.1f);
+      SetParticle(x2 + RoundDiv(i * dx, d), y2 + RoundDiv(i * dy, d), element, radius, 0.1f);
     }
   }
 
@@ -573,8 +1028,123 @@ struct Sandbox {
     Line(element, 0, x1, y1, x2, y2);
   }
 
+  // Bulk edits, clipped to the board. See BaseSandBox.
+
+  void FillRect(jint x, jint y, jint rw, jint rh, Element* elem) {
+    jint x0 = x < 0 ? 0 : x;
+    jint x1 = x + rw < w ? x + rw : w;
+    jint y0 = y < 0 ? 0 : y;
+    jint y1 = y + rh < h ? y + rh : h;
+    for (jint j = y0; j < y1; j++) {
+      for (jint i = x0; i < x1; i++) {
+        SetParticle(i, j, elem);
+      }
+    }
+  }
+
+  void FillCircle(jint x, jint y, jint radius, Element* elem) {
+    jint r2 = radius * radius;
+    jint half = radius;
+    for (jint j = 0; j <= radius; j++) {
+      while (half * half + j * j > r2) {
+        half--;
+      }
+      FillRect(x - half, y + j, 2 * half + 1, 1, elem);
+      if (j) {
+        FillRect(x - half, y - j, 2 * half + 1, 1, elem);
+      }
+    }
+  }
+
+  jint FloodFill(jint x, jint y, Element* elem) {
+    if (x < 0 || y < 0 || x >= w || y >= h) {
+      return 0;
+    }
+    Element* target = points[x][y].element;
+    if (target == elem) {
+      return 0;
+    }
+    jint filled = 0;
+    jint capacity = 64;
+    jint* seeds = new jint[capacity];
+    jint nseeds = 0;
+    seeds[nseeds++] = y * w + x;
+    while (nseeds > 0) {
+      jint seed = seeds[--nseeds];
+      jint sy = seed / w;
+      jint left = seed % w;
+      if (points[left][sy].element != target) {
+        continue;
+      }
+      jint right = left;
+      while (left > 0 && points[left - 1][sy].element == target) {
+        left--;
+      }
+      while (right < w - 1 && points[right + 1][sy].element == target) {
+        right++;
+      }
+      for (jint i = left; i <= right; i++) {
+        SetParticle(i, sy, elem);
+      }
+      filled += right - left + 1;
+      for (jint ny = sy - 1; ny <= sy + 1; ny += 2) {
+        if (ny < 0 || ny >= h) {
+          continue;
+        }
+        bool in_run = false;
+        for (jint i = left; i <= right; i++) {
+          bool match = points[i][ny].element == target;
+          if (match && !in_run) {
+            if (nseeds == capacity) {
+              jint* more = new jint[2 * capacity];
+              for (jint k = 0; k < nseeds; k++) {
+                more[k] = seeds[k];
+              }
+              delete[] seeds;
+              seeds = more;
+              capacity *= 2;
+            }
+            seeds[nseeds++] = ny * w + i;
+          }
+          in_run = match;
+        }
+      }
+    }
+    delete[] seeds;
+    return filled;
+  }
+
+  void CopyRegion(jint x, jint y, jint rw, jint rh, jbyte* ordinals) {
+    for (jint j = 0; j < rh; j++) {
+      for (jint i = 0; i < rw; i++) {
+        Element* e = points[x + i][y + j].element;
+        *ordinals++ = e ? e->ordinal : -1;
+      }
+    }
+  }
+
+  // The ordinal of the particle at (x, y), or -1 if it's empty or off the
+  // board.
+  jbyte GetOrdinal(jint x, jint y) {
+    if (x < 0 || y < 0 || x >= w || y >= h) {
+      return -1;
+    }
+    Element* e = points[x][y].element;
+    return e ? e->ordinal : -1;
+  }
+
+  void PasteRegion(jint x, jint y, jint rw, jint rh, const jbyte* ordinals) {
+    for (jint j = 0; j < rh; j++) {
+      for (jint i = 0; i < rw; i++, ordinals++) {
+        if (x + i >= 0 && x + i < w && y + j >= 0 && y + j < h) {
+          SetParticle(x + i, y + j, elements->GetElementByOrdinal(*ordinals));
+        }
+      }
+    }
+  }
+
   void Swap(jint x1, jint y1, jint x2, jint y2) {
-    if (x1 < 0 || y1 < 0 || x1 >= w || y2 >= h) {
+    if (x1 < 0 || y1 < 0 || x1 >= w || y1 >= h) {
       SetParticle(x2, y2, NULL);
     } else if (x2 < 0 || y2 < 0 || x2 >= w || y2 >= h) {
       SetParticle(x1, y1, NULL);
@@ -591,12 +1161,53 @@ struct Sandbox {
     }
   }
 
+  // See SandBox.findAwakeChunks().
+  void FindAwakeChunks() {
+    jint n = chunks_wide * chunks_high;
+    if (!skip_settled_chunks) {
+      for (jint c = 0; c < n; c++) {
+        awake[c] = true;
+      }
+      return;
+    }
+    jint since = iteration - CHUNK_WAKE_ITERATIONS;
+    for (jint cy = 0; cy < chunks_high; cy++) {
+      jint top = cy + 1 < chunks_high ? cy + 1 : chunks_high - 1;
+      for (jint cx = 0; cx < chunks_wide; cx++) {
+        jint c = cy * chunks_wide + cx;
+        bool wake = chunk_restless[c] >= iteration - 1;
+        jint right = cx + 1 < chunks_wide ? cx + 1 : chunks_wide - 1;
+        for (jint ny = cy > 0 ? cy - 1 : 0; !wake && ny <= top; ny++) {
+          for (jint nx = cx > 0 ? cx - 1 : 0; nx <= right; nx++) {
+            if (chunk_changed[ny * chunks_wide + nx] >= since) {
+              wake = true;
+              break;
+            }
+          }
+        }
+        awake[c] = wake;
+      }
+    }
+  }
+
+  // SandBox.update() on a single thread. Keep the two in step: every random
+  // draw here has to happen exactly when the Java one does.
   void Iterate() {
-    // TODO: sources
+    for (jint i = 0; i < source_count; i++) {
+      jint x = source_positions[i] % w;
+      jint y = source_positions[i] / w;
+      chunk_restless[ChunkIndex(x, y)] = iteration + 1;
+      if (rng.NextFloat() < SOURCE_PROBABILITY) {
+        SetParticle(x, y, elements->GetElementByOrdinal(source_ordinals[i]));
+      }
+    }
 
     ++iteration;
 
+    FindAwakeChunks();
+
     for (jint y = 0; y < h; y++) {
+      jint chunk_row = (y >> CHUNK_SHIFT) * chunks_wide;
       jint start = 0;
       jint last = w;
       jint dir = 1;
@@ -606,10 +1217,22 @@ struct Sandbox {
         dir = -1;
       }
       for (jint x = start; x != last; x += dir) {
+        if (!awake[chunk_row + (x >> CHUNK_SHIFT)]) {
+          // Jump to the far edge of this chunk.
+          if (dir > 0) {
+            x = (x | (CHUNK_SIZE - 1)) < w - 1 ? x | (CHUNK_SIZE - 1) : w - 1;
+          } else {
+            x &= ~(CHUNK_SIZE - 1);
+          }
+          continue;
+        }
         Element* e = points[x][y].element;
         if (!e) {
           continue;
         }
+        if (e->decay_probability > 0 || e->transmutation_count > 0) {
+          chunk_restless[chunk_row + (x >> CHUNK_SHIFT)] = iteration;
+        }
 
         // Vertical movement.
         if (y == 0 && e->density > 0) {
@@ -629,11 +1252,11 @@ struct Sandbox {
           for (int i = 0; i < sizeof(NEIGHBORS) / sizeof(NEIGHBORS[0]); i++) {
             int nx = x + NEIGHBORS[i][0];
             int ny = y + NEIGHBORS[i][1];
-            if (nx >= 0 && nx < w && ny >= 0 & ny < h && points[nx][ny].last_set != iteration) {
+            if (nx >= 0 && nx < w && ny >= 0 && ny < h && points[nx][ny].last_set != iteration) {
               Element* t = points[nx][ny].element;
-              if (t) {
-                Element* o = elements->MaybeTransmutate(e, t);
-                if (o != points[nx][ny].element) {
+              if (t && elements->Reacts(e->ordinal, t->ordinal)) {
+                Element* o = elements->MaybeTransmutate(e, t, &rng);
+                if (o != t) {
                   SetParticle(nx, ny, o);
                 }
               }
@@ -645,7 +1268,7 @@ struct Sandbox {
         if (cur_last_set != iteration && e->decay_probability > 0 && rng.NextFloat() < e->decay_probability) {
           points[x][y].age++;
           if (points[x][y].age > e->lifetime) {
-            SetParticle(x, y, e->decay_products.PickProduct());
+            SetParticle(x, y, e->decay_products.PickProduct(&rng));
             continue;
           }
         }
@@ -688,6 +1311,7 @@ struct Sandbox {
           }
         }
 
+        // Cells beyond the top and bottom edges read as empty.
         Element* o = points[x][y - 1].element;
         if ((!o && e->density > 0) || (o && o->mobile && e->density > o->density)) {
           if (!o || o->density == 0 || rng.NextFloat() < e->density - o->density) {
@@ -711,24 +1335,40 @@ struct Sandbox {
     }
   }
 
-  jintArray GetPixels(JNIEnv* env) {
-    jint* pixelData = (jint*) env->GetPrimitiveArrayCritical(pixels, NULL);
-    jint* p = pixelData;
+  // Renders the board top row first, as SandBox keeps its pixels, but in
+  // bitmap memory layout. Empty cells are transparent.
+  void RenderPixels(jint* out) {
     for (jint y = h; y--; ) {
-      for (jint x = 0; x < w; x++, p++) {
-        *p = points[x][y].element ? points[x][y].element->color : 0xff000000;
+      for (jint x = 0; x < w; x++) {
+        Element* e = points[x][y].element;
+        *out++ = e ? e->bitmap_color : 0;
       }
     }
-    env->ReleasePrimitiveArrayCritical(pixels, pixelData, NULL);
-    return (jintArray) env->NewLocalRef(pixels);
   }
 };
 
 
-Sandbox::SandboxList Sandbox::sandboxes;
+extern "C" {
 
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    nativeCreate
+ * Signature: (II)J
+ */
+jlong Java_com_loganh_sandblaster_NativeSandBox_nativeCreate(JNIEnv* env, jclass cls, jint w, jint h) {
+  return (jlong) (intptr_t) new Sandbox(w, h);
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    nativeDispose
+ * Signature: (J)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_nativeDispose(JNIEnv* env, jclass cls, jlong handle) {
+  delete (Sandbox*) (intptr_t) handle;
+}
 
-extern "C" {
 
 /*
  * Class:     com_loganh_sandblaster_NativeSandBox
@@ -738,6 +1378,9 @@ extern "C" {
 void Java_com_loganh_sandblaster_NativeSandBox_setParticle__IILcom_loganh_sandblaster_Element_2(
     JNIEnv* env, jobject thiz, jint x, jint y, jobject jelement) {
   Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
   Element* element = sandbox->GetElement(env, jelement);
   sandbox->SetParticle(x, y, element);
 }
@@ -751,6 +1394,9 @@ void Java_com_loganh_sandblaster_NativeSandBox_setParticle__IILcom_loganh_sandbl
 void Java_com_loganh_sandblaster_NativeSandBox_setParticle__IILcom_loganh_sandblaster_Element_2IF(
     JNIEnv* env, jobject thiz, jint x, jint y, jobject jelement, jint radius, jfloat prob) {
   Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
   Element* element = sandbox->GetElement(env, jelement);
   sandbox->SetParticle(x, y, element, radius, prob);
 }
@@ -764,6 +1410,9 @@ void Java_com_loganh_sandblaster_NativeSandBox_setParticle__IILcom_loganh_sandbl
 void Java_com_loganh_sandblaster_NativeSandBox_line__Lcom_loganh_sandblaster_Element_2IIIII(
     JNIEnv* env, jobject thiz, jobject jelement, jint radius, jint x1, jint y1, jint x2, jint y2) {
   Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
   Element* element = sandbox->GetElement(env, jelement);
   sandbox->Line(element, radius, x1, y1, x2, y2);
 }
@@ -777,39 +1426,228 @@ void Java_com_loganh_sandblaster_NativeSandBox_line__Lcom_loganh_sandblaster_Ele
 void Java_com_loganh_sandblaster_NativeSandBox_line__Lcom_loganh_sandblaster_Element_2IIII(
     JNIEnv* env, jobject thiz, jobject jelement, jint x1, jint y1, jint x2, jint y2) {
   Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
   Element* element = sandbox->GetElement(env, jelement);
   sandbox->Line(element, x1, y1, x2, y2);
 }
 
 
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    fillRect
+ * Signature: (IIIILcom/loganh/sandblaster/Element;)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_fillRect(
+    JNIEnv* env, jobject thiz, jint x, jint y, jint w, jint h, jobject jelement) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->FillRect(x, y, w, h, sandbox->GetElement(env, jelement));
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    fillCircle
+ * Signature: (IIILcom/loganh/sandblaster/Element;)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_fillCircle(
+    JNIEnv* env, jobject thiz, jint x, jint y, jint radius, jobject jelement) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->FillCircle(x, y, radius, sandbox->GetElement(env, jelement));
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    floodFill
+ * Signature: (IILcom/loganh/sandblaster/Element;)I
+ */
+jint Java_com_loganh_sandblaster_NativeSandBox_floodFill(
+    JNIEnv* env, jobject thiz, jint x, jint y, jobject jelement) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return 0;
+  }
+  return sandbox->FloodFill(x, y, sandbox->GetElement(env, jelement));
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    copyRegion
+ * Signature: (IIII)[B
+ */
+jbyteArray Java_com_loganh_sandblaster_NativeSandBox_copyRegion(
+    JNIEnv* env, jobject thiz, jint x, jint y, jint w, jint h) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return NULL;
+  }
+  if (w <= 0 || h <= 0) {
+    return env->NewByteArray(0);
+  }
+  jbyteArray result = env->NewByteArray(w * h);
+  if (!result) {
+    return NULL;
+  }
+  jbyte* ordinals = (jbyte*) env->GetPrimitiveArrayCritical(result, NULL);
+  sandbox->CopyRegion(x, y, w, h, ordinals);
+  env->ReleasePrimitiveArrayCritical(result, ordinals, 0);
+  return result;
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    nativeGetOrdinal
+ * Signature: (II)B
+ */
+jbyte Java_com_loganh_sandblaster_NativeSandBox_nativeGetOrdinal(
+    JNIEnv* env, jobject thiz, jint x, jint y) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return -1;
+  }
+  return sandbox->GetOrdinal(x, y);
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    pasteRegion
+ * Signature: (IIII[B)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_pasteRegion(
+    JNIEnv* env, jobject thiz, jint x, jint y, jint w, jint h, jbyteArray jordinals) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  if (env->GetArrayLength(jordinals) < w * h) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "region too small");
+    return;
+  }
+  jbyte* ordinals = (jbyte*) env->GetPrimitiveArrayCritical(jordinals, NULL);
+  sandbox->PasteRegion(x, y, w, h, ordinals);
+  env->ReleasePrimitiveArrayCritical(jordinals, ordinals, JNI_ABORT);
+}
+
+
 /*
  * Class:     com_loganh_sandblaster_NativeSandBox
  * Method:    update
  * Signature: ()V
  */
 void Java_com_loganh_sandblaster_NativeSandBox_update(JNIEnv* env, jobject thiz) {
-  Sandbox::Get(env, thiz)->Iterate();
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->Iterate();
 }
 
 
 /*
  * Class:     com_loganh_sandblaster_NativeSandBox
- * Method:    clear
+ * Method:    nativeClear
  * Signature: ()V
  */
-void Java_com_loganh_sandblaster_NativeSandBox_clear(JNIEnv* env, jobject thiz) {
-  Sandbox::Get(env, thiz)->Clear();
+void Java_com_loganh_sandblaster_NativeSandBox_nativeClear(JNIEnv* env, jobject thiz) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->Clear();
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    nativeSetSeed
+ * Signature: (J)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_nativeSetSeed(JNIEnv* env, jobject thiz, jlong seed) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->rng.SetSeed(seed);
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    nativeSetSkipSettledChunks
+ * Signature: (Z)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_nativeSetSkipSettledChunks(
+    JNIEnv* env, jobject thiz, jboolean skip) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->skip_settled_chunks = skip;
 }
 
 
 /*
  * Class:     com_loganh_sandblaster_NativeSandBox
- * Method:    getPixels
- * Signature: ()[I
+ * Method:    nativeAddSource
+ * Signature: (Lcom/loganh/sandblaster/Element;II)V
  */
-jintArray Java_com_loganh_sandblaster_NativeSandBox_getPixels(JNIEnv* env, jobject thiz) {
-  jintArray pixels = Sandbox::Get(env, thiz)->GetPixels(env);
-  return pixels;
+void Java_com_loganh_sandblaster_NativeSandBox_nativeAddSource(
+    JNIEnv* env, jobject thiz, jobject jelement, jint x, jint y) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  Element* element = sandbox->GetElement(env, jelement);
+  if (element) {
+    sandbox->AddSource(x, y, element);
+  } else {
+    sandbox->RemoveSource(x, y);
+  }
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    nativeRemoveSource
+ * Signature: (II)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_nativeRemoveSource(
+    JNIEnv* env, jobject thiz, jint x, jint y) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  sandbox->RemoveSource(x, y);
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    renderPixels
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+void Java_com_loganh_sandblaster_NativeSandBox_renderPixels(JNIEnv* env, jobject thiz, jobject buffer) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
+  jint* out = (jint*) env->GetDirectBufferAddress(buffer);
+  if (!out || env->GetDirectBufferCapacity(buffer) < 4 * sandbox->w * sandbox->h) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"), "need a direct buffer of the whole board");
+    return;
+  }
+  sandbox->RenderPixels(out);
 }
 
 /*
@@ -819,13 +1657,39 @@ jintArray Java_com_loganh_sandblaster_NativeSandBox_getPixels(JNIEnv* env, jobje
  */
 void Java_com_loganh_sandblaster_NativeSandBox_readFromBytes(JNIEnv* env, jobject thiz, jbyteArray bytes) {
   Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return;
+  }
   // Instantiating a DataStream enters a critical section, so no JNI interaction until we delete it.
   DataStream* stream = new DataStream(env, bytes);
-  sandbox->Read(stream);
+  bool ok = sandbox->Read(stream);
   delete stream;
+  if (!ok) {
+    env->ThrowNew(env->FindClass("java/io/IOException"), "can't read sandbox");
+  }
+}
+
+
+/*
+ * Class:     com_loganh_sandblaster_NativeSandBox
+ * Method:    writeToBytes
+ * Signature: ()[B
+ */
+jbyteArray Java_com_loganh_sandblaster_NativeSandBox_writeToBytes(JNIEnv* env, jobject thiz) {
+  Sandbox* sandbox = Sandbox::Get(env, thiz);
+  if (!sandbox) {
+    return NULL;
+  }
+  OutStream stream;
+  sandbox->Write(&stream);
+  jbyteArray result = env->NewByteArray(stream.size);
+  if (result) {
+    env->SetByteArrayRegion(result, 0, stream.size, (jbyte*) stream.data);
+  }
+  return result;
 }
 
-jint JNI_OnLoad(JavaVM* jvm, void* res) {
+jint JNI_OnLoad(JavaVM* vm, void* res) {
   return JNI_VERSION_1_2;
 }
 
@@ -6,7 +6,6 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PixelXorXfermode;
 import android.graphics.Point;
-import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.Region;
 import android.view.SurfaceHolder;
@@ -14,16 +13,27 @@ import android.view.SurfaceView;
 
 abstract public class AbsRenderer implements SurfaceHolder.Callback {
 
+  // Frame rate that frame deadlines are measured against, until the
+  // presenter says otherwise.
+  static final public float DEFAULT_FPS = 20;
+
+  // Maps board cells to view pixels and back. Kept in primitive fields, and
+  // every transform has a form that returns a primitive, so drawing a frame
+  // allocates nothing.
   public static class Camera {
 
     private float scale;
-    private PointF offset;
-    private Point transformedOffset;
+    private float panX;
+    private float panY;
     private int objectWidth;
     private int objectHeight;
     private int viewWidth;
     private int viewHeight;
 
+    // Where the top left corner of the object lands in the view.
+    private int originX;
+    private int originY;
+
     public Camera() {
       this(1);
     }
@@ -33,40 +43,69 @@ abstract public class AbsRenderer implements SurfaceHolder.Callback {
       recenter();
     }
 
+    public float getScale() {
+      return scale;
+    }
+
     public void setScale(float scale) {
       this.scale = scale;
       update();
-      transformedOffset = getOffset();
     }
 
     public void pan(float x, float y) {
-      offset.offset(x, y);
-      transformedOffset = getOffset();
+      panX += x;
+      panY += y;
+      update();
     }
 
     public void recenter() {
-      offset = new PointF(0, 0);
+      panX = 0;
+      panY = 0;
       update();
     }
 
     private void update() {
-      transformedOffset = getOffset();
+      originX = Math.round(panX + (viewWidth - objectWidth * scale) / 2);
+      originY = Math.round(panY + (viewHeight - objectHeight * scale) / 2);
     }
 
-    final private Point getOffset() {
-      return new Point(
-          Math.round(offset.x + (viewWidth - objectWidth * scale) / 2),
-          Math.round(offset.y + (viewHeight - objectHeight * scale) / 2));
+    final public int viewToObjectX(int x) {
+      return Math.round((x - originX) / scale);
+    }
+
+    final public int viewToObjectY(int y) {
+      return objectHeight - Math.round((y - originY) / scale) - 1;
+    }
+
+    final public int objectToViewX(int x) {
+      return originX + Math.round(x * scale);
+    }
+
+    final public int objectToViewY(int y) {
+      return originY + Math.round((objectHeight - y - 1) * scale);
     }
 
     final public Point viewToObject(Point pt) {
-      Point o = transformedOffset;
-      return new Point(Math.round((pt.x - o.x) / scale), objectHeight - Math.round((pt.y - o.y) / scale) - 1);
+      return new Point(viewToObjectX(pt.x), viewToObjectY(pt.y));
     }
 
     final public Point objectToView(Point pt) {
-      Point o = transformedOffset;
-      return new Point(o.x + Math.round(pt.x * scale), o.y + Math.round((objectHeight - pt.y - 1) * scale));
+      return new Point(objectToViewX(pt.x), objectToViewY(pt.y));
+    }
+
+    // Sets rect to the cells in view, as bitmap coordinates: columns from the
+    // left and rows from the top, right and bottom exclusive, and clamped to
+    // the object. Empty if none of the object is in view.
+    final public void getVisibleRect(Rect rect) {
+      // viewToObject rounds to the nearest cell, so widen by one on each
+      // side to take in cells cut by the edges of the view.
+      rect.set(Math.max(viewToObjectX(0) - 1, 0),
+          Math.max(objectHeight - viewToObjectY(0) - 2, 0),
+          Math.min(viewToObjectX(viewWidth) + 2, objectWidth),
+          Math.min(objectHeight - viewToObjectY(viewHeight) + 1, objectHeight));
+      if (rect.left >= rect.right || rect.top >= rect.bottom) {
+        rect.setEmpty();
+      }
     }
 
     public void setObjectDimensions(int width, int height) {
@@ -86,17 +125,40 @@ abstract public class AbsRenderer implements SurfaceHolder.Callback {
 
   protected SurfaceView surfaceView;
   protected Camera camera;
-  protected SandBox sandbox;
+  protected BaseSandBox sandbox;
+  protected FrameBuffer frames;
   protected FrameRateCounter fpsCounter;
+  protected FrameLatency latency;
+
+  // Time the last draw() spent uploading pixels into its bitmap, which
+  // drawFrame() records apart from the rest of drawing.
+  protected long uploadNanos;
   protected int lastFpsRight;
   protected Bitmap bitmap;
   protected Element lineElement;
-  protected Rect lineOverlay;
+  protected final Rect lineOverlay = new Rect();
+  protected boolean showLineOverlay;
   protected float lineRadius;
 
+  // Reused by every frame, so drawing allocates nothing once it's going.
+  private final Paint fpsPaint = new Paint();
+  private final Rect fpsBounds = new Rect();
+  private final Paint linePaint = new Paint();
+
+  // The cells in view, for sandboxes that publish only those.
+  private final Rect region = new Rect();
+
+  // "FPS: " and the frame rate to a tenth, rebuilt only when that changes.
+  private final char[] fpsText = "FPS: 0000000000.0".toCharArray();
+  private int fpsLength;
+  private int fpsTenths = -1;
+
   public AbsRenderer() {
     fpsCounter = new FrameRateCounter();
+    latency = new FrameLatency(DEFAULT_FPS);
+    frames = new FrameBuffer();
     camera = new Camera();
+    linePaint.setXfermode(new PixelXorXfermode(0));
   }
 
   public void setSurfaceView(SurfaceView surfaceView) {
@@ -108,7 +170,11 @@ abstract public class AbsRenderer implements SurfaceHolder.Callback {
     return camera;
   }
 
-  public void setSandBox(SandBox sandbox) {
+  public FrameLatency getLatency() {
+    return latency;
+  }
+
+  public void setSandBox(BaseSandBox sandbox) {
     this.sandbox = sandbox;
     camera.setObjectDimensions(sandbox.getWidth(), sandbox.getHeight());
   }
@@ -128,14 +194,43 @@ abstract public class AbsRenderer implements SurfaceHolder.Callback {
   public void setLineOverlay(Pen pen, int x1, int y1, int x2, int y2) {
     lineElement = pen.getElement();
     lineRadius = pen.getRadius();
-    lineOverlay = new Rect(x1, y1, x2, y2);
+    lineOverlay.set(x1, y1, x2, y2);
+    showLineOverlay = true;
   }
 
   public void clearLineOverlay() {
-    lineOverlay = null;
+    showLineOverlay = false;
   }
 
+  // Takes a frame from the sandbox's current state. Called by whichever thread
+  // updates the sandbox; drawing happens separately, in render(). A
+  // ChunkedSandBox has no pixels of its own, so only the cells in view are
+  // rendered.
+  public void publish() {
+    BaseSandBox sandbox = this.sandbox;
+    if (sandbox == null) {
+      return;
+    }
+    synchronized (sandbox) {
+      if (sandbox instanceof ChunkedSandBox) {
+        Rect region = this.region;
+        camera.getVisibleRect(region);
+        frames.publish((ChunkedSandBox) sandbox, region.left, region.top, region.width(), region.height());
+      } else {
+        frames.publish((SandBox) sandbox);
+      }
+    }
+  }
+
+  // Publishes and renders the sandbox's current state right away.
   public void draw() {
+    publish();
+    render();
+  }
+
+  // Draws the newest published frame. Doesn't touch the sandbox, so it never
+  // holds up an update.
+  synchronized public void render() {
     if (sandbox == null || surfaceView == null || surfaceView.getHolder() == null) {
       return;
     }
@@ -144,14 +239,7 @@ abstract public class AbsRenderer implements SurfaceHolder.Callback {
       canvas = surfaceView.getHolder().lockCanvas();
       if (canvas != null) {
         synchronized (canvas) {
-          synchronized (sandbox) {
-            draw(canvas);
-            drawLineOverlay(canvas);
-            fpsCounter.update();
-            if (SandActivity.DEBUG) {
-              drawFps(canvas);
-            }
-          }
+          drawFrame(canvas);
         }
       }
     } finally {
@@ -161,24 +249,61 @@ abstract public class AbsRenderer implements SurfaceHolder.Callback {
     }
   }
 
+  // Draws the newest published frame and its overlays onto the canvas.
+  void drawFrame(Canvas canvas) {
+    long start = System.nanoTime();
+    uploadNanos = 0;
+    draw(canvas);
+    drawLineOverlay(canvas);
+    fpsCounter.update();
+    if (SandActivity.DEBUG) {
+      drawFps(canvas);
+    }
+    latency.recordFrame(System.nanoTime() - start - uploadNanos, uploadNanos);
+  }
+
+  // Waits up to the given number of milliseconds for a new frame to render.
+  public boolean awaitFrame(long millis) throws InterruptedException {
+    return frames.await(millis);
+  }
+
   protected void drawFps(Canvas canvas) {
-    String fps = "FPS: " + fpsCounter.getFps();
-    Rect bounds = new Rect();
-    Paint paint = new Paint();
+    formatFps(fpsCounter.getFps());
+    Paint paint = fpsPaint;
+    Rect bounds = fpsBounds;
     paint.setColor(Color.BLACK);
-    paint.getTextBounds(fps, 0, fps.length(), bounds);
+    paint.getTextBounds(fpsText, 0, fpsLength, bounds);
     canvas.drawRect(0, 0, Math.max(lastFpsRight, bounds.right), -bounds.top, paint);
     lastFpsRight = bounds.right;
     paint.setColor(Color.WHITE);
-    canvas.drawText(fps, 0, -bounds.top, paint);
+    canvas.drawText(fpsText, 0, fpsLength, 0, -bounds.top, paint);
+  }
+
+  private void formatFps(float fps) {
+    int tenths = Math.round(fps * 10);
+    if (tenths == fpsTenths) {
+      return;
+    }
+    fpsTenths = tenths;
+    // Right to left after the "FPS: " prefix, then shifted into place.
+    int end = fpsText.length;
+    int i = end;
+    fpsText[--i] = (char) ('0' + tenths % 10);
+    fpsText[--i] = '.';
+    int whole = tenths / 10;
+    do {
+      fpsText[--i] = (char) ('0' + whole % 10);
+      whole /= 10;
+    } while (whole > 0);
+    System.arraycopy(fpsText, i, fpsText, 5, end - i);
+    fpsLength = 5 + end - i;
   }
 
   protected void drawLineOverlay(Canvas canvas) {
-    if (lineOverlay != null) {
-      Paint paint = new Paint();
+    if (showLineOverlay) {
+      Paint paint = linePaint;
       paint.setColor(lineElement == null ? Color.WHITE : lineElement.color);
-      paint.setStrokeWidth(camera.scale * Math.max(1, lineRadius));
-      paint.setXfermode(new PixelXorXfermode(0));
+      paint.setStrokeWidth(camera.getScale() * Math.max(1, lineRadius));
       canvas.drawLine(lineOverlay.left, lineOverlay.top, lineOverlay.right, lineOverlay.bottom, paint);
     }
   }
@@ -0,0 +1,18 @@
+package com.loganh.sandblaster;
+
+
+// Sends Log messages to the system log.
+public class AndroidLogSink implements Log.Sink {
+
+  public void i(String tag, String msg) {
+    android.util.Log.i(tag, msg);
+  }
+
+  public void e(String tag, String msg, Throwable throwable) {
+    if (throwable == null) {
+      android.util.Log.e(tag, msg);
+    } else {
+      android.util.Log.e(tag, msg, throwable);
+    }
+  }
+}
@@ -1,21 +1,23 @@
 package com.loganh.sandblaster;
 
-import java.io.*;
-
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Random;
-
-import android.graphics.Point;
-
 abstract public class BaseSandBox {
 
   public final static int DEFAULT_WIDTH = 120;
   public final static int DEFAULT_HEIGHT = 160;
-  public final static float SERIALIZATION_VERSION = 1.6f;
+  public final static float SERIALIZATION_VERSION = 1.8f;
   public final static float SOURCE_PROBABILITY = 0.4f;
 
+  // Cell value for a location without a particle.
+  public final static byte EMPTY = -1;
+
+  // The board is tracked in square chunks of CHUNK_SIZE cells on a side.
+  public final static int CHUNK_SHIFT = 4;
+  public final static int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+  // A chunk keeps being simulated for this many iterations after a particle
+  // in it or in a neighboring chunk changed.
+  public final static int CHUNK_WAKE_ITERATIONS = 32;
+
   public final static int[][] NEIGHBORS = {
     { 0, 1 },
     { 1, 1 },
@@ -39,18 +41,9 @@ abstract public class BaseSandBox {
     }
   }
 
-  // Element of the particle at (x, y).
-  Element[][] elements;
-
-  // Exported snapshot of particle colors.
-  int[] pixels;
-
   // Table of elements.
   public ElementTable elementTable;
 
-  // Points where particles are continuously emitted.
-  protected HashMap<Point, Element> sources;
-
   // Iterating.
   public boolean playing;
 
@@ -58,14 +51,9 @@ abstract public class BaseSandBox {
   protected int width;
   protected int height;
 
-  // Age of the particle at (x, y).
-  protected int[][] ages;
-
-  // Keep track of which iteration certain events occurred in for each particle.
+  // The iteration being simulated, or -1 before the first update(). Particle
+  // timestamps are iteration numbers.
   int iteration;
-  protected int[][] lastSet;
-  protected int[][] lastChange;
-  protected int[][] lastFloated;
 
   public BaseSandBox() {
     this(DEFAULT_WIDTH, DEFAULT_HEIGHT);
@@ -77,17 +65,7 @@ abstract public class BaseSandBox {
     clear();
   }
 
-  synchronized public void clear() {
-    sources = new HashMap<Point, Element>();
-    elements = new Element[width][height];
-    ages = new int[width][height];
-    lastSet = new int[width][height];
-    lastChange = new int[width][height];
-    lastFloated = new int[width][height];
-    iteration = -1;
-    pixels = new int[width * height];
-    sources = new HashMap<Point, Element>();
-  }
+  abstract public void clear();
 
   public int getWidth() {
     return width;
@@ -97,42 +75,69 @@ abstract public class BaseSandBox {
     return height;
   }
 
-  synchronized public void addSource(Element element, int x, int y) {
-    if (element == null) {
-      removeSource(x, y);
+  // The element at (x, y), or null if the cell is empty or off the board.
+  abstract public Element getElement(int x, int y);
+
+  // Places a source at (x, y), or removes it if element is null.
+  abstract public void addSource(Element element, int x, int y);
+  abstract public void removeSource(int x, int y);
+  abstract public Source[] getSources();
+
+  public void setParticle(int x, int y, Element element, int radius) {
+    setParticle(x, y, element, radius, 0.4f);
+  }
+
+  abstract public void setParticle(int x, int y, Element element, int radius, float prob);
+  abstract public void setParticle(int x, int y, Element element);
+
+  synchronized public void line(Element element, int radius, int x1, int y1, int x2, int y2) {
+    int dx = x1 - x2;
+    int dy = y1 - y2;
+    int d = Math.max(Math.abs(dx), Math.abs(dy));
+    if (d == 0) {
+      setParticle(x2, y2, element, radius, 0.1f);
       return;
     }
-    if (x >= 0 && y >= 0 && x < width && y < height) {
-      sources.put(new Point(x, y), element);
+    // Step i is at (x2, y2) + (i / d) * (dx, dy), rounded half up.
+    for (int i = 0; i <= d; i++) {
+      int x = x2 + roundDiv(i * dx, d);
+      int y = y2 + roundDiv(i * dy, d);
+      setParticle(x, y, element, radius, 0.1f);
     }
   }
 
-  synchronized public void removeSource(int x, int y) {
-    // TODO: ndk hack!
-    if (sources == null) { return; }
-    sources.remove(new Point(x, y));
+  // Rounds n / d half up, for positive d.
+  static private int roundDiv(int n, int d) {
+    int q = 2 * n + d;
+    int r = q / (2 * d);
+    return q % (2 * d) < 0 ? r - 1 : r;
   }
 
-  synchronized public Source[] getSources() {
-    Source[] result = new Source[sources.size()];
-    int i = 0;
-    for (Point pt : sources.keySet()) {
-      result[i++] = new Source(pt.x, pt.y, sources.get(pt));
-    }
-    return result;
+  public void line(Element element, int x1, int y1, int x2, int y2) {
+    line(element, 0, x1, y1, x2, y2);
   }
 
-  int[] getPixels() {
-    return pixels;
-  }
+  // Bulk edits. Each sets its cells as setParticle(x, y, element) would, one
+  // row span at a time, and leaves out whatever falls off the board.
 
-  public void setParticle(int x, int y, Element element, int radius) {
-    setParticle(x, y, element, radius, 0.4f);
-  }
+  // Fills the w by h rectangle whose lower left corner is (x, y).
+  abstract public void fillRect(int x, int y, int w, int h, Element element);
+
+  // Fills every cell within radius of (x, y), the same disc the brush covers.
+  abstract public void fillCircle(int x, int y, int radius, Element element);
+
+  // Replaces the horizontally and vertically connected run of whatever is at
+  // (x, y), empty space included, and returns the number of cells changed.
+  abstract public int floodFill(int x, int y, Element element);
+
+  // Returns the element ordinals (or EMPTY) of the w by h rectangle whose
+  // lower left corner is (x, y), row by row from the bottom. Cells off the
+  // board read as EMPTY, and a rectangle of no size gives an empty region.
+  abstract public byte[] copyRegion(int x, int y, int w, int h);
+
+  // Writes a region laid out as copyRegion returns it back at (x, y). EMPTY
+  // ordinals clear their cells.
+  abstract public void pasteRegion(int x, int y, int w, int h, byte[] ordinals);
 
-  abstract public void setParticle(int x, int y, Element element, int radius, float prob);
-  abstract public void setParticle(int x, int y, Element element);
-  abstract public void line(Element element, int radius, int x1, int y1, int x2, int y2);
-  abstract public void line(Element element, int x1, int y1, int x2, int y2);
   abstract public void update();
 }
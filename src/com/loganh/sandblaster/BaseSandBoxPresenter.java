@@ -9,7 +9,7 @@ public class BaseSandBoxPresenter implements SandBoxPresenter {
   protected Set<PlaybackListener> playbackListeners;
   protected Set<EditListener> editListeners;
   protected Set<LoadListener> loadListeners;
-  protected SandBox sandbox;
+  protected BaseSandBox sandbox;
   protected AbsRenderer renderer;
   protected UndoStack undoStack;
   protected Pen pen;
@@ -62,11 +62,20 @@ public class BaseSandBoxPresenter implements SandBoxPresenter {
     return undoStack;
   }
 
-  public SandBox getSandBox() {
+  // Pushes the sandbox's state onto the undo stack. A ChunkedSandBox isn't
+  // pushed: the stack keeps a dense copy of the board, which for a world that
+  // size would be far past its budget.
+  public void pushUndo() {
+    if (sandbox instanceof SandBox) {
+      undoStack.push((SandBox) sandbox);
+    }
+  }
+
+  public BaseSandBox getSandBox() {
     return sandbox;
   }
 
-  public void setSandBox(SandBox sandbox) {
+  public void setSandBox(BaseSandBox sandbox) {
     this.sandbox = sandbox;
     renderer.setSandBox(sandbox);
   }
@@ -181,6 +190,10 @@ public class BaseSandBoxPresenter implements SandBoxPresenter {
     return false;
   }
 
+  public boolean newLargeSandBox() {
+    return false;
+  }
+
   public boolean saveSandBox(String name) {
     return false;
   }
@@ -0,0 +1,201 @@
+package com.loganh.sandblaster;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+
+// A sandbox laid out for bulk copying. A fixed header is followed by one
+// fixed-width column per kind of particle state, each the size of the board,
+// so reading one back is a handful of array copies straight out of a buffer
+// (typically a mapped file) rather than a decode per particle.
+//
+//   int     MAGIC, always big-endian
+//   byte    byte order of the rest: 0 for big-endian, 1 for little-endian
+//   byte    engine that wrote it: 0 for SandBox, 1 for NativeSandBox
+//   byte[2] padding
+//   int     VERSION
+//   int     width, height, iteration
+//   long    random state
+//   int     length of the element table, then the table as ElementTable.write
+//           writes it, padded to a multiple of 4 bytes
+//   int     number of sources, then x, y and element ordinal of each
+//   byte    element ordinal (or EMPTY) of each cell, padded to a multiple of
+//           4 bytes
+//   int     ages, lastSet, lastChange and lastFloated of each cell, one
+//           column each
+//   int     chunkChanged and chunkRestless of each chunk, one column each
+//
+// Cells are in row-major order, as in the sandbox's own arrays.
+abstract public class BinarySnapshot {
+
+  // "SAND".
+  static final public int MAGIC = 0x53414e44;
+  static final public int VERSION = 1;
+
+  static final private int HEADER_SIZE = 8;
+  static final private int ENGINE_OFFSET = 5;
+
+  // The fewest bytes each cell takes: its ordinal and four ints of state.
+  static final private int CELL_SIZE = 17;
+
+  // Whether the buffer's remaining bytes start with a binary snapshot.
+  static public boolean isSnapshot(ByteBuffer buffer) {
+    return buffer.remaining() >= HEADER_SIZE
+        && buffer.order(ByteOrder.BIG_ENDIAN).getInt(buffer.position()) == MAGIC;
+  }
+
+  // Whether the snapshot at the buffer's position was written from the
+  // native engine, and should be loaded back into it.
+  static public boolean isNative(ByteBuffer buffer) {
+    return isSnapshot(buffer) && buffer.get(buffer.position() + ENGINE_OFFSET) == 1;
+  }
+
+  static private int pad(int n) {
+    return (n + 3) & ~3;
+  }
+
+  static private byte[] writeElementTable(ElementTable elementTable) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    elementTable.write(new DataOutputStream(stream));
+    return stream.toByteArray();
+  }
+
+  // Writes the sandbox to a new buffer, in the platform's byte order. The
+  // caller must hold the sandbox's lock.
+  static public ByteBuffer write(SandBox sandbox) throws IOException {
+    return write(sandbox, ByteOrder.nativeOrder());
+  }
+
+  static ByteBuffer write(SandBox sandbox, ByteOrder order) throws IOException {
+    int w = sandbox.getWidth();
+    int h = sandbox.getHeight();
+    int cells = w * h;
+    int chunks = sandbox.chunkChanged.length;
+    byte[] table = writeElementTable(sandbox.elementTable);
+    int size = HEADER_SIZE + 24 + 4 + pad(table.length) + 4 + 12 * sandbox.sources.size()
+        + pad(cells) + 16 * cells + 8 * chunks;
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC);
+    buffer.put((byte) (order == ByteOrder.BIG_ENDIAN ? 0 : 1));
+    buffer.put((byte) (sandbox instanceof NativeSandBox ? 1 : 0));
+    buffer.position(HEADER_SIZE);
+    buffer.order(order);
+
+    buffer.putInt(VERSION);
+    buffer.putInt(w);
+    buffer.putInt(h);
+    buffer.putInt(sandbox.iteration);
+    buffer.putLong(sandbox.rng.getState());
+    buffer.putInt(table.length);
+    buffer.put(table);
+    buffer.position(buffer.position() + pad(table.length) - table.length);
+
+    buffer.putInt(sandbox.sources.size());
+    for (int i = 0; i < sandbox.sources.size(); i++) {
+      int position = sandbox.sources.position(i);
+      buffer.putInt(position % w);
+      buffer.putInt(position / w);
+      buffer.putInt(sandbox.sources.ordinal(i));
+    }
+
+    buffer.put(sandbox.cells);
+    buffer.position(buffer.position() + pad(cells) - cells);
+    putInts(buffer, sandbox.ages);
+    putInts(buffer, sandbox.lastSet);
+    putInts(buffer, sandbox.lastChange);
+    putInts(buffer, sandbox.lastFloated);
+    putInts(buffer, sandbox.chunkChanged);
+    putInts(buffer, sandbox.chunkRestless);
+    buffer.flip();
+    return buffer;
+  }
+
+  static public void write(SandBox sandbox, WritableByteChannel channel) throws IOException {
+    ByteBuffer buffer;
+    synchronized (sandbox) {
+      buffer = write(sandbox);
+    }
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  static private void putInts(ByteBuffer buffer, int[] values) {
+    buffer.asIntBuffer().put(values);
+    buffer.position(buffer.position() + 4 * values.length);
+  }
+
+  static private void getInts(ByteBuffer buffer, int[] values) {
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + 4 * values.length);
+  }
+
+  // Reads a sandbox from the buffer's remaining bytes, leaving the buffer
+  // positioned just past it. This is always a SandBox; see isNative().
+  static public SandBox read(ByteBuffer buffer) throws IOException {
+    if (!isSnapshot(buffer)) {
+      throw new IOException("not a binary snapshot");
+    }
+    int start = buffer.position();
+    buffer.order(buffer.get(start + 4) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    buffer.position(start + HEADER_SIZE);
+    try {
+      if (buffer.getInt() != VERSION) {
+        throw new IOException("unknown binary snapshot version");
+      }
+      int w = buffer.getInt();
+      int h = buffer.getInt();
+      if (w <= 0 || h <= 0 || (long) w * h * CELL_SIZE > buffer.remaining()) {
+        throw new IOException("bad dimensions " + w + "x" + h);
+      }
+      SandBox sandbox = new SandBox(w, h);
+      sandbox.iteration = buffer.getInt();
+      sandbox.rng.setState(buffer.getLong());
+
+      int tableLength = buffer.getInt();
+      if (tableLength < 0 || tableLength > buffer.remaining()) {
+        throw new IOException("bad element table length " + tableLength);
+      }
+      byte[] table = new byte[tableLength];
+      buffer.get(table);
+      buffer.position(buffer.position() + pad(table.length) - table.length);
+      ElementTable elementTable = ElementTable.read(new DataInputStream(new ByteArrayInputStream(table)));
+      sandbox.elementTable = elementTable;
+
+      int nsources = buffer.getInt();
+      for (int i = 0; i < nsources; i++) {
+        int x = buffer.getInt();
+        int y = buffer.getInt();
+        sandbox.addSource(elementTable.resolve((byte) buffer.getInt()), x, y);
+      }
+
+      int cells = w * h;
+      buffer.get(sandbox.cells);
+      buffer.position(buffer.position() + pad(cells) - cells);
+      getInts(buffer, sandbox.ages);
+      getInts(buffer, sandbox.lastSet);
+      getInts(buffer, sandbox.lastChange);
+      getInts(buffer, sandbox.lastFloated);
+      getInts(buffer, sandbox.chunkChanged);
+      getInts(buffer, sandbox.chunkRestless);
+
+      int nelements = elementTable.elements.length;
+      for (int i = 0; i < cells; i++) {
+        int ordinal = sandbox.cells[i];
+        if (ordinal != BaseSandBox.EMPTY && (ordinal < 0 || ordinal >= nelements)) {
+          throw new IOException("bad element ordinal " + ordinal);
+        }
+      }
+      sandbox.repaint();
+      return sandbox;
+    } catch (RuntimeException ex) {
+      // Buffer underflows and the like mean a truncated or corrupt snapshot.
+      IOException ioex = new IOException("corrupt binary snapshot");
+      ioex.initCause(ex);
+      throw ioex;
+    }
+  }
+}
@@ -0,0 +1,987 @@
+package com.loganh.sandblaster;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.Arrays;
+
+// A sandbox for worlds far too big to keep as flat arrays, 4096 cells on a
+// side and up. The board is stored in tiles of CHUNK_SIZE by CHUNK_SIZE
+// cells, allocated when a particle is first written into one and freed once
+// it has been empty and quiet for CHUNK_WAKE_ITERATIONS iterations, so memory
+// follows the particles rather than the area. No tile is allocated past the
+// memory budget: particles that would move into a tile past it stay put, and
+// those that would be placed in one are dropped and counted.
+//
+// Particles follow SandBox's rules, and settled tiles sleep just as settled
+// chunks do. Nothing keeps a pixel array up to date; renderRegion() draws
+// whatever part of the world is in view from the tiles that are allocated.
+public class ChunkedSandBox extends BaseSandBox implements Recordable {
+
+  // Starts a serialized ChunkedSandBox, where a SandBox starts with its
+  // version number.
+  public final static int MAGIC = 0x53424348;
+
+  public final static long DEFAULT_MEMORY_BUDGET = 32L << 20;
+
+  public final static long MAX_CELLS = Integer.MAX_VALUE;
+
+  final static int TILE_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+  // What a tile costs, for the memory budget: its cells, the four int arrays
+  // of particle state, and a rough allowance for the objects themselves.
+  final static int TILE_BYTES = TILE_CELLS * (1 + 4 * 4) + 128;
+
+  // A CHUNK_SIZE square of the world. Cells are indexed row by row from the
+  // tile's lower left corner.
+  final static class Tile {
+    final int tx;
+    final int ty;
+    final long key;
+    final byte[] cells = new byte[TILE_CELLS];
+    final int[] ages = new int[TILE_CELLS];
+    final int[] lastSet = new int[TILE_CELLS];
+    final int[] lastChange = new int[TILE_CELLS];
+    final int[] lastFloated = new int[TILE_CELLS];
+
+    // Number of cells that aren't EMPTY.
+    int count;
+
+    // Last iteration in which a particle in the tile changed, and in which a
+    // source or a decaying or transmuting particle was seen in it.
+    int changed;
+    int restless;
+
+    // Whether the current iteration simulates the tile.
+    boolean awake;
+
+    Tile(int tx, int ty) {
+      this.tx = tx;
+      this.ty = ty;
+      key = key(tx, ty);
+      Arrays.fill(cells, EMPTY);
+    }
+  }
+
+  // Tiles by key, in an open-addressed table with linear probing.
+  final static class TileMap {
+    private long[] keys;
+    private Tile[] tiles;
+    private int size;
+
+    TileMap() {
+      keys = new long[64];
+      tiles = new Tile[64];
+    }
+
+    static private int hash(long key) {
+      return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    Tile get(long key) {
+      int mask = tiles.length - 1;
+      for (int i = hash(key) & mask; tiles[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return tiles[i];
+        }
+      }
+      return null;
+    }
+
+    // Adds a tile whose key isn't in the map yet.
+    void put(Tile tile) {
+      if (2 * (size + 1) > tiles.length) {
+        long[] oldKeys = keys;
+        Tile[] oldTiles = tiles;
+        keys = new long[2 * oldKeys.length];
+        tiles = new Tile[2 * oldTiles.length];
+        for (int i = 0; i < oldTiles.length; i++) {
+          if (oldTiles[i] != null) {
+            insert(oldKeys[i], oldTiles[i]);
+          }
+        }
+      }
+      insert(tile.key, tile);
+      size++;
+    }
+
+    private void insert(long key, Tile tile) {
+      int mask = tiles.length - 1;
+      int i = hash(key) & mask;
+      while (tiles[i] != null) {
+        i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      tiles[i] = tile;
+    }
+
+    void remove(long key) {
+      int mask = tiles.length - 1;
+      int i = hash(key) & mask;
+      while (tiles[i] != null && keys[i] != key) {
+        i = (i + 1) & mask;
+      }
+      if (tiles[i] == null) {
+        return;
+      }
+      tiles[i] = null;
+      size--;
+      // Shift later entries of the probe run back into the hole, so lookups
+      // never stop short of them.
+      for (int j = (i + 1) & mask; tiles[j] != null; j = (j + 1) & mask) {
+        int home = hash(keys[j]) & mask;
+        if (((j - home) & mask) >= ((j - i) & mask)) {
+          keys[i] = keys[j];
+          tiles[i] = tiles[j];
+          tiles[j] = null;
+          i = j;
+        }
+      }
+    }
+
+    int size() {
+      return size;
+    }
+  }
+
+  static long key(int tx, int ty) {
+    return ((long) ty << 32) | (tx & 0xffffffffL);
+  }
+
+  // Index of (x, y) within its tile.
+  static private int offset(int x, int y) {
+    return ((y & (CHUNK_SIZE - 1)) << CHUNK_SHIFT) | (x & (CHUNK_SIZE - 1));
+  }
+
+  static private byte ordinal(Element element) {
+    return element == null ? EMPTY : (byte) element.ordinal;
+  }
+
+  SandBox.RNG rng = new SandBox.RNG();
+
+  // Allocated tiles, by key and in a list that update() keeps sorted bottom
+  // to top, left to right.
+  private TileMap map;
+  private Tile[] tiles;
+  private int ntiles;
+
+  // The tile last looked up, which is nearly always the next one wanted.
+  private Tile cached;
+
+  private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+  private int maxTiles = (int) (DEFAULT_MEMORY_BUDGET / TILE_BYTES);
+
+  // Particles dropped for want of a tile.
+  private long dropped;
+
+  // Points where particles are continuously emitted, keyed by y * width + x
+  // as SandBox's are.
+  private SourceSet sources;
+
+  private boolean skipSettledChunks = true;
+
+  // Worlds are at most MAX_CELLS cells, so that source positions fit in an
+  // int.
+  public ChunkedSandBox(int width, int height) {
+    super(width, height);
+    if ((long) width * height > MAX_CELLS) {
+      throw new IllegalArgumentException("world too big: " + width + "x" + height);
+    }
+  }
+
+  @Override
+  synchronized public void clear() {
+    map = new TileMap();
+    tiles = new Tile[64];
+    ntiles = 0;
+    cached = null;
+    iteration = -1;
+    sources = new SourceSet();
+  }
+
+  synchronized public void setSeed(long seed) {
+    rng.setSeed(seed);
+  }
+
+  public boolean getSkipSettledChunks() {
+    return skipSettledChunks;
+  }
+
+  // As SandBox.setSkipSettledChunks(). Tiles that aren't allocated are empty,
+  // so they're never simulated either way.
+  synchronized public void setSkipSettledChunks(boolean skip) {
+    skipSettledChunks = skip;
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  // Caps the memory tiles may take up. Tiles already allocated are kept, but
+  // no more are allocated while the budget is spent.
+  synchronized public void setMemoryBudget(long bytes) {
+    memoryBudget = bytes;
+    maxTiles = (int) Math.min(Integer.MAX_VALUE, bytes / TILE_BYTES);
+  }
+
+  public int getTileCount() {
+    return ntiles;
+  }
+
+  // Memory taken up by tiles, by the estimate the budget uses.
+  public long getMemoryUse() {
+    return (long) ntiles * TILE_BYTES;
+  }
+
+  // Particles drawn, emitted or produced where the budget left no tile for
+  // them, since the sandbox was made.
+  public long getDroppedCount() {
+    return dropped;
+  }
+
+  // The tile holding (x, y), which must be on the board, or null if it isn't
+  // allocated.
+  private Tile tileAt(int x, int y) {
+    int tx = x >> CHUNK_SHIFT;
+    int ty = y >> CHUNK_SHIFT;
+    Tile tile = cached;
+    if (tile != null && tile.tx == tx && tile.ty == ty) {
+      return tile;
+    }
+    tile = map.get(key(tx, ty));
+    if (tile != null) {
+      cached = tile;
+    }
+    return tile;
+  }
+
+  // The tile holding (x, y), allocated if need be, or null if the budget is
+  // spent.
+  private Tile tileFor(int x, int y) {
+    Tile tile = tileAt(x, y);
+    if (tile == null && ntiles < maxTiles) {
+      tile = new Tile(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT);
+      // Quiet until something is written into it.
+      tile.changed = iteration - CHUNK_WAKE_ITERATIONS - 1;
+      tile.restless = tile.changed;
+      addTile(tile);
+    }
+    return tile;
+  }
+
+  private void addTile(Tile tile) {
+    map.put(tile);
+    if (ntiles == tiles.length) {
+      Tile[] more = new Tile[2 * ntiles];
+      System.arraycopy(tiles, 0, more, 0, ntiles);
+      tiles = more;
+    }
+    tiles[ntiles++] = tile;
+    cached = tile;
+  }
+
+  private byte ordinalAt(int x, int y) {
+    Tile tile = tileAt(x, y);
+    return tile == null ? EMPTY : tile.cells[offset(x, y)];
+  }
+
+  private Element elementAt(int x, int y) {
+    byte ordinal = ordinalAt(x, y);
+    return ordinal == EMPTY ? null : elementTable.elements[ordinal];
+  }
+
+  @Override
+  public Element getElement(int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return null;
+    }
+    return elementAt(x, y);
+  }
+
+  // Sets (x, y), which must be on the board, as SandBox.setParticle() does.
+  // Returns false if the cell needed a tile past the budget and was left
+  // empty.
+  private boolean set(int x, int y, byte ordinal) {
+    Tile tile = ordinal == EMPTY ? tileAt(x, y) : tileFor(x, y);
+    if (tile == null) {
+      if (ordinal != EMPTY) {
+        dropped++;
+      }
+      return ordinal == EMPTY;
+    }
+    int i = offset(x, y);
+    tile.lastSet[i] = iteration;
+    byte old = tile.cells[i];
+    if (ordinal != old) {
+      tile.cells[i] = ordinal;
+      tile.ages[i] = 0;
+      tile.lastChange[i] = iteration;
+      tile.changed = iteration;
+      if (old == EMPTY) {
+        tile.count++;
+      } else if (ordinal == EMPTY) {
+        tile.count--;
+      }
+    }
+    return true;
+  }
+
+  public void setParticle(int x, int y, Element element, int radius, float prob) {
+    if (element == null || !element.mobile) {
+      fillCircle(x, y, radius, element);
+      return;
+    }
+    int r2 = radius * radius;
+    for (int i = -radius; i <= radius; i++) {
+      for (int j = -radius; j <= radius; j++) {
+        if (i * i + j * j <= r2 && rng.nextFloat() < prob) {
+          setParticle(x + i, y + j, element);
+        }
+      }
+    }
+  }
+
+  public void setParticle(int x, int y, Element element) {
+    if (x >= 0 && y >= 0 && x < width && y < height) {
+      set(x, y, ordinal(element));
+    }
+  }
+
+  // Sets cells x0 through x1 of row y, which must be on the board, to the
+  // given ordinal, or to ordinals[offset] onwards if ordinals isn't null.
+  // Returns false if any cell was dropped for want of a tile.
+  private boolean setSpan(int y, int x0, int x1, byte ordinal, byte[] ordinals, int offset) {
+    boolean written = true;
+    for (int x = x0; x <= x1; ) {
+      int end = Math.min(x1, x | (CHUNK_SIZE - 1));
+      if (ordinals == null && ordinal == EMPTY && tileAt(x, y) == null) {
+        // Already clear.
+        x = end + 1;
+        continue;
+      }
+      for (; x <= end; x++) {
+        if (!set(x, y, ordinals == null ? ordinal : ordinals[offset + x - x0])) {
+          written = false;
+        }
+      }
+    }
+    return written;
+  }
+
+  synchronized public void fillRect(int x, int y, int w, int h, Element element) {
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + w, width) - 1;
+    if (x0 > x1) {
+      return;
+    }
+    byte ordinal = ordinal(element);
+    for (int row = Math.max(y, 0); row < Math.min(y + h, height); row++) {
+      setSpan(row, x0, x1, ordinal, null, 0);
+    }
+  }
+
+  synchronized public void fillCircle(int x, int y, int radius, Element element) {
+    byte ordinal = ordinal(element);
+    int r2 = radius * radius;
+    for (int j = Math.max(-radius, -y); j <= radius && y + j < height; j++) {
+      // Widest i with i * i + j * j <= r2.
+      int half = (int) Math.sqrt(r2 - j * j);
+      while (half * half + j * j > r2) {
+        half--;
+      }
+      while ((half + 1) * (half + 1) + j * j <= r2) {
+        half++;
+      }
+      int x0 = Math.max(x - half, 0);
+      int x1 = Math.min(x + half, width - 1);
+      if (x0 <= x1) {
+        setSpan(y + j, x0, x1, ordinal, null, 0);
+      }
+    }
+  }
+
+  // As SandBox.floodFill(), except that filling open space stops once the
+  // memory budget is spent, rather than covering the world.
+  synchronized public int floodFill(int x, int y, Element element) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return 0;
+    }
+    byte target = ordinalAt(x, y);
+    byte ordinal = ordinal(element);
+    if (target == ordinal) {
+      return 0;
+    }
+    int filled = 0;
+    int[] seeds = new int[64];
+    int nseeds = 0;
+    seeds[nseeds++] = x;
+    seeds[nseeds++] = y;
+    while (nseeds > 0) {
+      int sy = seeds[--nseeds];
+      int sx = seeds[--nseeds];
+      if (ordinalAt(sx, sy) != target) {
+        continue;
+      }
+      int left = sx;
+      int right = sx;
+      while (left > 0 && ordinalAt(left - 1, sy) == target) {
+        left--;
+      }
+      while (right < width - 1 && ordinalAt(right + 1, sy) == target) {
+        right++;
+      }
+      boolean written = setSpan(sy, left, right, ordinal, null, 0);
+      filled += right - left + 1;
+      if (!written) {
+        break;
+      }
+      for (int ny = sy - 1; ny <= sy + 1; ny += 2) {
+        if (ny < 0 || ny >= height) {
+          continue;
+        }
+        boolean inRun = false;
+        for (int nx = left; nx <= right; nx++) {
+          boolean match = ordinalAt(nx, ny) == target;
+          if (match && !inRun) {
+            if (nseeds == seeds.length) {
+              int[] more = new int[2 * nseeds];
+              System.arraycopy(seeds, 0, more, 0, nseeds);
+              seeds = more;
+            }
+            seeds[nseeds++] = nx;
+            seeds[nseeds++] = ny;
+          }
+          inRun = match;
+        }
+      }
+    }
+    return filled;
+  }
+
+  synchronized public byte[] copyRegion(int x, int y, int w, int h) {
+    if (w <= 0 || h <= 0) {
+      return new byte[0];
+    }
+    byte[] ordinals = new byte[w * h];
+    Arrays.fill(ordinals, EMPTY);
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + w, width);
+    for (int row = Math.max(y, 0); row < Math.min(y + h, height); row++) {
+      for (int col = x0; col < x1; col++) {
+        ordinals[(row - y) * w + col - x] = ordinalAt(col, row);
+      }
+    }
+    return ordinals;
+  }
+
+  synchronized public void pasteRegion(int x, int y, int w, int h, byte[] ordinals) {
+    if (ordinals.length < w * h) {
+      throw new IllegalArgumentException("region needs " + w * h + " cells, got " + ordinals.length);
+    }
+    int nelements = elementTable.elements.length;
+    for (byte o : ordinals) {
+      if (o != EMPTY && (o < 0 || o >= nelements)) {
+        throw new IllegalArgumentException("bad element ordinal " + o);
+      }
+    }
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + w, width) - 1;
+    if (x0 > x1) {
+      return;
+    }
+    for (int row = Math.max(y, 0); row < Math.min(y + h, height); row++) {
+      setSpan(row, x0, x1, EMPTY, ordinals, (row - y) * w + x0 - x);
+    }
+  }
+
+  @Override
+  synchronized public void addSource(Element element, int x, int y) {
+    if (element == null) {
+      removeSource(x, y);
+      return;
+    }
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return;
+    }
+    sources.put(y * width + x, (byte) element.ordinal);
+  }
+
+  @Override
+  synchronized public void removeSource(int x, int y) {
+    if (x >= 0 && y >= 0 && x < width && y < height) {
+      sources.remove(y * width + x);
+    }
+  }
+
+  @Override
+  synchronized public Source[] getSources() {
+    Source[] result = new Source[sources.size()];
+    for (int i = 0; i < result.length; i++) {
+      int position = sources.position(i);
+      result[i] = new Source(position % width, position / width, elementTable.elements[sources.ordinal(i)]);
+    }
+    return result;
+  }
+
+  synchronized public void update() {
+    SourceSet sources = this.sources;
+    for (int i = 0; i < sources.size(); i++) {
+      int position = sources.position(i);
+      int x = position % width;
+      int y = position / width;
+      // A source keeps its tile allocated and awake, even while it's empty.
+      Tile tile = tileFor(x, y);
+      if (tile != null) {
+        tile.restless = iteration + 1;
+      }
+      if (rng.nextFloat() < SOURCE_PROBABILITY) {
+        set(x, y, sources.ordinal(i));
+      }
+    }
+
+    ++iteration;
+
+    sortTiles();
+    findAwakeTiles();
+    sweep();
+    freeQuietTiles();
+  }
+
+  // Puts the tiles in sweep order. Tiles only come and go a few at a time, so
+  // the list is nearly sorted already.
+  private void sortTiles() {
+    for (int i = 1; i < ntiles; i++) {
+      Tile tile = tiles[i];
+      int j = i;
+      while (j > 0 && tiles[j - 1].key > tile.key) {
+        tiles[j] = tiles[j - 1];
+        j--;
+      }
+      tiles[j] = tile;
+    }
+  }
+
+  // As SandBox.findAwakeChunks(), with missing tiles as quiet as can be.
+  private void findAwakeTiles() {
+    int since = iteration - CHUNK_WAKE_ITERATIONS;
+    for (int t = 0; t < ntiles; t++) {
+      Tile tile = tiles[t];
+      boolean wake = !skipSettledChunks || tile.restless >= iteration - 1;
+      for (int ny = tile.ty - 1; !wake && ny <= tile.ty + 1; ny++) {
+        for (int nx = tile.tx - 1; nx <= tile.tx + 1; nx++) {
+          Tile neighbor = nx == tile.tx && ny == tile.ty ? tile : map.get(key(nx, ny));
+          if (neighbor != null && neighbor.changed >= since) {
+            wake = true;
+            break;
+          }
+        }
+      }
+      tile.awake = wake;
+    }
+  }
+
+  // Sweeps each row of the world that has awake tiles, bottom to top, in a
+  // random direction per row. Tiles allocated along the way wait for the next
+  // iteration.
+  private void sweep() {
+    Tile[] tiles = this.tiles;
+    int n = ntiles;
+    for (int start = 0; start < n; ) {
+      int ty = tiles[start].ty;
+      int end = start;
+      boolean awake = false;
+      for (; end < n && tiles[end].ty == ty; end++) {
+        awake |= tiles[end].awake;
+      }
+      if (awake) {
+        int y0 = ty << CHUNK_SHIFT;
+        int y1 = Math.min(y0 + CHUNK_SIZE, height);
+        for (int y = y0; y < y1; y++) {
+          if (rng.nextBoolean()) {
+            for (int t = end - 1; t >= start; t--) {
+              if (tiles[t].awake) {
+                updateRow(tiles[t], y, -1);
+              }
+            }
+          } else {
+            for (int t = start; t < end; t++) {
+              if (tiles[t].awake) {
+                updateRow(tiles[t], y, 1);
+              }
+            }
+          }
+        }
+      }
+      start = end;
+    }
+  }
+
+  // Applies SandBox.updateRows() to the cells of one tile in row y.
+  private void updateRow(Tile tile, int y, int dir) {
+    Element[] table = elementTable.elements;
+    long[] reactive = elementTable.reactive;
+    int reactiveWords = elementTable.reactiveWords;
+    byte[] cells = tile.cells;
+    int left = tile.tx << CHUNK_SHIFT;
+    int right = Math.min(left + CHUNK_SIZE, width) - 1;
+    int start = dir > 0 ? left : right;
+    int last = dir > 0 ? right + 1 : left - 1;
+    for (int x = start; x != last; x += dir) {
+      int i = offset(x, y);
+      byte ordinal = cells[i];
+      if (ordinal == EMPTY) {
+        continue;
+      }
+      Element e = table[ordinal];
+      if (e.decayProbability > 0 || e.transmutationCount > 0) {
+        tile.restless = iteration;
+      }
+
+      // Vertical movement.
+      if (y == 0 && e.density > 0) {
+        // Drop out of the world.
+        set(x, y, EMPTY);
+        continue;
+      }
+      if (y == height - 1 && e.density < 0) {
+        // Float out of the world.
+        set(x, y, EMPTY);
+      }
+
+      int curLastSet = tile.lastSet[i];
+
+      // Transmutations.
+      if (e.transmutationCount > 0 && curLastSet != iteration) {
+        int reactiveBase = e.ordinal * reactiveWords;
+        for (int n = 0; n < NEIGHBORS.length; n++) {
+          int nx = x + NEIGHBORS[n][0];
+          int ny = y + NEIGHBORS[n][1];
+          if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+            Tile neighbor = tileAt(nx, ny);
+            if (neighbor == null) {
+              continue;
+            }
+            int ni = offset(nx, ny);
+            int c = neighbor.cells[ni];
+            if (c != EMPTY && (reactive[reactiveBase + (c >> 6)] & (1L << c)) != 0
+                && neighbor.lastSet[ni] != iteration) {
+              Element t = table[c];
+              Element o = elementTable.maybeTransmutate(e, t, rng);
+              if (o != t) {
+                set(nx, ny, ordinal(o));
+              }
+            }
+          }
+        }
+      }
+
+      // Decay.
+      if (curLastSet != iteration && e.decayProbability > 0 && rng.nextFloat() < e.decayProbability) {
+        if (++tile.ages[i] > e.lifetime) {
+          set(x, y, ordinal(e.decayProducts == null ? null : e.decayProducts.pickProduct(rng)));
+          continue;
+        }
+      }
+
+      if (!e.mobile || curLastSet == iteration) {
+        continue;
+      }
+
+      // Horizontal movement.
+      if (rng.nextFloat() < e.viscosity) {
+        int nx = x + (rng.nextBoolean() ? 1 : -1);
+        boolean inside = nx >= 0 && nx < width;
+        if (e.density > 0) {
+          // Slide only if blocked below.
+          if (y - 1 >= 0) {
+            Element o = elementAt(x, y - 1);
+            if (o != null && (!o.mobile || e.density <= o.density)) {
+              Element p = inside ? elementAt(nx, y) : null;
+              if (p == null || (p.mobile && e.density > p.density && rng.nextFloat() < e.density - p.density)) {
+                if (!inside || !floated(nx, y - 1)) {
+                  swap(x, y, nx, y);
+                  tile.lastFloated[i] = iteration;
+                }
+              }
+            }
+          }
+        } else if (e.density < 0) {
+          // Slide only if blocked above.
+          if (y + 1 < height && tile.lastFloated[i] != iteration) {
+            Element o = elementAt(x, y + 1);
+            if (o != null && (!o.mobile || e.density >= o.density)) {
+              Element p = inside ? elementAt(nx, y) : null;
+              if (p == null || (p.mobile && e.density < p.density && rng.nextFloat() < p.density - e.density)) {
+                swap(x, y, nx, y);
+                if (inside) {
+                  setFloated(nx, y + 1);
+                }
+              }
+            }
+          }
+        }
+      }
+
+      // Cells beyond the top and bottom edges read as empty.
+      Element o = y > 0 ? elementAt(x, y - 1) : null;
+      if ((o == null && e.density > 0) || (o != null && o.mobile && e.density > o.density)) {
+        if (o == null || o.density == 0 || rng.nextFloat() < e.density - o.density) {
+          swap(x, y, x, y - 1);
+          tile.lastFloated[i] = iteration;
+        }
+      } else if (tile.lastFloated[i] != iteration) {
+        o = y + 1 < height ? elementAt(x, y + 1) : null;
+        if ((o == null && e.density < 0) || (o != null && o.mobile && e.density < o.density)) {
+          if (o == null || o.density == 0 || rng.nextFloat() < o.density - e.density) {
+            swap(x, y, x, y + 1);
+            if (y + 1 < height) {
+              setFloated(x, y + 1);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private boolean floated(int x, int y) {
+    Tile tile = tileAt(x, y);
+    return tile != null && tile.lastFloated[offset(x, y)] == iteration;
+  }
+
+  private void setFloated(int x, int y) {
+    Tile tile = tileAt(x, y);
+    if (tile != null) {
+      tile.lastFloated[offset(x, y)] = iteration;
+    }
+  }
+
+  private void swap(int x1, int y1, int x2, int y2) {
+    if (x1 < 0 || y1 < 0 || x1 >= width || y1 >= height) {
+      set(x2, y2, EMPTY);
+      return;
+    }
+    if (x2 < 0 || y2 < 0 || x2 >= width || y2 >= height) {
+      set(x1, y1, EMPTY);
+      return;
+    }
+    int i1 = offset(x1, y1);
+    int i2 = offset(x2, y2);
+    Tile t1 = tileAt(x1, y1);
+    Tile t2 = tileAt(x2, y2);
+    byte o1 = t1 == null ? EMPTY : t1.cells[i1];
+    byte o2 = t2 == null ? EMPTY : t2.cells[i2];
+    // A particle can't move into a tile the budget won't allow, so it stays
+    // where it is.
+    if ((o1 != EMPTY && tileFor(x2, y2) == null) || (o2 != EMPTY && tileFor(x1, y1) == null)) {
+      return;
+    }
+    int l1 = t1 == null ? 0 : t1.ages[i1];
+    int l2 = t2 == null ? 0 : t2.ages[i2];
+    set(x1, y1, o2);
+    set(x2, y2, o1);
+    // Either write may have allocated its tile.
+    t1 = tileAt(x1, y1);
+    if (t1 != null) {
+      t1.ages[i1] = l2;
+    }
+    t2 = tileAt(x2, y2);
+    if (t2 != null) {
+      t2.ages[i2] = l1;
+    }
+  }
+
+  // Frees tiles that are empty and would sleep through the next iteration.
+  // Their neighbors don't miss them: a tile that old doesn't wake anything.
+  private void freeQuietTiles() {
+    int since = iteration - CHUNK_WAKE_ITERATIONS;
+    int kept = 0;
+    for (int t = 0; t < ntiles; t++) {
+      Tile tile = tiles[t];
+      if (tile.count == 0 && tile.changed < since && tile.restless < iteration) {
+        map.remove(tile.key);
+        if (cached == tile) {
+          cached = null;
+        }
+      } else {
+        tiles[kept++] = tile;
+      }
+    }
+    Arrays.fill(tiles, kept, ntiles, null);
+    ntiles = kept;
+  }
+
+  // Draws the w by h region whose lower left corner is (x, y) into pixels,
+  // top row first, with 0 for empty cells and anything off the board. Only
+  // allocated tiles are looked at, so the cost follows the particles in view
+  // rather than the size of the region.
+  synchronized public void renderRegion(int x, int y, int w, int h, int[] pixels) {
+    if (pixels.length < w * h) {
+      throw new IllegalArgumentException("region needs " + w * h + " pixels, got " + pixels.length);
+    }
+    Arrays.fill(pixels, 0, w * h, 0);
+    int x0 = Math.max(x, 0);
+    int y0 = Math.max(y, 0);
+    int x1 = Math.min(x + w, width) - 1;
+    int y1 = Math.min(y + h, height) - 1;
+    if (x0 > x1 || y0 > y1) {
+      return;
+    }
+    int tx0 = x0 >> CHUNK_SHIFT;
+    int tx1 = x1 >> CHUNK_SHIFT;
+    int ty0 = y0 >> CHUNK_SHIFT;
+    int ty1 = y1 >> CHUNK_SHIFT;
+    if ((long) (tx1 - tx0 + 1) * (ty1 - ty0 + 1) > ntiles) {
+      // More of the region is unallocated than there are tiles.
+      for (int t = 0; t < ntiles; t++) {
+        Tile tile = tiles[t];
+        if (tile.tx >= tx0 && tile.tx <= tx1 && tile.ty >= ty0 && tile.ty <= ty1) {
+          renderTile(tile, x, y, w, h, pixels);
+        }
+      }
+    } else {
+      for (int ty = ty0; ty <= ty1; ty++) {
+        for (int tx = tx0; tx <= tx1; tx++) {
+          Tile tile = map.get(key(tx, ty));
+          if (tile != null) {
+            renderTile(tile, x, y, w, h, pixels);
+          }
+        }
+      }
+    }
+  }
+
+  private void renderTile(Tile tile, int x, int y, int w, int h, int[] pixels) {
+    Element[] table = elementTable.elements;
+    int left = Math.max(tile.tx << CHUNK_SHIFT, x);
+    int right = Math.min((tile.tx << CHUNK_SHIFT) + CHUNK_SIZE, x + w);
+    int bottom = Math.max(tile.ty << CHUNK_SHIFT, y);
+    int top = Math.min((tile.ty << CHUNK_SHIFT) + CHUNK_SIZE, y + h);
+    for (int cy = bottom; cy < top; cy++) {
+      int row = (y + h - 1 - cy) * w - x;
+      int base = (cy & (CHUNK_SIZE - 1)) << CHUNK_SHIFT;
+      for (int cx = left; cx < right; cx++) {
+        byte ordinal = tile.cells[base | (cx & (CHUNK_SIZE - 1))];
+        if (ordinal != EMPTY) {
+          pixels[row + cx] = table[ordinal].color;
+        }
+      }
+    }
+  }
+
+  public byte[] packToBytes() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    write(new DataOutputStream(stream));
+    return stream.toByteArray();
+  }
+
+  static public ChunkedSandBox unpack(byte[] bytes) throws IOException {
+    return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  // Like SandBox.write(), but with int coordinates, and tile by tile. Each
+  // tile has its cells in full and then the state of its particles.
+  synchronized public void write(DataOutputStream stream) throws IOException {
+    stream.writeInt(MAGIC);
+    elementTable.write(stream);
+    stream.writeInt(width);
+    stream.writeInt(height);
+    stream.writeInt(iteration);
+    stream.writeLong(rng.getState());
+
+    stream.writeInt(sources.size());
+    for (int i = 0; i < sources.size(); i++) {
+      int position = sources.position(i);
+      stream.writeInt(position % width);
+      stream.writeInt(position / width);
+      stream.writeByte(sources.ordinal(i));
+    }
+
+    sortTiles();
+    stream.writeInt(ntiles);
+    for (int t = 0; t < ntiles; t++) {
+      Tile tile = tiles[t];
+      stream.writeInt(tile.tx);
+      stream.writeInt(tile.ty);
+      stream.writeInt(tile.changed - iteration);
+      stream.writeInt(tile.restless - iteration);
+      stream.write(tile.cells);
+      for (int i = 0; i < TILE_CELLS; i++) {
+        if (tile.cells[i] != EMPTY) {
+          stream.writeInt(tile.ages[i]);
+          stream.writeInt(tile.lastSet[i] - iteration);
+          stream.writeInt(tile.lastChange[i] - iteration);
+          stream.writeInt(tile.lastFloated[i] - iteration);
+        }
+      }
+    }
+  }
+
+  // Whether the buffer holds what write() writes, from its position.
+  static public boolean isSnapshot(ByteBuffer buffer) {
+    return buffer.remaining() >= 4 && buffer.order(ByteOrder.BIG_ENDIAN).getInt(buffer.position()) == MAGIC;
+  }
+
+  // Reads a sandbox written by write(). The memory budget is raised if need
+  // be to hold every tile.
+  static public ChunkedSandBox read(DataInputStream stream) throws IOException {
+    if (stream.readInt() != MAGIC) {
+      throw new IOException("not a chunked sandbox");
+    }
+    ElementTable elementTable = ElementTable.read(stream);
+    int width = stream.readInt();
+    int height = stream.readInt();
+    if (width <= 0 || height <= 0 || (long) width * height > MAX_CELLS) {
+      throw new IOException("bad dimensions " + width + "x" + height);
+    }
+    ChunkedSandBox sandbox = new ChunkedSandBox(width, height);
+    sandbox.elementTable = elementTable;
+    int iteration = stream.readInt();
+    sandbox.iteration = iteration;
+    sandbox.rng.setState(stream.readLong());
+
+    int nsources = stream.readInt();
+    for (int i = 0; i < nsources; i++) {
+      int x = stream.readInt();
+      int y = stream.readInt();
+      sandbox.addSource(elementTable.resolve(stream.readByte()), x, y);
+    }
+
+    int ntiles = stream.readInt();
+    if (ntiles < 0) {
+      throw new IOException("bad tile count " + ntiles);
+    }
+    if ((long) ntiles * TILE_BYTES > sandbox.memoryBudget) {
+      sandbox.setMemoryBudget((long) ntiles * TILE_BYTES);
+    }
+    int nelements = elementTable.elements.length;
+    for (int t = 0; t < ntiles; t++) {
+      int tx = stream.readInt();
+      int ty = stream.readInt();
+      if (tx < 0 || ty < 0 || tx > (width - 1) >> CHUNK_SHIFT || ty > (height - 1) >> CHUNK_SHIFT
+          || sandbox.map.get(key(tx, ty)) != null) {
+        throw new IOException("bad tile " + tx + ", " + ty);
+      }
+      Tile tile = new Tile(tx, ty);
+      tile.changed = iteration + stream.readInt();
+      tile.restless = iteration + stream.readInt();
+      stream.readFully(tile.cells);
+      for (int i = 0; i < TILE_CELLS; i++) {
+        byte ordinal = tile.cells[i];
+        if (ordinal == EMPTY) {
+          continue;
+        }
+        if (ordinal < 0 || ordinal >= nelements) {
+          throw new IOException("bad element ordinal " + ordinal);
+        }
+        tile.count++;
+        tile.ages[i] = stream.readInt();
+        tile.lastSet[i] = iteration + stream.readInt();
+        tile.lastChange[i] = iteration + stream.readInt();
+        tile.lastFloated[i] = iteration + stream.readInt();
+      }
+      sandbox.addTile(tile);
+    }
+    return sandbox;
+  }
+}
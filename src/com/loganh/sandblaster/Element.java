@@ -11,28 +11,74 @@ public class Element implements Recordable {
     float[] weights;
     float totalWeight;
 
+    // Walker's alias table, built with Vose's method: column i is picked
+    // uniformly, then gives products[i] if 24 random bits fall below
+    // cutoffs[i], and products[aliases[i]] otherwise.
+    private int[] cutoffs;
+    private int[] aliases;
+
     public ProductSet(Element[] products, float[] weights) {
       this.products = products;
       this.weights = weights;
       for (float weight : weights) {
         totalWeight += weight;
       }
+      buildAliasTable();
     }
 
-    public Element pickProduct() {
+    private void buildAliasTable() {
+      int n = products.length;
+      cutoffs = new int[n];
+      aliases = new int[n];
+      if (n == 0 || totalWeight <= 0) {
+        // Everything falls through to the first product.
+        return;
+      }
+      double[] scaled = new double[n];
+      int[] small = new int[n];
+      int[] large = new int[n];
+      int nsmall = 0;
+      int nlarge = 0;
+      for (int i = 0; i < n; i++) {
+        scaled[i] = (double) weights[i] * n / totalWeight;
+        if (scaled[i] < 1) {
+          small[nsmall++] = i;
+        } else {
+          large[nlarge++] = i;
+        }
+      }
+      while (nsmall > 0 && nlarge > 0) {
+        int s = small[--nsmall];
+        int l = large[--nlarge];
+        cutoffs[s] = (int) Math.ceil(scaled[s] * (1 << 24));
+        aliases[s] = l;
+        scaled[l] += scaled[s] - 1;
+        if (scaled[l] < 1) {
+          small[nsmall++] = l;
+        } else {
+          large[nlarge++] = l;
+        }
+      }
+      // Whatever is left is within rounding of a full column.
+      while (nlarge > 0) {
+        cutoffs[large[--nlarge]] = 1 << 24;
+      }
+      while (nsmall > 0) {
+        cutoffs[small[--nsmall]] = 1 << 24;
+      }
+    }
+
+    public Element pickProduct(SandBox.RNG rng) {
       if (products.length == 0) {
         return null;
       } else if (products.length == 1) {
         return products[0];
       }
-      float w = SandBox.RNG.nextFloat() * totalWeight;
-      for (int i = 0; i < products.length; i++) {
-        if (w <= weights[i]) {
-          return products[i];
-        }
-        w -= weights[i];
-      }
-      return products[0];
+      // The top 32 bits pick the column and the next 24 the side of it.
+      long bits = rng.nextLong();
+      int column = (int) (((bits >>> 32) * products.length) >>> 32);
+      int side = (int) (bits >>> 8) & 0xffffff;
+      return products[side < cutoffs[column] ? column : aliases[column]];
     }
 
     @Override
@@ -110,11 +156,11 @@ public class Element implements Recordable {
       this.product = product;
     }
 
-    public Element pickProduct() {
+    public Element pickProduct(SandBox.RNG rng) {
       if (product == null) {
         return null;
       }
-      return product.pickProduct();
+      return product.pickProduct(rng);
     }
 
     @Override
@@ -8,53 +8,83 @@ import java.util.*;
 public class ElementTable implements Recordable {
   public Element[] elements;
   private Element.Transmutation[][] transmutations;
-  private Random random;
+
+  // Elements by id, indexed by the id itself, and by lowercased name. Where
+  // two elements share an id or name, the first wins.
+  private final Element[] byId;
+  private final Map<String, Element> byName;
+
+  // For the neighbour scan: bit (target % 64) of word
+  // agent * reactiveWords + target / 64 is set if the agent has a
+  // transmutation for the target, so pairs that can never react are turned
+  // away with one test.
+  final long[] reactive;
+  final int reactiveWords;
+
+  // The same transmutations flattened by agent * elements.length + target,
+  // with each probability as a threshold on RNG.nextBits24().
+  private final Element.Transmutation[] reactions;
+  private final int[] thresholds;
 
   public ElementTable(Element[] elements) {
     this.elements = elements;
+    char maxId = 0;
     for (int i = 0; i < elements.length; i++) {
       elements[i].ordinal = i;
+      maxId = (char) Math.max(maxId, elements[i].id);
+    }
+    byId = new Element[maxId + 1];
+    byName = new HashMap<String, Element>();
+    for (Element element : elements) {
+      if (byId[element.id] == null) {
+        byId[element.id] = element;
+      }
+      String name = element.name.toLowerCase();
+      if (!byName.containsKey(name)) {
+        byName.put(name, element);
+      }
     }
     transmutations = new Element.Transmutation[elements.length][elements.length];
-    random = new Random();
+    reactiveWords = (elements.length + 63) / 64;
+    reactive = new long[elements.length * reactiveWords];
+    reactions = new Element.Transmutation[elements.length * elements.length];
+    thresholds = new int[elements.length * elements.length];
   }
 
   public Element resolve(String name) {
-    for (Element element : elements) {
-      if (element.name.toLowerCase().equals(name.toLowerCase())) {
-        return element;
-      }
-    }
-    return null;
+    return byName.get(name.toLowerCase());
   }
 
   public Element resolve(char id) {
-    for (Element element : elements) {
-      if (element.id == id) {
-        return element;
-      }
-    }
-    return null;
+    return id < byId.length ? byId[id] : null;
   }
 
   public Element resolve(byte ordinal) {
-    for (Element element : elements) {
-      if (element.ordinal == ordinal) {
-        return element;
-      }
-    }
-    return null;
+    return ordinal >= 0 && ordinal < elements.length ? elements[ordinal] : null;
   }
 
   public void addTransmutation(Element agent, Element.Transmutation transmutation) {
-    transmutations[agent.ordinal][transmutation.target.ordinal] = transmutation;
+    int target = transmutation.target.ordinal;
+    transmutations[agent.ordinal][target] = transmutation;
     agent.transmutationCount++;
+    reactive[agent.ordinal * reactiveWords + (target >> 6)] |= 1L << target;
+    int i = agent.ordinal * elements.length + target;
+    reactions[i] = transmutation;
+    // nextFloat() < p exactly when nextBits24() < ceil(p * 2^24).
+    thresholds[i] = (int) Math.ceil((double) transmutation.probability * (1 << 24));
+  }
+
+  final boolean reacts(int agent, int target) {
+    return (reactive[agent * reactiveWords + (target >> 6)] & (1L << target)) != 0;
   }
 
-  public Element maybeTransmutate(Element agent, Element target) {
-    Element.Transmutation transmutation = transmutations[agent.ordinal][target.ordinal];
-    if (transmutation != null && random.nextFloat() < transmutation.probability) {
-      return transmutation.pickProduct();
+  public Element maybeTransmutate(Element agent, Element target, SandBox.RNG rng) {
+    if (!reacts(agent.ordinal, target.ordinal)) {
+      return target;
+    }
+    int i = agent.ordinal * elements.length + target.ordinal;
+    if (rng.nextBits24() < thresholds[i]) {
+      return reactions[i].pickProduct(rng);
     }
     return target;
   }
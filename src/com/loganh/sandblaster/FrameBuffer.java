@@ -0,0 +1,230 @@
+package com.loganh.sandblaster;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+// Hands pixel frames from the thread that updates a sandbox to the thread
+// that draws it. The writer fills a back frame while the reader draws the
+// front one; the newest finished frame waits in between, and is replaced if a
+// newer one is published before the reader gets to it. Neither side ever
+// waits on the other or on the sandbox lock for longer than a pointer swap.
+//
+// A frame normally covers the whole board. Worlds too big for that, such as a
+// ChunkedSandBox, publish just the region in view instead.
+public class FrameBuffer {
+
+  public static class Frame {
+    // The frame's pixels as colors, or, from sandboxes that render on demand,
+    // already in the bitmap's layout. Only one of the two is set.
+    public int[] pixels;
+    public ByteBuffer buffer;
+    public int width;
+    public int height;
+    public int iteration;
+
+    // Where the frame's top left corner is on the board, in bitmap
+    // coordinates, and the size of the whole board. A frame of the whole
+    // board is at (0, 0).
+    public int left;
+    public int top;
+    public int boardWidth;
+    public int boardHeight;
+
+    // Rows that differ from the frame the reader took before this one, from
+    // changedLeft to changedRight inclusive, or every row if allChanged.
+    public int[] changedLeft;
+    public int[] changedRight;
+    public boolean allChanged;
+
+    // Rows in which the sandbox has changed since this frame was filled.
+    // Only the writer looks at these.
+    private int[] staleLeft;
+    private int[] staleRight;
+    private boolean allStale;
+
+    private Frame() {
+      allStale = true;
+    }
+
+    public boolean isChanged(int row) {
+      return allChanged || changedLeft[row] <= changedRight[row];
+    }
+
+    private void resize(int width, int height) {
+      this.width = width;
+      this.height = height;
+      pixels = null;
+      buffer = null;
+      changedLeft = new int[height];
+      changedRight = new int[height];
+      staleLeft = new int[height];
+      staleRight = new int[height];
+      allStale = true;
+    }
+  }
+
+  // Every frame, whichever slot it is in.
+  private final Frame[] frames = { new Frame(), new Frame(), new Frame() };
+
+  private Frame back = frames[0];
+  private Frame ready = frames[1];
+  private Frame front = frames[2];
+
+  // Whether ready holds a frame the reader hasn't taken.
+  private boolean fresh;
+
+  // The sandbox the last frame was taken from.
+  private BaseSandBox source;
+
+  // Copies the sandbox's current pixels into a new frame and makes it the
+  // newest. The caller must hold the sandbox's lock.
+  public void publish(SandBox sandbox) {
+    int w = sandbox.getWidth();
+    int h = sandbox.getHeight();
+    boolean rendered = sandbox.rendersOnDemand();
+    int[] dirtyLeft = rendered ? null : sandbox.dirtyLeft;
+    int[] dirtyRight = sandbox.dirtyRight;
+
+    // Sandboxes that don't track changes, or a different sandbox than last
+    // time, make every frame stale.
+    boolean all = dirtyLeft == null || sandbox != source;
+    source = sandbox;
+    for (Frame frame : frames) {
+      if (all || frame.allStale || frame.staleLeft.length != h) {
+        frame.allStale = true;
+        continue;
+      }
+      int[] left = frame.staleLeft;
+      int[] right = frame.staleRight;
+      for (int row = 0; row < h; row++) {
+        if (dirtyLeft[row] < left[row]) {
+          left[row] = dirtyLeft[row];
+        }
+        if (dirtyRight[row] > right[row]) {
+          right[row] = dirtyRight[row];
+        }
+      }
+    }
+
+    Frame frame = back;
+    if (frame.width != w || frame.height != h) {
+      frame.resize(w, h);
+    }
+    if (rendered) {
+      // Straight into the frame, in one pass.
+      if (frame.buffer == null) {
+        frame.buffer = ByteBuffer.allocateDirect(4 * w * h);
+        frame.pixels = null;
+      }
+      frame.buffer.clear();
+      sandbox.renderPixels(frame.buffer);
+    } else {
+      int[] pixels = sandbox.getPixels();
+      if (frame.pixels == null) {
+        frame.pixels = new int[w * h];
+        frame.buffer = null;
+      }
+      if (frame.allStale) {
+        System.arraycopy(pixels, 0, frame.pixels, 0, w * h);
+      } else {
+        for (int row = 0; row < h; row++) {
+          int left = frame.staleLeft[row];
+          if (left <= frame.staleRight[row]) {
+            int i = row * w + left;
+            System.arraycopy(pixels, i, frame.pixels, i, frame.staleRight[row] - left + 1);
+          }
+        }
+      }
+    }
+    frame.allStale = false;
+    Arrays.fill(frame.staleLeft, w);
+    Arrays.fill(frame.staleRight, -1);
+    frame.iteration = sandbox.iteration;
+    frame.left = 0;
+    frame.top = 0;
+    frame.boardWidth = w;
+    frame.boardHeight = h;
+    frame.allChanged = all;
+    if (!all) {
+      System.arraycopy(dirtyLeft, 0, frame.changedLeft, 0, h);
+      System.arraycopy(dirtyRight, 0, frame.changedRight, 0, h);
+    }
+    sandbox.clearDirty();
+    hand(frame);
+  }
+
+  // Renders the w by h region of the sandbox whose top left corner is at
+  // (left, top), in bitmap coordinates, into a new frame and makes it the
+  // newest. Such frames are always whole. The caller must hold the sandbox's
+  // lock.
+  public void publish(ChunkedSandBox sandbox, int left, int top, int w, int h) {
+    source = sandbox;
+    for (Frame frame : frames) {
+      frame.allStale = true;
+    }
+    Frame frame = back;
+    if (frame.width != w || frame.height != h) {
+      frame.resize(w, h);
+    }
+    if (frame.pixels == null) {
+      frame.pixels = new int[w * h];
+      frame.buffer = null;
+    }
+    // renderRegion() takes the lower left corner, in board coordinates.
+    sandbox.renderRegion(left, sandbox.getHeight() - top - h, w, h, frame.pixels);
+    frame.iteration = sandbox.iteration;
+    frame.left = left;
+    frame.top = top;
+    frame.boardWidth = sandbox.getWidth();
+    frame.boardHeight = sandbox.getHeight();
+    frame.allChanged = true;
+    hand(frame);
+  }
+
+  // Makes a filled back frame the newest.
+  private void hand(Frame frame) {
+    int w = frame.width;
+    int h = frame.height;
+    synchronized (this) {
+      if (fresh) {
+        // The reader never saw the frame this replaces, so it still needs
+        // that frame's changes too.
+        if (ready.allChanged || ready.height != h || ready.width != w) {
+          frame.allChanged = true;
+        } else if (!frame.allChanged) {
+          for (int row = 0; row < h; row++) {
+            frame.changedLeft[row] = Math.min(frame.changedLeft[row], ready.changedLeft[row]);
+            frame.changedRight[row] = Math.max(frame.changedRight[row], ready.changedRight[row]);
+          }
+        }
+      }
+      back = ready;
+      ready = frame;
+      fresh = true;
+      notifyAll();
+    }
+  }
+
+  // Returns the newest frame if one was published since the last call, or
+  // null otherwise. The frame belongs to the caller until its next call.
+  synchronized public Frame take() {
+    if (!fresh) {
+      return null;
+    }
+    Frame frame = ready;
+    ready = front;
+    front = frame;
+    fresh = false;
+    return frame;
+  }
+
+  // Waits up to the given number of milliseconds for a new frame, and returns
+  // whether there is one to take.
+  synchronized public boolean await(long millis) throws InterruptedException {
+    if (!fresh && millis > 0) {
+      wait(millis);
+    }
+    return fresh;
+  }
+}
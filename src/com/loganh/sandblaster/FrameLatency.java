@@ -0,0 +1,67 @@
+package com.loganh.sandblaster;
+
+
+// How long each phase of getting a frame on screen takes: sandbox updates,
+// drawing, and uploading pixels into the bitmap, each in its own histogram.
+// A frame misses its deadline when drawing and uploading it together take
+// longer than a frame lasts at the target frame rate.
+//
+// Updates are recorded by the thread that ticks the sandbox and frames by the
+// thread that draws it; either may read the results at any time.
+public class FrameLatency {
+
+  static private final long NANOS_PER_SECOND = 1000000000L;
+
+  public final LatencyHistogram update = new LatencyHistogram();
+  public final LatencyHistogram draw = new LatencyHistogram();
+  public final LatencyHistogram upload = new LatencyHistogram();
+
+  private volatile long framePeriod;
+  private volatile long missedDeadlines;
+
+  public FrameLatency(float fps) {
+    setTargetFps(fps);
+  }
+
+  public void setTargetFps(float fps) {
+    framePeriod = (long) (NANOS_PER_SECOND / fps);
+  }
+
+  public long getFramePeriod() {
+    return framePeriod;
+  }
+
+  public void recordUpdate(long nanos) {
+    update.record(nanos);
+  }
+
+  // Records a frame that took drawNanos to draw, not counting the uploadNanos
+  // spent uploading its pixels.
+  public void recordFrame(long drawNanos, long uploadNanos) {
+    draw.record(drawNanos);
+    upload.record(uploadNanos);
+    if (drawNanos + uploadNanos > framePeriod) {
+      missedDeadlines++;
+    }
+  }
+
+  public long getMissedDeadlines() {
+    return missedDeadlines;
+  }
+
+  public void reset() {
+    update.reset();
+    draw.reset();
+    upload.reset();
+    missedDeadlines = 0;
+  }
+
+  @Override
+  public String toString() {
+    return "update: " + update
+        + "; draw: " + draw
+        + "; upload: " + upload
+        + "; missed deadlines: " + missedDeadlines + " of " + draw.getCount()
+        + String.format(" at %.1f fps", (double) NANOS_PER_SECOND / framePeriod);
+  }
+}
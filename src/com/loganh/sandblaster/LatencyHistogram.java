@@ -0,0 +1,114 @@
+package com.loganh.sandblaster;
+
+import java.util.Arrays;
+
+
+// Counts durations in nanoseconds in log-linear buckets, in the manner of an
+// HDR histogram: values under SUB_BUCKETS are counted exactly, and each power
+// of two above that is split into SUB_BUCKETS equal buckets, so percentiles
+// come out within about 3% of the true value over the whole range of a long.
+// Recording never allocates, so it's safe to do on every frame.
+public class LatencyHistogram {
+
+  static final int SUB_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  // Enough buckets for any non-negative long.
+  static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long total;
+  private long max;
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  // The largest value counted in the bucket.
+  static long highestInBucket(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  // Negative durations, from a clock that went backwards, count as zero.
+  synchronized public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts[bucket(nanos)]++;
+    count++;
+    total += nanos;
+    if (nanos > max) {
+      max = nanos;
+    }
+  }
+
+  synchronized public long getCount() {
+    return count;
+  }
+
+  synchronized public long getMax() {
+    return max;
+  }
+
+  synchronized public long getMean() {
+    return count == 0 ? 0 : total / count;
+  }
+
+  // The smallest recorded value that the given percentage of values are at
+  // or below, to the precision of its bucket, or 0 if nothing was recorded.
+  synchronized public long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestInBucket(i), max);
+      }
+    }
+    return max;
+  }
+
+  synchronized public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    total = 0;
+    max = 0;
+  }
+
+  synchronized public LatencyHistogram copy() {
+    LatencyHistogram copy = new LatencyHistogram();
+    System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+    copy.count = count;
+    copy.total = total;
+    copy.max = max;
+    return copy;
+  }
+
+  static private String millis(long nanos) {
+    return String.format("%.2f", nanos / 1e6);
+  }
+
+  // Count and milliseconds at the usual percentiles.
+  @Override
+  synchronized public String toString() {
+    return "n=" + count
+        + " ms: p50=" + millis(getPercentile(50))
+        + " p90=" + millis(getPercentile(90))
+        + " p99=" + millis(getPercentile(99))
+        + " max=" + millis(max);
+  }
+}
@@ -1,26 +1,60 @@
 package com.loganh.sandblaster;
 
+import java.io.PrintStream;
 import java.text.MessageFormat;
 
-import android.os.SystemClock;
-
 
+// Logging for the simulation core, which also runs off the device (see the
+// headless module). Messages go to standard error until the app installs
+// AndroidLogSink.
 abstract public class Log {
   static public String TAG = "com.loganh.sand";
 
+  public interface Sink {
+    public void i(String tag, String msg);
+    public void e(String tag, String msg, Throwable throwable);
+  }
+
+  // Prints each message as a line, prefixed with I or E.
+  static public class StreamSink implements Sink {
+    private final PrintStream out;
+
+    public StreamSink(PrintStream out) {
+      this.out = out;
+    }
+
+    public void i(String tag, String msg) {
+      out.println("I " + msg);
+    }
+
+    public void e(String tag, String msg, Throwable throwable) {
+      out.println("E " + msg);
+      if (throwable != null) {
+        throwable.printStackTrace(out);
+      }
+    }
+  }
+
+  static private final long START = System.nanoTime();
+  static private volatile Sink sink = new StreamSink(System.err);
+
+  static public void setSink(Sink sink) {
+    Log.sink = sink;
+  }
+
   static public String format(String msg, Object[] params) {
-    return String.format("[%.02f] %s", SystemClock.uptimeMillis() / 1000f, MessageFormat.format(msg, params));
+    return String.format("[%.02f] %s", (System.nanoTime() - START) / 1e9f, MessageFormat.format(msg, params));
   }
 
   static public void i(String msg, Object... params) {
-    android.util.Log.i(TAG, format(msg, params));
+    sink.i(TAG, format(msg, params));
   }
 
   static public void e(String msg, Object... params) {
-    android.util.Log.e(TAG, format(msg, params));
+    sink.e(TAG, format(msg, params), null);
   }
 
   static public void e(String msg, Throwable throwable) {
-    android.util.Log.e(TAG, msg, throwable);
+    sink.e(TAG, msg, throwable);
   }
 }
@@ -1,27 +1,186 @@
 package com.loganh.sandblaster;
 
-public class NativeSandBox extends SandBox {
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+// A sandbox simulated by libsandblaster. Seeded alike, it plays out exactly as
+// a single-threaded SandBox does; the thread count is ignored.
+//
+// The native engine owns the board. The fields inherited from SandBox are a
+// copy that only sync() brings up to date, for code that reads them directly
+// (binary snapshots, the undo stack, equals()); getElement() reads the native
+// board itself. Frames are rendered on demand, straight from the native
+// board.
+//
+// The native board lives until dispose() or close(), or failing that until
+// the sandbox is finalized.
+public class NativeSandBox extends SandBox implements Closeable {
+
+  // Address of the native board, or 0 once disposed of. Set by clear(),
+  // which the constructor calls, so it mustn't have an initializer.
+  private long handle;
+
   public NativeSandBox(int w, int h) {
     super(w, h);
   }
 
-  public static NativeSandBox read(byte[] data) {
+  public static NativeSandBox read(byte[] data) throws IOException {
     Log.i("constructing native sandbox");
-    NativeSandBox sandbox = new NativeSandBox(200, 200);
+    NativeSandBox sandbox = new NativeSandBox(DEFAULT_WIDTH, DEFAULT_HEIGHT);
     Log.i("telling native sandbox to read from data");
     sandbox.readFromBytes(data);
+    sandbox.sync();
     return sandbox;
   }
 
-  native synchronized int[] getPixels();
-  native synchronized public void clear();
-  native synchronized public void setParticle(int x, int y, Element element, int radius);
+  // Loads a Java sandbox, such as a binary snapshot reads back, into the
+  // native engine.
+  public static NativeSandBox read(SandBox sandbox) throws IOException {
+    NativeSandBox result = new NativeSandBox(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+    result.load(sandbox);
+    return result;
+  }
+
+  // Replaces the native board with a Java sandbox's.
+  synchronized public void load(SandBox sandbox) throws IOException {
+    byte[] data;
+    synchronized (sandbox) {
+      data = sandbox.packToBytes();
+    }
+    readFromBytes(data);
+    sync();
+  }
+
+  // Copies the native board into the inherited fields. An unchanged element
+  // table is kept as it is, as the undo stack compares tables by identity.
+  synchronized public void sync() throws IOException {
+    SandBox copy = SandBox.unpack(writeToBytes());
+    if (elementTable == null || !elementTable.equals(copy.elementTable)) {
+      elementTable = copy.elementTable;
+    }
+    width = copy.width;
+    height = copy.height;
+    cells = copy.cells;
+    pixels = copy.pixels;
+    dirtyLeft = copy.dirtyLeft;
+    dirtyRight = copy.dirtyRight;
+    sources = copy.sources;
+    ages = copy.ages;
+    iteration = copy.iteration;
+    lastSet = copy.lastSet;
+    lastChange = copy.lastChange;
+    lastFloated = copy.lastFloated;
+    chunksWide = copy.chunksWide;
+    chunksHigh = copy.chunksHigh;
+    chunkChanged = copy.chunkChanged;
+    chunkRestless = copy.chunkRestless;
+    chunkTouched = copy.chunkTouched;
+    rng.setState(copy.rng.getState());
+  }
+
+  @Override
+  synchronized public void clear() {
+    super.clear();
+    if (handle == 0) {
+      handle = nativeCreate(width, height);
+    } else {
+      nativeClear();
+    }
+  }
+
+  // Frees the native board. Calls into it throw IllegalStateException from
+  // then on, until clear() starts a new one.
+  synchronized public void dispose() {
+    if (handle != 0) {
+      nativeDispose(handle);
+      handle = 0;
+    }
+  }
+
+  public void close() {
+    dispose();
+  }
+
+  @Override
+  protected void finalize() throws Throwable {
+    try {
+      dispose();
+    } finally {
+      super.finalize();
+    }
+  }
+
+  @Override
+  synchronized public void setSeed(long seed) {
+    super.setSeed(seed);
+    nativeSetSeed(seed);
+  }
+
+  @Override
+  synchronized public void setSkipSettledChunks(boolean skip) {
+    super.setSkipSettledChunks(skip);
+    nativeSetSkipSettledChunks(skip);
+  }
+
+  @Override
+  synchronized public void addSource(Element element, int x, int y) {
+    super.addSource(element, x, y);
+    nativeAddSource(element, x, y);
+  }
+
+  @Override
+  synchronized public void removeSource(int x, int y) {
+    super.removeSource(x, y);
+    nativeRemoveSource(x, y);
+  }
+
+  @Override
+  synchronized public Element getElement(int x, int y) {
+    byte ordinal = nativeGetOrdinal(x, y);
+    return ordinal == EMPTY ? null : elementTable.resolve(ordinal);
+  }
+
+  @Override
+  boolean rendersOnDemand() {
+    return true;
+  }
+
+  // The native engine doesn't track which rows changed, so every frame is a
+  // whole one.
+  @Override
+  synchronized void clearDirty() {
+    Arrays.fill(dirtyLeft, 0);
+    Arrays.fill(dirtyRight, width - 1);
+  }
+
+  @Override
+  synchronized public void write(DataOutputStream stream) throws IOException {
+    stream.write(writeToBytes());
+  }
+
+  native synchronized void renderPixels(ByteBuffer buffer);
   native synchronized public void setParticle(int x, int y, Element element, int radius, float prob);
   native synchronized public void setParticle(int x, int y, Element element);
   native synchronized public void line(Element element, int radius, int x1, int y1, int x2, int y2);
   native synchronized public void line(Element element, int x1, int y1, int x2, int y2);
+  native synchronized public void fillRect(int x, int y, int w, int h, Element element);
+  native synchronized public void fillCircle(int x, int y, int radius, Element element);
+  native synchronized public int floodFill(int x, int y, Element element);
+  native synchronized public byte[] copyRegion(int x, int y, int w, int h);
+  native synchronized public void pasteRegion(int x, int y, int w, int h, byte[] ordinals);
   native synchronized public void update();
-  native synchronized public void readFromBytes(byte[] data);
+  native synchronized public void readFromBytes(byte[] data) throws IOException;
+  native synchronized public byte[] writeToBytes();
+  native static private long nativeCreate(int w, int h);
+  native static private void nativeDispose(long handle);
+  native synchronized private void nativeClear();
+  native synchronized private void nativeSetSeed(long seed);
+  native synchronized private void nativeSetSkipSettledChunks(boolean skip);
+  native synchronized private void nativeAddSource(Element element, int x, int y);
+  native synchronized private void nativeRemoveSource(int x, int y);
+  native synchronized private byte nativeGetOrdinal(int x, int y);
 
   static {
     System.loadLibrary("sandblaster");
@@ -1,10 +1,11 @@
 package com.loganh.sandblaster;
 
+import java.nio.ByteBuffer;
+
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Point;
 import android.graphics.Rect;
 
 
@@ -12,40 +13,180 @@ public class PixelRenderer extends AbsRenderer {
 
   private static final int VOID_COLOR = Color.rgb(0, 0, 0);
   private static final int PADDING_COLOR = Color.rgb(0x11, 0x11, 0x11);
+
+  // Longest side of the bitmaps getBitmap() makes of sandboxes too big to
+  // render whole.
+  private static final int MAX_SAMPLED_SIZE = 256;
   private Bitmap bitmap;
 
+  // The frame the bitmap was last brought up to date from, which stays ours
+  // until the next frames.take().
+  private FrameBuffer.Frame frame;
+
+  // The part of the bitmap that matches the frame, in board coordinates.
+  // Changes outside the view aren't uploaded, so this shrinks to the view as
+  // frames come in, and grows back only as the view moves.
+  private final Rect current = new Rect();
+
+  // The part of the board in view and in the frame, in bitmap coordinates,
+  // where that is in the bitmap, and where it goes on the canvas.
+  private final Rect visible = new Rect();
+  private final Rect src = new Rect();
+  private final Rect dest = new Rect();
+
+  private final Paint paint = new Paint();
+
   @Override
   protected void draw(Canvas canvas) {
+    FrameBuffer.Frame taken = frames.take();
+    if (taken != null) {
+      frame = taken;
+      if (frame.width == 0 || frame.height == 0) {
+        // Nothing of the board was in view.
+        bitmap = null;
+      } else if (bitmap == null || bitmap.getWidth() != frame.width || bitmap.getHeight() != frame.height) {
+        bitmap = Bitmap.createBitmap(frame.width, frame.height, Bitmap.Config.ARGB_8888);
+        current.setEmpty();
+      }
+    }
+    if (frame == null) {
+      return;
+    }
+    camera.getVisibleRect(visible);
+    if (bitmap == null
+        || !visible.intersect(frame.left, frame.top, frame.left + frame.width, frame.top + frame.height)) {
+      visible.setEmpty();
+    }
+    long uploadStart = System.nanoTime();
+    if (taken != null && bitmap != null) {
+      setPixels(frame);
+    } else if (!visible.isEmpty() && !current.contains(visible)) {
+      // The view moved onto cells the bitmap doesn't have yet.
+      uploadVisible(frame);
+    }
+    uploadNanos = System.nanoTime() - uploadStart;
+
     // Set canvas background.
-    Point topLeft = camera.objectToView(new Point(0, sandbox.getHeight() - 1));
-    Point bottomRight = camera.objectToView(new Point(sandbox.getWidth(), 0));
-    Rect src = new Rect(0, 0, sandbox.getWidth(), sandbox.getHeight());
-    Rect dest = new Rect(topLeft.x, topLeft.y, bottomRight.x, bottomRight.y);
-    Paint paint = new Paint();
+    int w = frame.boardWidth;
+    int h = frame.boardHeight;
+    Paint paint = this.paint;
     paint.setColor(PADDING_COLOR);
     canvas.drawRect(0, 0, canvas.getWidth(), canvas.getHeight(), paint);
     paint.setColor(VOID_COLOR);
-    canvas.drawRect(dest, paint);
+    canvas.drawRect(camera.objectToViewX(0), camera.objectToViewY(h - 1),
+        camera.objectToViewX(w), camera.objectToViewY(-1), paint);
+    if (visible.isEmpty()) {
+      return;
+    }
 
-    // Render to bitmap, then project onto canvas.
-    setPixels(sandbox);
+    // Project the part of the latest frame in view onto canvas.
+    dest.set(camera.objectToViewX(visible.left), camera.objectToViewY(h - 1 - visible.top),
+        camera.objectToViewX(visible.right), camera.objectToViewY(h - 1 - visible.bottom));
+    src.set(visible);
+    src.offset(-frame.left, -frame.top);
     canvas.drawBitmap(bitmap, src, dest, paint);
   }
 
-  private void setPixels(SandBox sandbox) {
+  // Brings the part of the bitmap in view up to date with a new frame. Only
+  // the rows changed since the previous frame are copied, with runs of
+  // adjacent changed rows merged into a single rectangle, and clipped to the
+  // view. Frames of part of the board are always wholly changed, so only
+  // whole-board frames, whose coordinates are the board's, get this far.
+  private void setPixels(FrameBuffer.Frame frame) {
+    int w = frame.width;
+    int h = frame.height;
+    if (frame.buffer != null) {
+      // Already laid out as the bitmap is, and always whole.
+      frame.buffer.rewind();
+      bitmap.copyPixelsFromBuffer(frame.buffer);
+      current.set(0, 0, w, h);
+      return;
+    }
+    if (frame.allChanged || !current.intersect(visible)) {
+      current.setEmpty();
+    } else {
+      int[] left = frame.changedLeft;
+      int[] right = frame.changedRight;
+      for (int top = current.top; top < current.bottom; top++) {
+        if (!frame.isChanged(top)) {
+          continue;
+        }
+        int l = left[top];
+        int r = right[top];
+        int bottom = top + 1;
+        for (; bottom < current.bottom && frame.isChanged(bottom); bottom++) {
+          l = Math.min(l, left[bottom]);
+          r = Math.max(r, right[bottom]);
+        }
+        l = Math.max(l, current.left);
+        r = Math.min(r, current.right - 1);
+        if (l <= r) {
+          bitmap.setPixels(frame.pixels, top * w + l, w, l, top, r - l + 1, bottom - top);
+        }
+        top = bottom;
+      }
+    }
+    if (!visible.isEmpty() && !current.contains(visible)) {
+      uploadVisible(frame);
+    }
+  }
+
+  // Copies everything in view from the frame, and makes that the part of the
+  // bitmap that's up to date.
+  private void uploadVisible(FrameBuffer.Frame frame) {
+    if (frame.buffer != null) {
+      return;
+    }
+    int w = frame.width;
+    int x = visible.left - frame.left;
+    int y = visible.top - frame.top;
+    bitmap.setPixels(frame.pixels, y * w + x, w, x, y, visible.width(), visible.height());
+    current.set(visible);
+  }
+
+  // Renders the whole sandbox into a new bitmap, without going through the
+  // frames drawn on screen. A ChunkedSandBox is sampled down to at most
+  // MAX_SAMPLED_SIZE on a side instead.
+  public Bitmap getBitmap(BaseSandBox base) {
+    if (base instanceof ChunkedSandBox) {
+      return getSampledBitmap((ChunkedSandBox) base);
+    }
+    SandBox sandbox = (SandBox) base;
     synchronized (sandbox) {
       int w = sandbox.getWidth();
       int h = sandbox.getHeight();
-      if (bitmap == null || bitmap.getWidth() != w || bitmap.getHeight() != h) {
-        bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      Bitmap result = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      if (sandbox.rendersOnDemand()) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * w * h);
+        sandbox.renderPixels(buffer);
+        result.copyPixelsFromBuffer(buffer);
+      } else {
+        result.setPixels(sandbox.getPixels(), 0, w, 0, 0, w, h);
       }
-      bitmap.setPixels(sandbox.getPixels(), 0, w, 0, 0, w, h);
+      return result;
     }
   }
 
-  public Bitmap getBitmap(SandBox sandbox) {
-    setPixels(sandbox);
-    return bitmap;
+  // Takes every step'th cell of every step'th row, top row first.
+  private Bitmap getSampledBitmap(ChunkedSandBox sandbox) {
+    synchronized (sandbox) {
+      int width = sandbox.getWidth();
+      int height = sandbox.getHeight();
+      int step = (Math.max(width, height) + MAX_SAMPLED_SIZE - 1) / MAX_SAMPLED_SIZE;
+      int w = (width + step - 1) / step;
+      int h = (height + step - 1) / step;
+      int[] row = new int[width];
+      int[] pixels = new int[w * h];
+      for (int j = 0; j < h; j++) {
+        sandbox.renderRegion(0, height - 1 - j * step, width, 1, row);
+        for (int i = 0; i < w; i++) {
+          pixels[j * w + i] = row[i * step];
+        }
+      }
+      Bitmap result = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      result.setPixels(pixels, 0, w, 0, 0, w, h);
+      return result;
+    }
   }
 
 }
@@ -52,6 +52,7 @@ public final class R {
         public static final int menu_delete_all=0x7f040009;
         public static final int menu_demo=0x7f040002;
         public static final int menu_load=0x7f040005;
+        public static final int menu_new_large=0x7f040011;
         public static final int menu_save=0x7f040004;
         public static final int menu_trace_off=0x7f040008;
         public static final int menu_trace_on=0x7f040007;
@@ -20,6 +20,9 @@ import org.xmlpull.v1.XmlPullParserException;
 
 public class SandActivity extends Activity {
 
+  // Simulation steps per second.
+  static final private float TPS = 20;
+
   // Maximum FPS.
   static final private float FPS = 20;
 
@@ -37,9 +40,14 @@ public class SandActivity extends Activity {
   static final private int SAVE = 6;
   static final private int LOAD = 7;
   static final private int ZOOM_TO_FIT = 8;
+  static final private int NEW_LARGE = 9;
 
   static final public boolean DEBUG = Build.DEVICE.equals("generic");
 
+  static {
+    Log.setSink(new AndroidLogSink());
+  }
+
   private SandView view;
   private PaletteView palette;
   private SandBoxPresenter presenter;
@@ -52,7 +60,7 @@ public class SandActivity extends Activity {
     setContentView(R.layout.sand);
     view = (SandView) findViewById(R.id.sand);
     palette = (PaletteView) findViewById(R.id.palette);
-    presenter = new SandBoxPresenterImpl(getAssets(), this, FPS);
+    presenter = new SandBoxPresenterImpl(getAssets(), this, TPS, FPS);
     view.setPaletteView(palette);
     view.setSandBoxPresenter(presenter);
   }
@@ -94,6 +102,7 @@ public class SandActivity extends Activity {
     menu.add(0, SAVE, 0, R.string.menu_save).setIcon(android.R.drawable.ic_menu_save);
     menu.add(0, LOAD, 0, R.string.menu_load).setIcon(android.R.drawable.ic_menu_gallery);
     menu.add(0, DEMO, 0, R.string.menu_demo).setIcon(android.R.drawable.ic_menu_slideshow);
+    menu.add(0, NEW_LARGE, 0, R.string.menu_new_large).setIcon(android.R.drawable.ic_menu_mapmode);
     return true;
   }
 
@@ -127,6 +136,9 @@ public class SandActivity extends Activity {
       case ZOOM_TO_FIT:
         view.zoomToFit();
         return true;
+      case NEW_LARGE:
+        presenter.newLargeSandBox();
+        return true;
     }
     return false;
   }
@@ -1,48 +1,180 @@
 package com.loganh.sandblaster;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Random;
-
-import android.graphics.Point;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class SandBox extends BaseSandBox implements Recordable {
 
+  // Rows per band in a parallel update. Fixed, so results depend only on the
+  // starting state and not on how many threads share the work.
+  final static int BAND_HEIGHT = 16;
+
+  // Serialized particle state: age, lastSet, lastChange and lastFloated, and
+  // how many more particles in a run may share one record of it.
+  final static int STATE_FIELDS = 4;
+  final static int MAX_STATE_REPEAT = 0xff >> STATE_FIELDS;
+
+  // A small xorshift64* generator. Each sandbox owns one, and each band of a
+  // parallel update draws from its own, split off the sandbox's generator, so
+  // sandboxes share no state and a seeded run always plays out the same way.
   final static class RNG {
-    final static private int SIZE = 1024;
-    final static float[] floats = new float[SIZE];
-    final static boolean[] bools = new boolean[SIZE];
-    static int fptr;
-    static int bptr;
+    private static long seedUniquifier = System.nanoTime();
+    private long state;
 
-    static {
-      Random r = new Random();
-      for (int i = 0; i < SIZE; i++) {
-        floats[i] = r.nextFloat();
-        bools[i] = floats[i] < 0.5f;
-      }
-      bptr = -1;
-      fptr = -1;
+    RNG() {
+      this(nextSeed());
     }
 
-    final static boolean nextBoolean() {
-      if (++bptr >= SIZE) {
-        bptr = 0;
-      }
-      return bools[bptr];
+    RNG(long seed) {
+      setSeed(seed);
+    }
+
+    synchronized private static long nextSeed() {
+      seedUniquifier += 0x9E3779B97F4A7C15L;
+      return seedUniquifier;
+    }
+
+    // Runs the seed through a SplitMix64 finalizer, so nearby seeds (and the
+    // values split off another generator) give unrelated sequences.
+    final void setSeed(long seed) {
+      long z = seed + 0x9E3779B97F4A7C15L;
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      z ^= z >>> 31;
+      // An all-zero state would only ever produce zeroes.
+      state = z == 0 ? 0x9E3779B97F4A7C15L : z;
+    }
+
+    final void seed(RNG source) {
+      setSeed(source.nextLong());
+    }
+
+    final long getState() {
+      return state;
+    }
+
+    final void setState(long state) {
+      this.state = state == 0 ? 0x9E3779B97F4A7C15L : state;
+    }
+
+    final long nextLong() {
+      long x = state;
+      x ^= x >>> 12;
+      x ^= x << 25;
+      x ^= x >>> 27;
+      state = x;
+      return x * 0x2545F4914F6CDD1DL;
     }
 
-    final static float nextFloat() {
-      if (++fptr >= SIZE) {
-        fptr = 0;
+    final boolean nextBoolean() {
+      return nextLong() < 0;
+    }
+
+    // Uniform in [0, 1 << 24), from the top 24 bits.
+    final int nextBits24() {
+      return (int) (nextLong() >>> 40);
+    }
+
+    // Uniform in [0, 1), from the same 24 bits as nextBits24().
+    final float nextFloat() {
+      return nextBits24() * (1.0f / (1 << 24));
+    }
+  }
+
+  // Updates alternating bands of rows in two phases. Bands updated in the same
+  // phase are separated by a whole band, so no two threads ever touch
+  // neighboring cells at once.
+  private class BandTask implements Callable<Void> {
+    private final int worker;
+    int phase;
+    boolean counting;
+    final UpdateStats stats = new UpdateStats();
+
+    BandTask(int worker) {
+      this.worker = worker;
+    }
+
+    public Void call() {
+      int stride = 2 * threadCount;
+      for (int b = 2 * worker + phase; b < bandRngs.length; b += stride) {
+        int start = b * BAND_HEIGHT;
+        updateRows(start, Math.min(start + BAND_HEIGHT, height), bandRngs[b], counting ? stats : null);
       }
-      return floats[fptr];
+      return null;
     }
   }
 
+  final static private ThreadFactory WORKER_FACTORY = new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "SandBox worker");
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  RNG rng = new RNG();
+
+  // Parallel update state, only set up when threadCount > 1.
+  private int threadCount = 1;
+  private ExecutorService workers;
+  private List<BandTask> bandTasks;
+  private RNG[] bandRngs;
+
+  // Whether update() skips chunks that have settled down, and which chunks
+  // the current iteration simulates.
+  private boolean skipSettledChunks = true;
+  private boolean[] awake;
+
+  private final UpdateStats stats = new UpdateStats();
+
+  // Element ordinal of the particle at (x, y), or EMPTY. All per-cell state
+  // is kept in flat row-major arrays indexed by y * width + x.
+  byte[] cells;
+
+  // Exported snapshot of particle colors.
+  int[] pixels;
+
+  // Span of each pixel row changed since the last clearDirty(), from
+  // dirtyLeft to dirtyRight inclusive. Clean rows have dirtyLeft > dirtyRight.
+  int[] dirtyLeft;
+  int[] dirtyRight;
+
+  // Points where particles are continuously emitted.
+  SourceSet sources;
+
+  // Age of the particle at (x, y).
+  protected int[] ages;
+
+  // Keep track of which iteration certain events occurred in for each particle.
+  protected int[] lastSet;
+  protected int[] lastChange;
+  protected int[] lastFloated;
+
+  // Dimensions in chunks.
+  protected int chunksWide;
+  protected int chunksHigh;
+
+  // Last iteration in which a particle in each chunk changed, and in which a
+  // source or a decaying or transmuting particle was seen in it.
+  protected int[] chunkChanged;
+  protected int[] chunkRestless;
+
+  // Chunks in which any particle state may have been written since the undo
+  // stack last looked.
+  boolean[] chunkTouched;
+
   public SandBox() {
     super(DEFAULT_WIDTH, DEFAULT_HEIGHT);
   }
@@ -51,11 +183,219 @@ public class SandBox extends BaseSandBox implements Recordable {
     super(width, height);
   }
 
+  @Override
+  synchronized public void clear() {
+    cells = new byte[width * height];
+    Arrays.fill(cells, EMPTY);
+    ages = new int[width * height];
+    lastSet = new int[width * height];
+    lastChange = new int[width * height];
+    lastFloated = new int[width * height];
+    chunksWide = (width + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+    chunksHigh = (height + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+    chunkChanged = new int[chunksWide * chunksHigh];
+    chunkRestless = new int[chunksWide * chunksHigh];
+    chunkTouched = new boolean[chunksWide * chunksHigh];
+    Arrays.fill(chunkTouched, true);
+    iteration = -1;
+    pixels = new int[width * height];
+    dirtyLeft = new int[height];
+    dirtyRight = new int[height];
+    Arrays.fill(dirtyRight, width - 1);
+    sources = new SourceSet();
+  }
+
+  final int index(int x, int y) {
+    return y * width + x;
+  }
+
+  final int chunkIndex(int x, int y) {
+    return (y >> CHUNK_SHIFT) * chunksWide + (x >> CHUNK_SHIFT);
+  }
+
+  final Element elementAt(int i) {
+    byte ordinal = cells[i];
+    return ordinal == EMPTY ? null : elementTable.elements[ordinal];
+  }
+
+  @Override
+  public Element getElement(int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return null;
+    }
+    return elementAt(index(x, y));
+  }
+
+  @Override
+  synchronized public void addSource(Element element, int x, int y) {
+    if (element == null) {
+      removeSource(x, y);
+      return;
+    }
+    if (x >= 0 && y >= 0 && x < width && y < height) {
+      sources.put(index(x, y), (byte) element.ordinal);
+    }
+  }
+
+  @Override
+  synchronized public void removeSource(int x, int y) {
+    if (x >= 0 && y >= 0 && x < width && y < height) {
+      sources.remove(index(x, y));
+    }
+  }
+
+  // A copy of the sources. Code in the package walks the source set directly.
+  @Override
+  synchronized public Source[] getSources() {
+    Source[] result = new Source[sources.size()];
+    for (int i = 0; i < result.length; i++) {
+      int position = sources.position(i);
+      result[i] = new Source(position % width, position / width, elementTable.elements[sources.ordinal(i)]);
+    }
+    return result;
+  }
+
+  int[] getPixels() {
+    return pixels;
+  }
+
+  // Whether the sandbox renders its pixels only when asked, with
+  // renderPixels(), rather than keeping getPixels() up to date as it goes.
+  boolean rendersOnDemand() {
+    return false;
+  }
+
+  // An ARGB color as an ARGB_8888 bitmap keeps it in memory: premultiplied,
+  // as the bytes R, G, B, A, packed for the buffer's byte order.
+  static int bitmapColor(int color, ByteBuffer buffer) {
+    int alpha = color >>> 24;
+    int rgba = premultiply((color >> 16) & 0xff, alpha) << 24
+        | premultiply((color >> 8) & 0xff, alpha) << 16
+        | premultiply(color & 0xff, alpha) << 8
+        | alpha;
+    return buffer.order() == ByteOrder.BIG_ENDIAN ? rgba : Integer.reverseBytes(rgba);
+  }
+
+  // c * alpha / 255, rounded as Skia premultiplies colors.
+  static private int premultiply(int c, int alpha) {
+    int product = c * alpha + 128;
+    return (product + (product >> 8)) >> 8;
+  }
+
+  // Renders every pixel, top row first, into a buffer of 4 * width * height
+  // bytes, laid out as Bitmap.copyPixelsFromBuffer() expects for ARGB_8888.
+  // Throws IllegalArgumentException if the buffer is too small. The pixels
+  // are always up to date, so this just converts them; runs of one color are
+  // common, so each run is only converted once.
+  synchronized void renderPixels(ByteBuffer buffer) {
+    if (buffer.capacity() < 4 * width * height) {
+      throw new IllegalArgumentException("need a buffer of the whole board");
+    }
+    int last = 0;
+    int lastColor = bitmapColor(0, buffer);
+    for (int i = 0; i < width * height; i++) {
+      int color = pixels[i];
+      if (color != last) {
+        last = color;
+        lastColor = bitmapColor(color, buffer);
+      }
+      buffer.putInt(4 * i, lastColor);
+    }
+  }
+
+  final void markDirty(int x, int row) {
+    if (x < dirtyLeft[row]) {
+      dirtyLeft[row] = x;
+    }
+    if (x > dirtyRight[row]) {
+      dirtyRight[row] = x;
+    }
+  }
+
+  synchronized void clearDirty() {
+    Arrays.fill(dirtyLeft, width);
+    Arrays.fill(dirtyRight, -1);
+  }
+
+  // Restarts the simulation's random sequence. Two sandboxes with the same
+  // contents and seed evolve identically.
+  synchronized public void setSeed(long seed) {
+    rng.setSeed(seed);
+  }
+
+  // What update() has done since the last resetStats(). Always zero unless
+  // UpdateStats.ENABLED, or collection was turned on for a test.
+  synchronized public UpdateStats getStats() {
+    return stats.copy();
+  }
+
+  synchronized public void resetStats() {
+    stats.reset();
+  }
+
+  // Collects stats even when UpdateStats.ENABLED is off, so tests can check
+  // them without a rebuild.
+  synchronized void setCollectingStats(boolean collecting) {
+    stats.collecting = collecting;
+  }
+
+  public boolean getSkipSettledChunks() {
+    return skipSettledChunks;
+  }
+
+  // Chunks are simulated only while they or a neighbor changed in the last
+  // CHUNK_WAKE_ITERATIONS iterations, or while they hold a source or a
+  // particle that decays or transmutes. A particle that could have moved but
+  // was held back by chance for that long is left where it is until
+  // something nearby changes.
+  synchronized public void setSkipSettledChunks(boolean skip) {
+    skipSettledChunks = skip;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  // Spreads update() across the given number of threads. With more than one
+  // thread, rows are simulated in bands (see BandTask) rather than in a single
+  // bottom-to-top sweep.
+  synchronized public void setThreadCount(int threads) {
+    threads = Math.max(1, threads);
+    if (threads == threadCount) {
+      return;
+    }
+    if (workers != null) {
+      workers.shutdown();
+      workers = null;
+      bandTasks = null;
+      bandRngs = null;
+    }
+    threadCount = threads;
+    if (threads > 1) {
+      // Idle threads die off, so sandboxes that are dropped without resetting
+      // their thread count don't keep workers around.
+      workers = Executors.newCachedThreadPool(WORKER_FACTORY);
+      bandTasks = new ArrayList<BandTask>(threads);
+      for (int i = 0; i < threads; i++) {
+        bandTasks.add(new BandTask(i));
+      }
+      bandRngs = new RNG[(height + BAND_HEIGHT - 1) / BAND_HEIGHT];
+      for (int i = 0; i < bandRngs.length; i++) {
+        bandRngs[i] = new RNG();
+      }
+    }
+  }
+
   public void setParticle(int x, int y, Element element, int radius, float prob) {
+    if (element == null || !element.mobile) {
+      // Solid brushes don't thin out, so there's nothing to draw per cell.
+      fillCircle(x, y, radius, element);
+      return;
+    }
     int r2 = radius * radius;
     for (int i = -radius; i <= radius; i++) {
       for (int j = -radius; j <= radius; j++) {
-        if (i * i + j * j <= r2 && (element == null || !element.mobile || RNG.nextFloat() < prob)) {
+        if (i * i + j * j <= r2 && rng.nextFloat() < prob) {
           setParticle(x + i, y + j, element);
         }
       }
@@ -64,126 +404,478 @@ public class SandBox extends BaseSandBox implements Recordable {
 
   public void setParticle(int x, int y, Element element) {
     if (x >= 0 && y >= 0 && x < width && y < height) {
-      lastSet[x][y] = iteration;
-      if (element != elements[x][y]) {
-        elements[x][y] = element;
-        ages[x][y] = 0;
-        lastChange[x][y] = iteration;
+      int i = y * width + x;
+      lastSet[i] = iteration;
+      chunkTouched[chunkIndex(x, y)] = true;
+      byte ordinal = element == null ? EMPTY : (byte) element.ordinal;
+      if (ordinal != cells[i]) {
+        cells[i] = ordinal;
+        ages[i] = 0;
+        lastChange[i] = iteration;
+        chunkChanged[chunkIndex(x, y)] = iteration;
         int ty = height - y - 1;
         pixels[ty * width + x] = element == null ? 0 : element.color;
+        markDirty(x, ty);
+      }
+    }
+  }
+
+  // Sets cells x0 through x1 of row y, which must be on the board, to the
+  // given ordinal, or to ordinals[offset] onwards if ordinals isn't null.
+  private void setSpan(int y, int x0, int x1, byte ordinal, byte[] ordinals, int offset) {
+    Element[] table = elementTable.elements;
+    int row = y * width;
+    int ty = height - y - 1;
+    int pixelRow = ty * width;
+    int chunkRow = (y >> CHUNK_SHIFT) * chunksWide;
+    int changedLeft = width;
+    int changedRight = -1;
+    for (int cx = x0 >> CHUNK_SHIFT; cx <= x1 >> CHUNK_SHIFT; cx++) {
+      int from = Math.max(x0, cx << CHUNK_SHIFT);
+      int to = Math.min(x1, (cx << CHUNK_SHIFT) + CHUNK_SIZE - 1);
+      boolean changed = false;
+      for (int x = from; x <= to; x++) {
+        int i = row + x;
+        byte o = ordinals == null ? ordinal : ordinals[offset + x - x0];
+        lastSet[i] = iteration;
+        if (o != cells[i]) {
+          cells[i] = o;
+          ages[i] = 0;
+          lastChange[i] = iteration;
+          pixels[pixelRow + x] = o == EMPTY ? 0 : table[o].color;
+          changedLeft = Math.min(changedLeft, x);
+          changedRight = x;
+          changed = true;
+        }
       }
+      chunkTouched[chunkRow + cx] = true;
+      if (changed) {
+        chunkChanged[chunkRow + cx] = iteration;
+      }
+    }
+    if (changedLeft <= changedRight) {
+      markDirty(changedLeft, ty);
+      markDirty(changedRight, ty);
     }
   }
 
-  synchronized public void line(Element element, int radius, int x1, int y1, int x2, int y2) {
-    int dx = x1 - x2;
-    int dy = y1 - y2;
-    int d = Math.max(Math.abs(dx), Math.abs(dy));
-    for (int i = 0; i <= d; i++) {
-      int x = Math.round(x2 + ((float) i / d) * dx);
-      int y = Math.round(y2 + ((float) i / d) * dy);
-      setParticle(x, y, element, radius, 0.1f);
+  static private byte ordinal(Element element) {
+    return element == null ? EMPTY : (byte) element.ordinal;
+  }
+
+  synchronized public void fillRect(int x, int y, int w, int h, Element element) {
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + w, width) - 1;
+    if (x0 > x1) {
+      return;
+    }
+    byte ordinal = ordinal(element);
+    for (int row = Math.max(y, 0); row < Math.min(y + h, height); row++) {
+      setSpan(row, x0, x1, ordinal, null, 0);
     }
   }
 
-  public void line(Element element, int x1, int y1, int x2, int y2) {
-    line(element, 0, x1, y1, x2, y2);
+  synchronized public void fillCircle(int x, int y, int radius, Element element) {
+    byte ordinal = ordinal(element);
+    int r2 = radius * radius;
+    for (int j = Math.max(-radius, -y); j <= radius && y + j < height; j++) {
+      // Widest i with i * i + j * j <= r2.
+      int half = (int) Math.sqrt(r2 - j * j);
+      while (half * half + j * j > r2) {
+        half--;
+      }
+      while ((half + 1) * (half + 1) + j * j <= r2) {
+        half++;
+      }
+      int x0 = Math.max(x - half, 0);
+      int x1 = Math.min(x + half, width - 1);
+      if (x0 <= x1) {
+        setSpan(y + j, x0, x1, ordinal, null, 0);
+      }
+    }
+  }
+
+  synchronized public int floodFill(int x, int y, Element element) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return 0;
+    }
+    byte target = cells[index(x, y)];
+    byte ordinal = ordinal(element);
+    if (target == ordinal) {
+      return 0;
+    }
+    // Scanline fill: each seed is filled out to a whole span, and the rows
+    // above and below it are searched for further seeds. Filled cells no
+    // longer match the target, so nothing is visited twice.
+    int filled = 0;
+    int[] seeds = new int[64];
+    int nseeds = 0;
+    seeds[nseeds++] = index(x, y);
+    while (nseeds > 0) {
+      int seed = seeds[--nseeds];
+      if (cells[seed] != target) {
+        continue;
+      }
+      int sy = seed / width;
+      int row = sy * width;
+      int left = seed - row;
+      int right = left;
+      while (left > 0 && cells[row + left - 1] == target) {
+        left--;
+      }
+      while (right < width - 1 && cells[row + right + 1] == target) {
+        right++;
+      }
+      setSpan(sy, left, right, ordinal, null, 0);
+      filled += right - left + 1;
+      for (int ny = sy - 1; ny <= sy + 1; ny += 2) {
+        if (ny < 0 || ny >= height) {
+          continue;
+        }
+        int nrow = ny * width;
+        boolean inRun = false;
+        for (int nx = left; nx <= right; nx++) {
+          boolean match = cells[nrow + nx] == target;
+          if (match && !inRun) {
+            if (nseeds == seeds.length) {
+              int[] more = new int[2 * nseeds];
+              System.arraycopy(seeds, 0, more, 0, nseeds);
+              seeds = more;
+            }
+            seeds[nseeds++] = nrow + nx;
+          }
+          inRun = match;
+        }
+      }
+    }
+    return filled;
+  }
+
+  synchronized public byte[] copyRegion(int x, int y, int w, int h) {
+    if (w <= 0 || h <= 0) {
+      return new byte[0];
+    }
+    byte[] ordinals = new byte[w * h];
+    Arrays.fill(ordinals, EMPTY);
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + w, width);
+    if (x0 < x1) {
+      for (int row = Math.max(y, 0); row < Math.min(y + h, height); row++) {
+        System.arraycopy(cells, row * width + x0, ordinals, (row - y) * w + x0 - x, x1 - x0);
+      }
+    }
+    return ordinals;
+  }
+
+  synchronized public void pasteRegion(int x, int y, int w, int h, byte[] ordinals) {
+    if (ordinals.length < w * h) {
+      throw new IllegalArgumentException("region needs " + w * h + " cells, got " + ordinals.length);
+    }
+    int nelements = elementTable.elements.length;
+    for (byte o : ordinals) {
+      if (o != EMPTY && (o < 0 || o >= nelements)) {
+        throw new IllegalArgumentException("bad element ordinal " + o);
+      }
+    }
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + w, width) - 1;
+    if (x0 > x1) {
+      return;
+    }
+    for (int row = Math.max(y, 0); row < Math.min(y + h, height); row++) {
+      setSpan(row, x0, x1, EMPTY, ordinals, (row - y) * w + x0 - x);
+    }
+  }
+
+  // Recomputes every pixel from the cells, for when they were filled in
+  // directly.
+  synchronized void repaint() {
+    Element[] table = elementTable.elements;
+    for (int y = 0; y < height; y++) {
+      int row = y * width;
+      int ty = (height - y - 1) * width;
+      for (int x = 0; x < width; x++) {
+        byte ordinal = cells[row + x];
+        pixels[ty + x] = ordinal == EMPTY ? 0 : table[ordinal].color;
+      }
+    }
+    Arrays.fill(dirtyLeft, 0);
+    Arrays.fill(dirtyRight, width - 1);
   }
 
   synchronized public void update() {
-    for (Point pt : sources.keySet()) {
-      if (RNG.nextFloat() < SOURCE_PROBABILITY) {
-        setParticle(pt.x, pt.y, sources.get(pt));
+    // Null unless collecting. Checked once per update, so the per-particle
+    // code only ever tests a local.
+    UpdateStats stats = UpdateStats.ENABLED || this.stats.collecting ? this.stats : null;
+    long t0 = 0;
+    if (stats != null) {
+      t0 = System.nanoTime();
+    }
+    Element[] table = elementTable.elements;
+    SourceSet sources = this.sources;
+    for (int i = 0; i < sources.size(); i++) {
+      int position = sources.position(i);
+      int x = position % width;
+      int y = position / width;
+      chunkRestless[chunkIndex(x, y)] = iteration + 1;
+      if (rng.nextFloat() < SOURCE_PROBABILITY) {
+        setParticle(x, y, table[sources.ordinal(i)]);
       }
     }
 
     ++iteration;
 
-    for (int y = 0; y < height; y++) {
+    long t1 = 0;
+    if (stats != null) {
+      t1 = System.nanoTime();
+      stats.sourceNanos += t1 - t0;
+    }
+    findAwakeChunks();
+    long t2 = 0;
+    if (stats != null) {
+      t2 = System.nanoTime();
+      stats.wakeNanos += t2 - t1;
+    }
+    if (workers == null) {
+      updateRows(0, height, rng, stats);
+    } else {
+      updateBands(stats);
+    }
+    if (stats != null) {
+      stats.sweepNanos += System.nanoTime() - t2;
+      stats.updates++;
+    }
+  }
+
+  private void findAwakeChunks() {
+    int n = chunksWide * chunksHigh;
+    if (awake == null || awake.length != n) {
+      awake = new boolean[n];
+    }
+    if (!skipSettledChunks) {
+      Arrays.fill(awake, true);
+      Arrays.fill(chunkTouched, true);
+      return;
+    }
+    int since = iteration - CHUNK_WAKE_ITERATIONS;
+    for (int cy = 0; cy < chunksHigh; cy++) {
+      int top = Math.min(cy + 1, chunksHigh - 1);
+      for (int cx = 0; cx < chunksWide; cx++) {
+        int c = cy * chunksWide + cx;
+        boolean wake = chunkRestless[c] >= iteration - 1;
+        int right = Math.min(cx + 1, chunksWide - 1);
+        for (int ny = Math.max(cy - 1, 0); !wake && ny <= top; ny++) {
+          for (int nx = Math.max(cx - 1, 0); nx <= right; nx++) {
+            if (chunkChanged[ny * chunksWide + nx] >= since) {
+              wake = true;
+              break;
+            }
+          }
+        }
+        awake[c] = wake;
+        if (wake) {
+          chunkTouched[c] = true;
+        }
+      }
+    }
+  }
+
+  private void updateBands(UpdateStats stats) {
+    // Seed every band up front so the outcome doesn't depend on which thread
+    // picks up which band.
+    for (RNG bandRng : bandRngs) {
+      bandRng.seed(rng);
+    }
+    for (int phase = 0; phase < 2; phase++) {
+      for (BandTask task : bandTasks) {
+        task.phase = phase;
+        task.counting = stats != null;
+      }
+      try {
+        for (Future<Void> result : workers.invokeAll(bandTasks)) {
+          result.get();
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException ex) {
+        throw new RuntimeException(ex.getCause());
+      }
+    }
+    if (stats != null) {
+      for (BandTask task : bandTasks) {
+        stats.add(task.stats);
+        task.stats.reset();
+      }
+    }
+  }
+
+  // Updates the rows from fromY up to toY, counting what it does into stats
+  // unless that's null. Timing every phase of every particle would cost as
+  // much as the phases themselves, so only one row per update is timed, and
+  // its times are scaled up by the board's height.
+  private void updateRows(int fromY, int toY, RNG rng, UpdateStats stats) {
+    boolean counting = stats != null;
+    int sampledRow = counting ? iteration % height : -1;
+    byte[] cells = this.cells;
+    int[] lastSet = this.lastSet;
+    int[] lastFloated = this.lastFloated;
+    boolean[] awake = this.awake;
+    Element[] table = elementTable.elements;
+    long[] reactive = elementTable.reactive;
+    int reactiveWords = elementTable.reactiveWords;
+    for (int y = fromY; y < toY; y++) {
+      int row = y * width;
+      int chunkRow = (y >> CHUNK_SHIFT) * chunksWide;
+      boolean timing = y == sampledRow;
+      long transmuteNanos = 0;
+      long decayNanos = 0;
+      long slideNanos = 0;
+      long fallNanos = 0;
       int start = 0;
       int last = width;
       int dir = 1;
-      if (RNG.nextBoolean()) {
+      if (rng.nextBoolean()) {
         start = width - 1;
         last = -1;
         dir = -1;
       }
       for (int x = start; x != last; x += dir) {
-        Element e = elements[x][y];
-        if (e == null) {
+        if (!awake[chunkRow + (x >> CHUNK_SHIFT)]) {
+          // Jump to the far edge of this chunk.
+          int edge = dir > 0 ? Math.min(x | (CHUNK_SIZE - 1), width - 1) : x & ~(CHUNK_SIZE - 1);
+          if (counting) {
+            stats.skipped += Math.abs(edge - x) + 1;
+          }
+          x = edge;
+          continue;
+        }
+        if (counting) {
+          stats.visited++;
+        }
+        int i = row + x;
+        byte ordinal = cells[i];
+        if (ordinal == EMPTY) {
           continue;
         }
+        Element e = table[ordinal];
+        if (e.decayProbability > 0 || e.transmutationCount > 0) {
+          chunkRestless[chunkRow + (x >> CHUNK_SHIFT)] = iteration;
+        }
 
         // Vertical movement.
         if (y == 0 && e.density > 0) {
           // Drop off the screen.
           setParticle(x, y, null);
+          if (counting) {
+            stats.culled++;
+          }
           continue;
         }
         if (y == height - 1 && e.density < 0) {
           // Float off the screen.
           setParticle(x, y, null);
+          if (counting) {
+            stats.culled++;
+          }
         }
 
-        int curLastSet = lastSet[x][y];
+        int curLastSet = lastSet[i];
+
+        long phaseStart = 0;
+        if (timing) {
+          phaseStart = System.nanoTime();
+        }
 
         // Transmutations.
         if (e.transmutationCount > 0 && curLastSet != iteration) {
-          for (int i = 0; i < NEIGHBORS.length; i++) {
-            int nx = x + NEIGHBORS[i][0];
-            int ny = y + NEIGHBORS[i][1];
-            if (nx >= 0 && nx < width && ny >= 0 & ny < height && lastSet[nx][ny] != iteration) {
-              Element t = elements[nx][ny];
-              if (t != null) {
-                Element o = elementTable.maybeTransmutate(e, t);
-                if (o != elements[nx][ny]) {
+          int reactiveBase = e.ordinal * reactiveWords;
+          for (int n = 0; n < NEIGHBORS.length; n++) {
+            int nx = x + NEIGHBORS[n][0];
+            int ny = y + NEIGHBORS[n][1];
+            if (nx >= 0 && nx < width && ny >= 0 && ny < height) {
+              int ni = ny * width + nx;
+              int c = cells[ni];
+              if (c != EMPTY && (reactive[reactiveBase + (c >> 6)] & (1L << c)) != 0
+                  && lastSet[ni] != iteration) {
+                Element t = table[c];
+                Element o = elementTable.maybeTransmutate(e, t, rng);
+                if (o != t) {
                   setParticle(nx, ny, o);
+                  if (counting) {
+                    stats.transmutations++;
+                  }
                 }
               }
             }
           }
         }
 
+        if (timing) {
+          long now = System.nanoTime();
+          transmuteNanos += now - phaseStart;
+          phaseStart = now;
+        }
+
         // Decay.
-        if (curLastSet != iteration && e.decayProbability > 0 && RNG.nextFloat() < e.decayProbability) {
-          ages[x][y]++;
-          if (ages[x][y] > e.lifetime) {
-            setParticle(x, y, e.decayProducts == null ? null : e.decayProducts.pickProduct());
+        if (curLastSet != iteration && e.decayProbability > 0 && rng.nextFloat() < e.decayProbability) {
+          if (++ages[i] > e.lifetime) {
+            setParticle(x, y, e.decayProducts == null ? null : e.decayProducts.pickProduct(rng));
+            if (counting) {
+              stats.decays++;
+            }
+            if (timing) {
+              decayNanos += System.nanoTime() - phaseStart;
+            }
             continue;
           }
         }
 
+        if (timing) {
+          long now = System.nanoTime();
+          decayNanos += now - phaseStart;
+          phaseStart = now;
+        }
+
         if (!e.mobile || curLastSet == iteration) {
           continue;
         }
 
         // Horizontal movement.
-        if (RNG.nextFloat() < e.viscosity) {
-          int nx = x + (RNG.nextBoolean() ? 1 : -1); 
+        if (rng.nextFloat() < e.viscosity) {
+          int nx = x + (rng.nextBoolean() ? 1 : -1); 
+          boolean inside = nx >= 0 && nx < width;
           if (e.density > 0) {
             // Slide only if blocked below.
             if (y - 1 >= 0) {
-              Element o = elements[x][y - 1];
+              Element o = elementAt(i - width);
               if (o != null && (!o.mobile || e.density <= o.density)) {
-                Element p = (nx < 0 || nx >= width) ? null : elements[nx][y];
-                if (p == null || (p.mobile && e.density > p.density && RNG.nextFloat() < e.density - p.density)) {
-                  if (nx < 0 || nx >= width || lastFloated[nx][y - 1] != iteration) {
+                Element p = inside ? elementAt(row + nx) : null;
+                if (p == null || (p.mobile && e.density > p.density && rng.nextFloat() < e.density - p.density)) {
+                  if (!inside || lastFloated[row - width + nx] != iteration) {
                     swap(x, y, nx, y);
-                    lastFloated[x][y] = iteration;
+                    lastFloated[i] = iteration;
+                    if (counting) {
+                      stats.slides++;
+                    }
                   }
                 }
               }
             }
           } else if (e.density < 0) {
             // Slide only if blocked above.
-            if (y + 1 < height && lastFloated[x][y] != iteration) {
-              Element o = elements[x][y + 1];
+            if (y + 1 < height && lastFloated[i] != iteration) {
+              Element o = elementAt(i + width);
               if (o != null && (!o.mobile || e.density >= o.density)) {
-                Element p = (nx < 0 || nx >= width) ? null : elements[nx][y];
-                if (p == null || (p.mobile && e.density < p.density && RNG.nextFloat() < p.density - e.density)) {
+                Element p = inside ? elementAt(row + nx) : null;
+                if (p == null || (p.mobile && e.density < p.density && rng.nextFloat() < p.density - e.density)) {
                   swap(x, y, nx, y);
-                  if (nx >= 0 && nx < width) {
-                    lastFloated[nx][y + 1] = iteration;
+                  if (inside) {
+                    lastFloated[row + width + nx] = iteration;
+                    chunkTouched[chunkIndex(nx, y + 1)] = true;
+                  }
+                  if (counting) {
+                    stats.slides++;
                   }
                 }
               }
@@ -191,25 +883,46 @@ public class SandBox extends BaseSandBox implements Recordable {
           }
         }
 
-        Element o = elements[x][y - 1];
+        if (timing) {
+          long now = System.nanoTime();
+          slideNanos += now - phaseStart;
+          phaseStart = now;
+        }
+
+        // Cells beyond the top and bottom edges read as empty.
+        Element o = y > 0 ? elementAt(i - width) : null;
         if ((o == null && e.density > 0) || (o != null && o.mobile && e.density > o.density)) {
-          if (o == null || o.density == 0 || RNG.nextFloat() < e.density - o.density) {
+          if (o == null || o.density == 0 || rng.nextFloat() < e.density - o.density) {
             swap(x, y, x, y - 1);
-            lastFloated[x][y] = iteration;
+            lastFloated[i] = iteration;
+            if (counting) {
+              stats.swaps++;
+            }
           }
-          continue;
-        }
-        if (lastFloated[x][y] != iteration) {
-          o = elements[x][y + 1];
+        } else if (lastFloated[i] != iteration) {
+          o = y + 1 < height ? elementAt(i + width) : null;
           if ((o == null && e.density < 0) || (o != null && o.mobile && e.density < o.density)) {
-            if (o == null || o.density == 0 || RNG.nextFloat() < o.density - e.density) {
+            if (o == null || o.density == 0 || rng.nextFloat() < o.density - e.density) {
               swap(x, y, x, y + 1);
               if (y + 1 < height) {
-                lastFloated[x][y + 1] = iteration;
+                lastFloated[i + width] = iteration;
+              }
+              if (counting) {
+                stats.swaps++;
               }
             }
           }
         }
+
+        if (timing) {
+          fallNanos += System.nanoTime() - phaseStart;
+        }
+      }
+      if (timing) {
+        stats.transmuteNanos += transmuteNanos * height;
+        stats.decayNanos += decayNanos * height;
+        stats.slideNanos += slideNanos * height;
+        stats.fallNanos += fallNanos * height;
       }
     }
   }
@@ -223,27 +936,31 @@ public class SandBox extends BaseSandBox implements Recordable {
       setParticle(x1, y1, null);
       return;
     }
-    int l1 = ages[x1][y1];
-    int l2 = ages[x2][y2];
-    Element e = elements[x1][y1];
-    setParticle(x1, y1, elements[x2][y2]);
+    int i1 = y1 * width + x1;
+    int i2 = y2 * width + x2;
+    int l1 = ages[i1];
+    int l2 = ages[i2];
+    Element e = elementAt(i1);
+    setParticle(x1, y1, elementAt(i2));
     setParticle(x2, y2, e);
-    ages[x1][y1] = l2;
-    ages[x2][y2] = l1;
+    ages[i1] = l2;
+    ages[i2] = l1;
   }
 
   private float effectiveDensity(int x, int y) {
-    if (x < 0 || y < 0 || x >= width || y >= height || elements[x][y] == null) {
+    Element e = getElement(x, y);
+    if (e == null) {
       return 0;
     }
-    return elements[x][y].density;
+    return e.density;
   }
 
   private boolean isMobile(int x, int y) {
-    if (x < 0 || y < 0 || x >= width || y >= height || elements[x][y] == null) {
+    Element e = getElement(x, y);
+    if (e == null) {
      return true;
     }
-    return lastSet[x][y] != iteration && elements[x][y].mobile;
+    return lastSet[y * width + x] != iteration && e.mobile;
   }
 
   public byte[] packToBytes() throws IOException {
@@ -271,42 +988,106 @@ public class SandBox extends BaseSandBox implements Recordable {
     stream.writeShort(width);
     stream.writeShort(height);
     stream.writeInt(iteration);
+    stream.writeLong(rng.getState());
 
     stream.writeInt(sources.size());
-    for (Source source : getSources()) {
-      if (source.element != null) {
-        stream.writeShort(source.x);
-        stream.writeShort(source.y);
-        stream.writeByte(source.element.ordinal);
-      }
+    for (int i = 0; i < sources.size(); i++) {
+      int position = sources.position(i);
+      stream.writeShort(position % width);
+      stream.writeShort(position / width);
+      stream.writeByte(sources.ordinal(i));
     }
 
+    // Each row is a list of runs of one element, each preceded by the number
+    // of empty cells since the last, and ended by -1. The state of the
+    // particles in a run follows it in groups of up to 16 alike, each giving
+    // only the fields that differ from the particle written before.
+    short[] state = new short[STATE_FIELDS];
     for (int y = 0; y < height; y++) {
-      int start;
-      for (start = 0; start < width && elements[start][y] == null; start++);
-      stream.writeShort(start);
-      for (int x = start; x < width; ) {
-        if (elements[x][y] == null) {
-          stream.writeByte((byte) -1);
-        } else {
-          stream.writeByte((byte) elements[x][y].ordinal);
-          stream.writeShort((short) ages[x][y]);
-          stream.writeShort((short) (lastSet[x][y] - iteration));
-          stream.writeShort((short) (lastChange[x][y] - iteration));
-          stream.writeShort((short) (lastFloated[x][y] - iteration));
+      int row = y * width;
+      int end = 0;
+      for (int x = 0; x < width; ) {
+        byte ordinal = cells[row + x];
+        if (ordinal == EMPTY) {
+          x++;
+          continue;
         }
-        do { ++x; } while (x < width && elements[x][y] == null);
-        if (x < width) {
-          stream.writeShort((short) x);
-        } else {
-          stream.writeShort(-1);
+        int runEnd = x + 1;
+        while (runEnd < width && cells[row + runEnd] == ordinal) {
+          runEnd++;
         }
+        stream.writeShort(x - end);
+        stream.writeShort(runEnd - x);
+        stream.writeByte(ordinal);
+        while (x < runEnd) {
+          int i = row + x;
+          int repeat = 0;
+          while (repeat < MAX_STATE_REPEAT && x + repeat + 1 < runEnd && sameState(i, i + repeat + 1)) {
+            repeat++;
+          }
+          writeState(stream, i, repeat, state);
+          x += repeat + 1;
+        }
+        end = runEnd;
       }
+      stream.writeShort(-1);
+    }
+
+    // Chunk activity, so a copy sleeps and wakes exactly like the original.
+    for (int c = 0; c < chunkChanged.length; c++) {
+      stream.writeShort(chunkAge(chunkChanged[c]));
+      stream.writeShort(chunkAge(chunkRestless[c]));
     }
   }
 
+  // Particle state as it is serialized: the age, and timestamps relative to
+  // the current iteration, each cut down to a short.
+  private short stateField(int i, int field) {
+    switch (field) {
+      case 0: return (short) ages[i];
+      case 1: return (short) (lastSet[i] - iteration);
+      case 2: return (short) (lastChange[i] - iteration);
+      default: return (short) (lastFloated[i] - iteration);
+    }
+  }
+
+  private boolean sameState(int i, int j) {
+    for (int field = 0; field < STATE_FIELDS; field++) {
+      if (stateField(i, field) != stateField(j, field)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Writes the state of particle i, and of the repeat particles after it that
+  // share it, as the fields that differ from state, and updates state to it.
+  private void writeState(DataOutputStream stream, int i, int repeat, short[] state) throws IOException {
+    int changed = 0;
+    for (int field = 0; field < STATE_FIELDS; field++) {
+      if (stateField(i, field) != state[field]) {
+        changed |= 1 << field;
+      }
+    }
+    stream.writeByte(repeat << STATE_FIELDS | changed);
+    for (int field = 0; field < STATE_FIELDS; field++) {
+      if ((changed & (1 << field)) != 0) {
+        state[field] = stateField(i, field);
+        stream.writeShort(state[field]);
+      }
+    }
+  }
+
+  // Chunks that have been quiet for a long while are all equally asleep.
+  private short chunkAge(int since) {
+    return (short) Math.max(since - iteration, Short.MIN_VALUE);
+  }
+
   static public SandBox read(DataInputStream stream) throws IOException {
-    if (stream.readFloat() != SERIALIZATION_VERSION) {
+    // Version 1.6 predates the saved random state; such sandboxes get a fresh
+    // seed. Versions before 1.8 write every particle in full.
+    float version = stream.readFloat();
+    if (version != SERIALIZATION_VERSION && version != 1.7f && version != 1.6f) {
       throw new IOException();
     }
 
@@ -316,6 +1097,9 @@ public class SandBox extends BaseSandBox implements Recordable {
     SandBox sandbox = new SandBox(width, height);
     sandbox.elementTable = elementTable;
     sandbox.iteration = stream.readInt();
+    if (version != 1.6f) {
+      sandbox.rng.setState(stream.readLong());
+    }
 
     int nsources = stream.readInt();
     for (int i = 0; i < nsources; i++) {
@@ -325,21 +1109,76 @@ public class SandBox extends BaseSandBox implements Recordable {
       sandbox.addSource(element, x, y);
     }
 
+    if (version == SERIALIZATION_VERSION) {
+      sandbox.readRuns(stream);
+    } else {
+      sandbox.readParticles(stream);
+    }
+
+    if (version != 1.6f) {
+      for (int c = 0; c < sandbox.chunkChanged.length; c++) {
+        sandbox.chunkChanged[c] = sandbox.iteration + stream.readShort();
+        sandbox.chunkRestless[c] = sandbox.iteration + stream.readShort();
+      }
+    }
+    return sandbox;
+  }
+
+  // Reads the particles as write() writes them.
+  private void readRuns(DataInputStream stream) throws IOException {
+    short[] state = new short[STATE_FIELDS];
+    for (int y = 0; y < height; y++) {
+      int x = 0;
+      for (int gap = stream.readShort(); gap >= 0; gap = stream.readShort()) {
+        x += gap;
+        int length = stream.readShort();
+        byte ordinal = stream.readByte();
+        if (length <= 0 || x + length > width) {
+          throw new IOException("bad run at " + x + ", " + y);
+        }
+        Element e = elementTable.resolve(ordinal);
+        for (int end = x + length; x < end; ) {
+          int header = stream.readUnsignedByte();
+          for (int field = 0; field < STATE_FIELDS; field++) {
+            if ((header & (1 << field)) != 0) {
+              state[field] = stream.readShort();
+            }
+          }
+          int count = (header >> STATE_FIELDS) + 1;
+          if (x + count > end) {
+            throw new IOException("bad run at " + x + ", " + y);
+          }
+          for (int n = 0; n < count && e != null; n++) {
+            int i = y * width + x + n;
+            setParticle(x + n, y, e);
+            ages[i] = state[0];
+            lastSet[i] = iteration + state[1];
+            lastChange[i] = iteration + state[2];
+            lastFloated[i] = iteration + state[3];
+          }
+          x += count;
+        }
+      }
+    }
+  }
+
+  // Reads the particles as versions 1.6 and 1.7 wrote them, each in full.
+  private void readParticles(DataInputStream stream) throws IOException {
     for (int y = 0; y < height; y++) {
       int x = stream.readShort();
       while (x >= 0 && x < width) {
         Element e = elementTable.resolve(stream.readByte());
         if (e != null) {
-          sandbox.setParticle(x, y, e);
-          sandbox.ages[x][y] = stream.readShort();
-          sandbox.lastSet[x][y] = sandbox.iteration + stream.readShort();
-          sandbox.lastChange[x][y] = sandbox.iteration + stream.readShort();
-          sandbox.lastFloated[x][y] = sandbox.iteration + stream.readShort();
+          int i = y * width + x;
+          setParticle(x, y, e);
+          ages[i] = stream.readShort();
+          lastSet[i] = iteration + stream.readShort();
+          lastChange[i] = iteration + stream.readShort();
+          lastFloated[i] = iteration + stream.readShort();
         }
         x = stream.readShort();
       }
     }
-    return sandbox;
   }
 
   @Override
@@ -349,7 +1188,8 @@ public class SandBox extends BaseSandBox implements Recordable {
     }
     SandBox other = (SandBox) object;
     if (width != other.width || height != other.height || !elementTable.equals(other.elementTable)
-        || iteration != other.iteration || sources.size() != other.sources.size()) {
+        || iteration != other.iteration || rng.getState() != other.rng.getState()
+        || sources.size() != other.sources.size()) {
       Log.i("details mismatch");
       return false;
     }
@@ -359,22 +1199,23 @@ public class SandBox extends BaseSandBox implements Recordable {
     }
     for (int y = 0; y < height; y++) {
       for (int x = 0; x < width; x++) {
-        if (ages[x][y] != other.ages[x][y] || lastSet[x][y] != other.lastSet[x][y]
-            || lastChange[x][y] != other.lastChange[x][y]
-            || lastFloated[x][y] != other.lastFloated[x][y]) {
+        int i = y * width + x;
+        if (ages[i] != other.ages[i] || lastSet[i] != other.lastSet[i]
+            || lastChange[i] != other.lastChange[i]
+            || lastFloated[i] != other.lastFloated[i]) {
           Log.i("particle state mismatch at {0}, {1}", x, y);
-          Log.i(" elements: {0} vs. {1}", elements[x][y], other.elements[x][y]);
-          Log.i(" ages: {0} vs. {1}", ages[x][y], other.ages[x][y]);
-          Log.i(" lastSet: {0} vs. {1}", lastSet[x][y], other.lastSet[x][y]);
-          Log.i(" lastChange: {0} vs. {1}", lastChange[x][y], other.lastChange[x][y]);
-          Log.i(" lastFloated: {0} vs. {1}", lastFloated[x][y], other.lastFloated[x][y]);
+          Log.i(" elements: {0} vs. {1}", elementAt(i), other.elementAt(i));
+          Log.i(" ages: {0} vs. {1}", ages[i], other.ages[i]);
+          Log.i(" lastSet: {0} vs. {1}", lastSet[i], other.lastSet[i]);
+          Log.i(" lastChange: {0} vs. {1}", lastChange[i], other.lastChange[i]);
+          Log.i(" lastFloated: {0} vs. {1}", lastFloated[i], other.lastFloated[i]);
           return false;
         }
-        if ((elements[x][y] == null) != (other.elements[x][y] == null)) {
+        if ((cells[i] == EMPTY) != (other.cells[i] == EMPTY)) {
           Log.i("particle presence mismatch at {0}, {1}", x, y);
           return false;
         }
-        if (elements[x][y] != null && !elements[x][y].equals(other.elements[x][y])) {
+        if (cells[i] != EMPTY && !elementAt(i).equals(other.elementAt(i))) {
           Log.i("particle element mismatch at {0}, {1}", x, y);
           return false;
         }
@@ -26,9 +26,10 @@ public interface SandBoxPresenter {
   public boolean removeLoadListener(LoadListener listener);
   public void setView(SurfaceView surface);
   public AbsRenderer getRenderer();
-  public SandBox getSandBox();
+  public BaseSandBox getSandBox();
   public UndoStack getUndoStack();
-  public void setSandBox(SandBox sandbox);
+  public void pushUndo();
+  public void setSandBox(BaseSandBox sandbox);
   public int getWidth();
   public int getHeight();
   public ElementTable getElementTable();
@@ -46,6 +47,7 @@ public interface SandBoxPresenter {
   public boolean loadSandBox(String name);
   public boolean loadSandBoxFromAsset(String name);
   public boolean newSandBox();
+  public boolean newLargeSandBox();
   public boolean saveSandBox(String name);
   public void draw();
   public void pauseDriver();
@@ -1,8 +1,6 @@
 package com.loganh.sandblaster;
 
 import java.io.*;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import android.content.res.AssetManager;
 import android.content.Context;
@@ -14,11 +12,23 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
 
   static public final String AUTOSAVE = "Autosave";
 
+  // Milliseconds the render thread waits for a frame before checking whether
+  // it should stop.
+  static private final long RENDER_WAIT = 500;
+
+  // Ticks between logging update stats, when they're collected.
+  static private final int STATS_INTERVAL = 100;
+
+  // Frames between logging frame latencies, in debug builds.
+  static private final int LATENCY_INTERVAL = 200;
+
+  // Width and height of the worlds newLargeSandBox() makes.
+  static private final int LARGE_SIZE = 4096;
+
   private Context context;
   private AssetManager assets;
-  private Timer timer;
-  private SandBoxTimerTask task;
-  private float fps;
+  private TickScheduler scheduler;
+  private RenderThread renderThread;
 
   // TODO: ndk hack!
   private ElementTable elementTable;
@@ -35,15 +45,20 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
     return elementTable;
   }
 
-  public SandBoxPresenterImpl(AssetManager assets, Context context, float fps) {
+  public SandBoxPresenterImpl(AssetManager assets, Context context, float tps, float fps) {
     super();
     this.assets = assets;
     this.context = context;
-    this.fps = fps;
+    scheduler = new TickScheduler(new SandBoxClient(), tps, fps);
+    renderer.getLatency().setTargetFps(fps);
+  }
+
+  public TickScheduler getScheduler() {
+    return scheduler;
   }
 
   @Override
-  public void setSandBox(SandBox sandbox) {
+  public void setSandBox(BaseSandBox sandbox) {
     stop();
     super.setSandBox(sandbox);
     Log.i("setting sandbox at iteration {0}", sandbox.iteration);
@@ -52,10 +67,10 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
 
   @Override
   public void stop() {
-    if (timer != null) {
-      timer.cancel();
-      timer = null;
-      task = null;
+    if (scheduler.isRunning()) {
+      scheduler.stop();
+      renderThread.interrupt();
+      renderThread = null;
       super.stop();
       Log.i("after stop, taking {0} snapshot", AUTOSAVE);
       saveSandBox(AUTOSAVE);
@@ -77,11 +92,11 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
         }
       }
     }
-    if (timer == null && sandbox.playing) {
+    if (!scheduler.isRunning() && sandbox.playing) {
       super.start();
-      timer = new Timer();
-      task = new SandBoxTimerTask();
-      timer.scheduleAtFixedRate(task, 0, (long) (1000f / fps));
+      scheduler.start();
+      renderThread = new RenderThread();
+      renderThread.start();
       Log.i("presenter playback started");
     }
   }
@@ -109,7 +124,9 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
       Snapshot snapshot = new Snapshot(name, context);
       if (snapshot.sandbox != null) {
         undoStack = snapshot.undoStack;
-        undoStack.push(snapshot.sandbox);
+        if (snapshot.sandbox instanceof SandBox) {
+          undoStack.push((SandBox) snapshot.sandbox);
+        }
         setSandBox(snapshot.sandbox);
         notifyLoadListeners();
         unpause();
@@ -161,6 +178,24 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
     return false;
   }
 
+  // Starts an empty ChunkedSandBox far bigger than the screen, which only
+  // spends memory on the parts that have particles in them.
+  @Override
+  public boolean newLargeSandBox() {
+    ElementTable table = getElementTable();
+    if (table == null) {
+      Log.e("no element table for a large sandbox");
+      return false;
+    }
+    ChunkedSandBox sandbox = new ChunkedSandBox(LARGE_SIZE, LARGE_SIZE);
+    sandbox.elementTable = table;
+    setSandBox(sandbox);
+    undoStack.clear();
+    notifyLoadListeners();
+    unpause();
+    return true;
+  }
+
   @Override
   public boolean saveSandBox(String name) {
     if (sandbox == null) {
@@ -186,24 +221,18 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
 
   @Override
   public void pauseDriver() {
-    if (task != null) {
-      task.cancel();
-      task = null;
-    }
+    scheduler.pause();
   }
 
   @Override
   public void resumeDriver() {
-    if (timer != null) {
-      task = new SandBoxTimerTask();
-      timer.scheduleAtFixedRate(task, 0, (long) (1000f / fps));
-    }
+    scheduler.resume();
   }
 
   @Override
   public void addPlaybackListener(PlaybackListener listener) {
     super.addPlaybackListener(listener);
-    if (sandbox == null || timer == null) {
+    if (sandbox == null || !scheduler.isRunning()) {
       listener.onStop();
     } else {
       listener.onStart();
@@ -220,15 +249,64 @@ public class SandBoxPresenterImpl extends BaseSandBoxPresenter {
     renderer.clearLineOverlay();
   }
 
-  private class SandBoxTimerTask extends TimerTask {
+  private class SandBoxClient implements TickScheduler.Client {
+    private int ticks;
+    private long dropped;
+
+    public void tick() {
+      long start = System.nanoTime();
+      sandbox.update();
+      renderer.getLatency().recordUpdate(System.nanoTime() - start);
+      if (++ticks % STATS_INTERVAL != 0) {
+        return;
+      }
+      if (UpdateStats.ENABLED && sandbox instanceof SandBox) {
+        SandBox dense = (SandBox) sandbox;
+        Log.i("update stats: {0}", dense.getStats());
+        dense.resetStats();
+      }
+      if (sandbox instanceof ChunkedSandBox) {
+        ChunkedSandBox chunked = (ChunkedSandBox) sandbox;
+        long count = chunked.getDroppedCount();
+        if (count != dropped) {
+          Log.i("{0} particles dropped past the memory budget", count);
+          dropped = count;
+        }
+      }
+    }
+
+    public void frame() {
+      renderer.publish();
+    }
+  }
+
+  // Draws frames as the scheduler publishes them, so a slow draw doesn't
+  // hold up the simulation. Frames published faster than they can be drawn
+  // are skipped.
+  private class RenderThread extends Thread {
+
+    RenderThread() {
+      super("SandBox renderer");
+      setDaemon(true);
+    }
 
     @Override
     public void run() {
-      try {
-        sandbox.update();
-        renderer.draw();
-      } catch (Exception ex) {
-        Log.e("update or draw failed", ex);
+      while (!isInterrupted()) {
+        try {
+          if (renderer.awaitFrame(RENDER_WAIT)) {
+            renderer.render();
+            FrameLatency latency = renderer.getLatency();
+            if (SandActivity.DEBUG && latency.draw.getCount() >= LATENCY_INTERVAL) {
+              Log.i("frame latency: {0}", latency);
+              latency.reset();
+            }
+          }
+        } catch (InterruptedException ex) {
+          return;
+        } catch (Exception ex) {
+          Log.e("draw failed", ex);
+        }
       }
     }
   }
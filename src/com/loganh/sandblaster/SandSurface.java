@@ -34,7 +34,7 @@ public class SandSurface extends SurfaceView {
     Pen pen = presenter.getPen();
     if (event.getAction() == MotionEvent.ACTION_DOWN) {
       presenter.pauseDriver();
-      presenter.getUndoStack().push(presenter.getSandBox());
+      presenter.pushUndo();
       Point p = getTouchPoint(event);
       pen.press(drawer, p.x, p.y);
       presenter.draw();
@@ -78,9 +78,8 @@ public class SandSurface extends SurfaceView {
     }
 
     public void setLineOverlay(Pen pen, int x1, int y1, int x2, int y2) {
-      Point p1 = camera.objectToView(new Point(x1, y1));
-      Point p2 = camera.objectToView(new Point(x2, y2));
-      presenter.setLineOverlay(pen, p1.x, p1.y, p2.x, p2.y);
+      presenter.setLineOverlay(pen, camera.objectToViewX(x1), camera.objectToViewY(y1),
+          camera.objectToViewX(x2), camera.objectToViewY(y2));
     }
 
     public void clearLineOverlay() {
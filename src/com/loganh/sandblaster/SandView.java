@@ -117,7 +117,7 @@ public class SandView extends LinearLayout
   }
 
   private void pushUndo() {
-    presenter.getUndoStack().push(presenter.getSandBox());
+    presenter.pushUndo();
     undoButton.setEnabled(!presenter.getUndoStack().isEmpty());
   }
 
@@ -162,7 +162,10 @@ public class SandView extends LinearLayout
   }
 
   public void zoomToFit() {
-    setScale(Math.min(getWidth() / (float) presenter.getWidth(), getHeight() / (float) presenter.getHeight()));
+    // Boards bigger than the view, like a ChunkedSandBox, start at full size
+    // around the middle rather than shrunk to nothing.
+    setScale(Math.max(MIN_SCALE,
+        Math.min(getWidth() / (float) presenter.getWidth(), getHeight() / (float) presenter.getHeight())));
     camera.recenter();
   }
 
@@ -1,6 +1,8 @@
 package com.loganh.sandblaster;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import android.app.Activity;
@@ -46,15 +48,15 @@ public class Snapshot implements Comparable<Snapshot> {
   static final private int BUFFER_SIZE = 120000;
 
   public String name;
-  public SandBox sandbox;
+  public BaseSandBox sandbox;
   public UndoStack undoStack;
   private boolean loaded;
 
-  public Snapshot(SandBox sandbox) {
+  public Snapshot(BaseSandBox sandbox) {
     this(sandbox, new UndoStack());
   }
 
-  public Snapshot(SandBox sandbox, UndoStack undoStack) {
+  public Snapshot(BaseSandBox sandbox, UndoStack undoStack) {
     this.sandbox = sandbox;
     this.undoStack = undoStack;
     loaded = sandbox != null;
@@ -89,15 +91,41 @@ public class Snapshot implements Comparable<Snapshot> {
   }
 
   public void load(Context context) throws IOException {
-    InputStream stream = context.openFileInput(name + SNAPSHOT_EXTENSION);
-    int size = stream.available();
-    Log.i("{0} bytes available", size);
-    byte[] data = new byte[size];
-    stream.read(data);
-    Log.i("read data");
-    sandbox = NativeSandBox.read(data);
-    Log.i("imported data");
-    undoStack = new UndoStack();
+    FileInputStream stream = context.openFileInput(name + SNAPSHOT_EXTENSION);
+    try {
+      FileChannel channel = stream.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      Log.i("{0} bytes mapped", buffer.remaining());
+      if (ChunkedSandBox.isSnapshot(buffer)) {
+        Log.i("found chunked snapshot");
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        sandbox = ChunkedSandBox.read(in);
+        undoStack = UndoStack.read(in);
+        Log.i("Loaded snapshot from {0}", name);
+        return;
+      }
+      if (BinarySnapshot.isSnapshot(buffer)) {
+        Log.i("found binary snapshot");
+        boolean nativeEngine = BinarySnapshot.isNative(buffer);
+        SandBox dense = BinarySnapshot.read(buffer);
+        sandbox = nativeEngine ? NativeSandBox.read(dense) : dense;
+        byte[] rest = new byte[buffer.remaining()];
+        buffer.get(rest);
+        undoStack = UndoStack.read(new DataInputStream(new ByteArrayInputStream(rest)));
+        Log.i("Loaded snapshot from {0}", name);
+        return;
+      }
+      byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+      Log.i("read data");
+      sandbox = NativeSandBox.read(data);
+      Log.i("imported data");
+      undoStack = new UndoStack();
+    } finally {
+      stream.close();
+    }
     /*
     InputStream stream = new BufferedInputStream(context.openFileInput(name + SNAPSHOT_EXTENSION), BUFFER_SIZE);
     if (isXml(stream)) {
@@ -126,12 +154,21 @@ public class Snapshot implements Comparable<Snapshot> {
     if (name == null) {
       name = "Autosave";
     }
-    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(context.openFileOutput(name + SNAPSHOT_EXTENSION, 0), BUFFER_SIZE));
-    synchronized (sandbox) {
-      sandbox.write(out);
+    FileOutputStream file = context.openFileOutput(name + SNAPSHOT_EXTENSION, 0);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+    try {
+      if (sandbox instanceof ChunkedSandBox) {
+        ((ChunkedSandBox) sandbox).write(out);
+      } else {
+        if (sandbox instanceof NativeSandBox) {
+          ((NativeSandBox) sandbox).sync();
+        }
+        BinarySnapshot.write((SandBox) sandbox, file.getChannel());
+      }
+      undoStack.write(out);
+    } finally {
+      out.close();
     }
-    undoStack.write(out);
-    out.close();
     saveThumbnail(context);
     Log.i("Saved snapshot to {0}", name);
   }
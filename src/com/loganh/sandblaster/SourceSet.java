@@ -0,0 +1,168 @@
+package com.loganh.sandblaster;
+
+import java.util.Arrays;
+
+
+// The sources of a sandbox: cell positions (y * width + x) and the element
+// ordinal each emits, in parallel arrays. Iterate with
+//
+//   for (int i = 0; i < sources.size(); i++) {
+//     ... sources.position(i) ... sources.ordinal(i) ...
+//   }
+//
+// Removing a source moves the last one into its slot, so the order is only
+// stable between removals. An open-addressed index from position to slot keeps
+// adding and removing constant time.
+final class SourceSet {
+
+  static private final int INITIAL_CAPACITY = 8;
+
+  private int[] positions;
+  private byte[] ordinals;
+  private int size;
+
+  // Slot + 1 of the source at each position, or 0, by linear probing. Kept at
+  // most half full.
+  private int[] index;
+
+  SourceSet() {
+    positions = new int[INITIAL_CAPACITY];
+    ordinals = new byte[INITIAL_CAPACITY];
+    index = new int[2 * INITIAL_CAPACITY];
+  }
+
+  SourceSet(SourceSet other) {
+    positions = other.positions.clone();
+    ordinals = other.ordinals.clone();
+    size = other.size;
+    index = other.index.clone();
+  }
+
+  int size() {
+    return size;
+  }
+
+  int position(int i) {
+    return positions[i];
+  }
+
+  byte ordinal(int i) {
+    return ordinals[i];
+  }
+
+  static private int hash(int position) {
+    int h = position * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  // Index bucket holding the position, or the empty bucket where it would go.
+  private int bucket(int position) {
+    int mask = index.length - 1;
+    int b = hash(position) & mask;
+    while (index[b] != 0 && positions[index[b] - 1] != position) {
+      b = (b + 1) & mask;
+    }
+    return b;
+  }
+
+  // Ordinal emitted at the position, or BaseSandBox.EMPTY if there's no source
+  // there.
+  byte get(int position) {
+    int slot = index[bucket(position)];
+    return slot == 0 ? BaseSandBox.EMPTY : ordinals[slot - 1];
+  }
+
+  void put(int position, byte ordinal) {
+    int b = bucket(position);
+    if (index[b] != 0) {
+      ordinals[index[b] - 1] = ordinal;
+      return;
+    }
+    if (size == positions.length) {
+      grow();
+      b = bucket(position);
+    }
+    positions[size] = position;
+    ordinals[size] = ordinal;
+    index[b] = ++size;
+  }
+
+  boolean remove(int position) {
+    int b = bucket(position);
+    int slot = index[b] - 1;
+    if (slot < 0) {
+      return false;
+    }
+    unindex(b);
+    int last = --size;
+    if (slot != last) {
+      positions[slot] = positions[last];
+      ordinals[slot] = ordinals[last];
+      index[bucket(positions[slot])] = slot + 1;
+    }
+    return true;
+  }
+
+  void clear() {
+    size = 0;
+    Arrays.fill(index, 0);
+  }
+
+  // Empties a bucket, shifting later entries of its probe run back so that
+  // lookups never stop short of them.
+  private void unindex(int b) {
+    int mask = index.length - 1;
+    int hole = b;
+    index[hole] = 0;
+    for (int next = (hole + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+      int home = hash(positions[index[next] - 1]) & mask;
+      // Move the entry if the hole lies cyclically between its home and it.
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        index[hole] = index[next];
+        index[next] = 0;
+        hole = next;
+      }
+    }
+  }
+
+  private void grow() {
+    int capacity = 2 * positions.length;
+    int[] morePositions = new int[capacity];
+    byte[] moreOrdinals = new byte[capacity];
+    System.arraycopy(positions, 0, morePositions, 0, size);
+    System.arraycopy(ordinals, 0, moreOrdinals, 0, size);
+    positions = morePositions;
+    ordinals = moreOrdinals;
+    index = new int[2 * capacity];
+    for (int i = 0; i < size; i++) {
+      index[bucket(positions[i])] = i + 1;
+    }
+  }
+
+  // The same sources, in any order.
+  @Override
+  public boolean equals(Object object) {
+    if (!(object instanceof SourceSet)) {
+      return false;
+    }
+    SourceSet other = (SourceSet) object;
+    if (size != other.size) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (other.get(positions[i]) != ordinals[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = 0;
+    for (int i = 0; i < size; i++) {
+      h += hash(positions[i]) ^ ordinals[i];
+    }
+    return h;
+  }
+}
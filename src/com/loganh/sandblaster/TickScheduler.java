@@ -0,0 +1,233 @@
+package com.loganh.sandblaster;
+
+
+// Runs a simulation at a fixed number of ticks per second on its own thread,
+// and hands out frames at up to a target frame rate. When a tick runs long the
+// scheduler catches up with several ticks in a row, up to MAX_CATCH_UP, and
+// drops whatever is still owed after that, so the simulation keeps a steady
+// speed without piling up work. Frames are skipped while it is catching up.
+public class TickScheduler {
+
+  public interface Client {
+    // Advances the simulation by one step.
+    public void tick();
+
+    // Makes the current state of the simulation available for drawing.
+    public void frame();
+  }
+
+  // Most ticks run back to back before the rest of the backlog is dropped.
+  static public final int MAX_CATCH_UP = 5;
+
+  // Most frames skipped in a row while catching up.
+  static public final int MAX_FRAME_SKIP = 5;
+
+  // Number of ticks the tick time statistics cover.
+  static public final int WINDOW_SIZE = 20;
+
+  static private final long NANOS_PER_SECOND = 1000000000L;
+
+  private final Client client;
+  private volatile long tickPeriod;
+  private volatile long framePeriod;
+
+  private Thread thread;
+  private boolean paused;
+  private volatile boolean reset;
+
+  // Time of the last step, time not yet simulated, and when the next frame is
+  // due, all in nanoseconds.
+  private long lastTime;
+  private long lag;
+  private long nextFrame;
+  private int framesSkipped;
+
+  // Statistics.
+  private final long[] tickTimes = new long[WINDOW_SIZE];
+  private int nextTickTime;
+  private volatile long ticks;
+  private volatile long frames;
+  private volatile long skippedFrames;
+  private volatile long droppedTicks;
+
+  public TickScheduler(Client client, float tps, float fps) {
+    this.client = client;
+    setTargetTps(tps);
+    setTargetFps(fps);
+    reset = true;
+  }
+
+  public void setTargetTps(float tps) {
+    tickPeriod = (long) (NANOS_PER_SECOND / tps);
+  }
+
+  public float getTargetTps() {
+    return (float) NANOS_PER_SECOND / tickPeriod;
+  }
+
+  public void setTargetFps(float fps) {
+    framePeriod = (long) (NANOS_PER_SECOND / fps);
+  }
+
+  public float getTargetFps() {
+    return (float) NANOS_PER_SECOND / framePeriod;
+  }
+
+  synchronized public void start() {
+    if (thread != null) {
+      return;
+    }
+    paused = false;
+    reset = true;
+    thread = new Thread("SandBox scheduler") {
+      @Override
+      public void run() {
+        loop();
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Stops the thread, waiting for a tick in progress to finish.
+  public void stop() {
+    Thread thread;
+    synchronized (this) {
+      thread = this.thread;
+      this.thread = null;
+    }
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  synchronized public boolean isRunning() {
+    return thread != null;
+  }
+
+  // Stops ticking until resume(), without stopping the thread.
+  synchronized public void pause() {
+    paused = true;
+  }
+
+  // Picks up from the current time; time spent paused isn't made up.
+  synchronized public void resume() {
+    paused = false;
+    reset = true;
+    notifyAll();
+  }
+
+  private void loop() {
+    try {
+      while (!Thread.interrupted()) {
+        synchronized (this) {
+          while (paused) {
+            wait();
+          }
+        }
+        long wait = step(System.nanoTime());
+        if (wait > 0) {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Stopped.
+    }
+  }
+
+  // Runs the ticks and frame due at the given time, and returns the number of
+  // nanoseconds until the next tick is due.
+  long step(long now) {
+    long period = tickPeriod;
+    if (reset) {
+      reset = false;
+      lastTime = now;
+      lag = period;
+      nextFrame = now;
+      framesSkipped = 0;
+    }
+    lag += now - lastTime;
+    lastTime = now;
+
+    int n = 0;
+    while (lag >= period) {
+      if (n == MAX_CATCH_UP) {
+        droppedTicks += lag / period;
+        lag %= period;
+        break;
+      }
+      long start = System.nanoTime();
+      try {
+        client.tick();
+      } catch (Exception ex) {
+        Log.e("tick failed", ex);
+      }
+      tickTimes[nextTickTime] = System.nanoTime() - start;
+      nextTickTime = (nextTickTime + 1) % WINDOW_SIZE;
+      ++ticks;
+      lag -= period;
+      n++;
+    }
+
+    if (n > 0 && now >= nextFrame) {
+      if (n > 1 && framesSkipped < MAX_FRAME_SKIP) {
+        ++framesSkipped;
+        ++skippedFrames;
+      } else {
+        framesSkipped = 0;
+        try {
+          client.frame();
+        } catch (Exception ex) {
+          Log.e("frame failed", ex);
+        }
+        ++frames;
+        nextFrame = Math.max(nextFrame + framePeriod, now);
+      }
+    }
+    return period - lag;
+  }
+
+  public long getTicks() {
+    return ticks;
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  // Frames left out to let the simulation catch up.
+  public long getSkippedFrames() {
+    return skippedFrames;
+  }
+
+  // Ticks given up on because the simulation fell too far behind.
+  public long getDroppedTicks() {
+    return droppedTicks;
+  }
+
+  // Mean and longest durations of recent ticks, in nanoseconds.
+  public long getMeanTickTime() {
+    long n = Math.min(ticks, WINDOW_SIZE);
+    if (n == 0) {
+      return 0;
+    }
+    long total = 0;
+    for (int i = 0; i < n; i++) {
+      total += tickTimes[i];
+    }
+    return total / n;
+  }
+
+  public long getMaxTickTime() {
+    long max = 0;
+    for (long time : tickTimes) {
+      max = Math.max(max, time);
+    }
+    return max;
+  }
+}
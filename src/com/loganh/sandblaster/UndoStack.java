@@ -4,80 +4,478 @@ import java.io.*;
 import java.util.*;
 
 
+// Earlier states of a sandbox. The newest state is kept as a plain copy of the
+// sandbox's particle state (the shadow), and each older one as a delta that
+// turns the state after it back into it: the changed cells, XORed with their
+// newer values and run-length encoded. A push only compares the chunks the
+// sandbox touched since the previous one, and a pop only applies one delta.
+// States that can't be expressed as a delta, such as those of a sandbox of a
+// different size, are stored whole, as packed keyframes.
+//
+// The byte budget covers stored deltas and keyframes; the shadow is a fixed
+// cost the size of the sandbox.
 public class UndoStack implements Recordable {
 
   public static final int DEFAULT_MAX_BYTES = 500000;
 
+  // One stored state. Exactly one of these is set, except for the newest
+  // state, which has neither while it lives in the shadow.
+  private static class Entry {
+    byte[] keyframe;
+    byte[] delta;
+
+    int size() {
+      return keyframe != null ? keyframe.length : delta != null ? delta.length : 0;
+    }
+  }
+
+  // A full copy of a sandbox's particle state.
+  private static class State {
+    int width;
+    int height;
+    ElementTable elementTable;
+    int iteration;
+    long rngState;
+    SourceSet sources;
+    byte[] cells;
+    int[] ages;
+    int[] lastSet;
+    int[] lastChange;
+    int[] lastFloated;
+    int[] chunkChanged;
+    int[] chunkRestless;
+
+    State(SandBox sandbox) {
+      width = sandbox.width;
+      height = sandbox.height;
+      elementTable = sandbox.elementTable;
+      iteration = sandbox.iteration;
+      rngState = sandbox.rng.getState();
+      sources = new SourceSet(sandbox.sources);
+      cells = sandbox.cells.clone();
+      ages = sandbox.ages.clone();
+      lastSet = sandbox.lastSet.clone();
+      lastChange = sandbox.lastChange.clone();
+      lastFloated = sandbox.lastFloated.clone();
+      chunkChanged = sandbox.chunkChanged.clone();
+      chunkRestless = sandbox.chunkRestless.clone();
+    }
+
+    State(State state) {
+      width = state.width;
+      height = state.height;
+      elementTable = state.elementTable;
+      iteration = state.iteration;
+      rngState = state.rngState;
+      sources = new SourceSet(state.sources);
+      cells = state.cells.clone();
+      ages = state.ages.clone();
+      lastSet = state.lastSet.clone();
+      lastChange = state.lastChange.clone();
+      lastFloated = state.lastFloated.clone();
+      chunkChanged = state.chunkChanged.clone();
+      chunkRestless = state.chunkRestless.clone();
+    }
+
+    boolean fits(SandBox sandbox) {
+      return sandbox.width == width && sandbox.height == height && sandbox.elementTable == elementTable;
+    }
+
+    SandBox toSandBox() {
+      SandBox sandbox = new SandBox(width, height);
+      sandbox.elementTable = elementTable;
+      sandbox.iteration = iteration;
+      sandbox.rng.setState(rngState);
+      sandbox.sources = new SourceSet(sources);
+      System.arraycopy(cells, 0, sandbox.cells, 0, cells.length);
+      System.arraycopy(ages, 0, sandbox.ages, 0, ages.length);
+      System.arraycopy(lastSet, 0, sandbox.lastSet, 0, lastSet.length);
+      System.arraycopy(lastChange, 0, sandbox.lastChange, 0, lastChange.length);
+      System.arraycopy(lastFloated, 0, sandbox.lastFloated, 0, lastFloated.length);
+      System.arraycopy(chunkChanged, 0, sandbox.chunkChanged, 0, chunkChanged.length);
+      System.arraycopy(chunkRestless, 0, sandbox.chunkRestless, 0, chunkRestless.length);
+      sandbox.repaint();
+      Arrays.fill(sandbox.chunkTouched, false);
+      return sandbox;
+    }
+  }
+
+  // A growable buffer of variable-length integers.
+  private static class Encoder {
+    byte[] bytes = new byte[256];
+    int length;
+
+    void write(int value) {
+      if (length + 5 > bytes.length) {
+        byte[] more = new byte[bytes.length * 2];
+        System.arraycopy(bytes, 0, more, 0, length);
+        bytes = more;
+      }
+      while ((value & ~0x7f) != 0) {
+        bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+
+    void writeLong(long value) {
+      write((int) (value >>> 32));
+      write((int) value);
+    }
+
+    byte[] toByteArray() {
+      byte[] result = new byte[length];
+      System.arraycopy(bytes, 0, result, 0, length);
+      return result;
+    }
+  }
+
+  private static class Decoder {
+    final byte[] bytes;
+    int offset;
+
+    Decoder(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    int read() {
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[offset++];
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      return value;
+    }
+
+    long readLong() {
+      long high = read() & 0xffffffffL;
+      return (high << 32) | (read() & 0xffffffffL);
+    }
+  }
+
   private int maxBytes;
-  private LinkedList<byte[]> stack;
+  private LinkedList<Entry> stack;
   int totalBytes;
 
+  // The newest state, if the top entry is in it, and the sandbox that state
+  // was taken from.
+  private State shadow;
+  private SandBox tracked;
+
+  // Chunks in which the shadow may differ from the tracked sandbox, beyond
+  // those the sandbox marked as touched.
+  private boolean[] stale;
+
   public UndoStack() {
     this(DEFAULT_MAX_BYTES);
   }
 
   public UndoStack(int maxBytes) {
     this.maxBytes = maxBytes;
-    stack = new LinkedList<byte[]>();
+    stack = new LinkedList<Entry>();
     totalBytes = 0;
   }
 
+  // Pushes the sandbox's current state. Only one undo stack should push a
+  // given sandbox, as pushing clears its record of touched chunks.
   public boolean push(SandBox sandbox) {
-    return true;
-    /*
-    try {
-      return push(sandbox.packToBytes());
-    } catch (IOException ex) {
-      Log.e("failed to serialize sandbox", ex);
-      return false;
+    synchronized (sandbox) {
+      // The native engine doesn't record which chunks it touched, so its Java
+      // copy is brought up to date and compared whole.
+      boolean[] touched = sandbox.chunkTouched;
+      if (sandbox instanceof NativeSandBox) {
+        try {
+          ((NativeSandBox) sandbox).sync();
+        } catch (IOException ex) {
+          Log.e("failed to sync native sandbox", ex);
+          return false;
+        }
+        touched = null;
+      }
+      Entry top = stack.isEmpty() ? null : stack.getLast();
+      int before = top == null ? 0 : top.size();
+      if (shadow != null && sandbox == tracked && touched != null && shadow.fits(sandbox)) {
+        top.delta = diff(sandbox, touched);
+      } else if (shadow != null && shadow.fits(sandbox)) {
+        boolean[] all = new boolean[sandbox.chunkTouched.length];
+        Arrays.fill(all, true);
+        top.delta = diff(sandbox, all);
+      } else {
+        if (shadow != null) {
+          top.keyframe = pack(shadow);
+        }
+        shadow = new State(sandbox);
+        stale = new boolean[sandbox.chunkTouched.length];
+      }
+      if (top != null) {
+        totalBytes += top.size() - before;
+      }
+      Arrays.fill(sandbox.chunkTouched, false);
+      tracked = sandbox;
     }
-    */
+    stack.add(new Entry());
+    return trim();
   }
 
+  // Pushes a packed sandbox.
   public boolean push(byte[] bytes) {
-    return true;
-    /*
-    stack.add(bytes);
+    if (shadow != null) {
+      Entry top = stack.getLast();
+      top.keyframe = pack(shadow);
+      totalBytes += top.size();
+      shadow = null;
+      tracked = null;
+    }
+    Entry entry = new Entry();
+    entry.keyframe = bytes;
+    stack.add(entry);
     totalBytes += bytes.length;
+    return trim();
+  }
+
+  // Drops the oldest states until the stack fits its budget.
+  private boolean trim() {
     while (totalBytes > maxBytes) {
-      totalBytes -= stack.removeFirst().length;
+      Entry entry = stack.removeFirst();
+      totalBytes -= entry.size();
+      if (stack.isEmpty()) {
+        shadow = null;
+        tracked = null;
+      }
     }
-    Log.i("stack size: {0} items in {1} bytes", stack.size(), totalBytes);
     return !isEmpty();
-    */
   }
 
+  // Pops the newest state. A native sandbox that was pushed last is restored
+  // in place and returned; otherwise the state comes back as a new SandBox.
   public SandBox pop() {
-    return null;
-    /*
     if (stack.isEmpty()) {
       return null;
     }
-    try {
-      byte[] toRemove = stack.removeLast();
-      totalBytes -= toRemove.length;
-      return SandBox.unpack(toRemove);
-    } catch (IOException ex) {
-      Log.e("failed to deserialize sandbox", ex);
-      return null;
-    } finally {
-      Log.i("stack size: {0} items in {1} bytes", stack.size(), totalBytes);
+    SandBox target = tracked;
+    Entry top = stack.removeLast();
+    totalBytes -= top.size();
+    SandBox sandbox;
+    if (top.keyframe != null) {
+      try {
+        sandbox = SandBox.unpack(top.keyframe);
+      } catch (IOException ex) {
+        Log.e("failed to deserialize sandbox", ex);
+        clear();
+        return null;
+      }
+    } else {
+      sandbox = shadow.toSandBox();
+    }
+
+    // Bring the shadow back to the new top state.
+    Entry next = stack.isEmpty() ? null : stack.getLast();
+    if (next != null && next.delta != null) {
+      if (top.keyframe != null) {
+        shadow = new State(sandbox);
+        stale = new boolean[sandbox.chunkTouched.length];
+      }
+      apply(next.delta, shadow, stale);
+      totalBytes -= next.size();
+      next.delta = null;
+      tracked = sandbox;
+    } else {
+      shadow = null;
+      tracked = null;
     }
-    */
+
+    if (target instanceof NativeSandBox) {
+      try {
+        ((NativeSandBox) target).load(sandbox);
+      } catch (IOException ex) {
+        Log.e("failed to restore native sandbox", ex);
+        clear();
+        return null;
+      }
+      if (tracked == sandbox) {
+        tracked = target;
+      }
+      sandbox = target;
+    }
+    Log.i("stack size: {0} items in {1} bytes", stack.size(), totalBytes);
+    return sandbox;
   }
 
   public void clear() {
     totalBytes = 0;
     stack.clear();
+    shadow = null;
+    tracked = null;
   }
 
   public boolean isEmpty() {
     return stack.isEmpty();
   }
 
+  // Brings the shadow up to date with the sandbox within the given chunks,
+  // and returns the delta that turns the new shadow back into the old.
+  private byte[] diff(SandBox sandbox, boolean[] touched) {
+    State state = shadow;
+    Encoder out = new Encoder();
+    out.write(state.iteration ^ sandbox.iteration);
+    out.writeLong(state.rngState ^ sandbox.rng.getState());
+    state.iteration = sandbox.iteration;
+    state.rngState = sandbox.rng.getState();
+
+    out.write(state.sources.size());
+    for (int i = 0; i < state.sources.size(); i++) {
+      out.write(state.sources.position(i));
+      out.write(state.sources.ordinal(i));
+    }
+    state.sources = new SourceSet(sandbox.sources);
+
+    // The changed chunks, each as the offset from the previous one, its
+    // XORed activity times, and runs of changed cells: the run length, the
+    // offset from the end of the previous run, and the XORed values of each
+    // cell. Zero lengths and offsets mark the ends.
+    int w = state.width;
+    int chunksWide = sandbox.chunksWide;
+    int prev = -1;
+    for (int c = 0; c < touched.length; c++) {
+      if (!touched[c] && !stale[c]) {
+        continue;
+      }
+      stale[c] = false;
+      int mark = out.length;
+      boolean changed = state.chunkChanged[c] != sandbox.chunkChanged[c]
+          || state.chunkRestless[c] != sandbox.chunkRestless[c];
+      out.write(c - prev);
+      out.write(state.chunkChanged[c] ^ sandbox.chunkChanged[c]);
+      out.write(state.chunkRestless[c] ^ sandbox.chunkRestless[c]);
+      state.chunkChanged[c] = sandbox.chunkChanged[c];
+      state.chunkRestless[c] = sandbox.chunkRestless[c];
+
+      int x0 = (c % chunksWide) << BaseSandBox.CHUNK_SHIFT;
+      int y0 = (c / chunksWide) << BaseSandBox.CHUNK_SHIFT;
+      int x1 = Math.min(x0 + BaseSandBox.CHUNK_SIZE, w);
+      int y1 = Math.min(y0 + BaseSandBox.CHUNK_SIZE, state.height);
+      int end = y0 * w + x0;
+      for (int y = y0; y < y1; y++) {
+        for (int x = x0; x < x1; ) {
+          int start = y * w + x;
+          int i = start;
+          while (x < x1 && differs(state, sandbox, i)) {
+            ++i;
+            ++x;
+          }
+          if (i > start) {
+            out.write(i - start);
+            out.write(start - end);
+            for (int j = start; j < i; j++) {
+              out.write((state.cells[j] ^ sandbox.cells[j]) & 0xff);
+              out.write(state.ages[j] ^ sandbox.ages[j]);
+              out.write(state.lastSet[j] ^ sandbox.lastSet[j]);
+              out.write(state.lastChange[j] ^ sandbox.lastChange[j]);
+              out.write(state.lastFloated[j] ^ sandbox.lastFloated[j]);
+              state.cells[j] = sandbox.cells[j];
+              state.ages[j] = sandbox.ages[j];
+              state.lastSet[j] = sandbox.lastSet[j];
+              state.lastChange[j] = sandbox.lastChange[j];
+              state.lastFloated[j] = sandbox.lastFloated[j];
+            }
+            end = i;
+            changed = true;
+          } else {
+            ++x;
+          }
+        }
+      }
+      if (changed) {
+        out.write(0);
+        prev = c;
+      } else {
+        out.length = mark;
+      }
+    }
+    out.write(0);
+    return out.toByteArray();
+  }
+
+  static private boolean differs(State state, SandBox sandbox, int i) {
+    return state.cells[i] != sandbox.cells[i] || state.ages[i] != sandbox.ages[i]
+        || state.lastSet[i] != sandbox.lastSet[i] || state.lastChange[i] != sandbox.lastChange[i]
+        || state.lastFloated[i] != sandbox.lastFloated[i];
+  }
+
+  // Applies a delta to a state, marking the chunks it changes.
+  static private void apply(byte[] delta, State state, boolean[] changed) {
+    Decoder in = new Decoder(delta);
+    state.iteration ^= in.read();
+    state.rngState ^= in.readLong();
+
+    int nsources = in.read();
+    state.sources = new SourceSet();
+    for (int i = 0; i < nsources; i++) {
+      int position = in.read();
+      state.sources.put(position, (byte) in.read());
+    }
+
+    int w = state.width;
+    int chunksWide = (w + BaseSandBox.CHUNK_SIZE - 1) >> BaseSandBox.CHUNK_SHIFT;
+    int c = -1;
+    for (int offset = in.read(); offset != 0; offset = in.read()) {
+      c += offset;
+      changed[c] = true;
+      state.chunkChanged[c] ^= in.read();
+      state.chunkRestless[c] ^= in.read();
+      int end = ((c / chunksWide) << BaseSandBox.CHUNK_SHIFT) * w + ((c % chunksWide) << BaseSandBox.CHUNK_SHIFT);
+      for (int length = in.read(); length != 0; length = in.read()) {
+        int start = end + in.read();
+        for (int j = start; j < start + length; j++) {
+          state.cells[j] ^= (byte) in.read();
+          state.ages[j] ^= in.read();
+          state.lastSet[j] ^= in.read();
+          state.lastChange[j] ^= in.read();
+          state.lastFloated[j] ^= in.read();
+        }
+        end = start + length;
+      }
+    }
+  }
+
+  static private byte[] pack(State state) {
+    try {
+      return state.toSandBox().packToBytes();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  // Writes every state whole, oldest first.
   public void write(DataOutputStream out) throws IOException {
-    out.writeByte((byte) stack.size());
-    for (byte[] item : stack) {
+    List<byte[]> items = new ArrayList<byte[]>(stack.size());
+    State state = shadow == null ? null : new State(shadow);
+    boolean[] changed = state == null ? null : new boolean[state.chunkChanged.length];
+    byte[] base = null;
+    for (ListIterator<Entry> it = stack.listIterator(stack.size()); it.hasPrevious(); ) {
+      Entry entry = it.previous();
+      if (entry.keyframe != null) {
+        items.add(entry.keyframe);
+        state = null;
+        base = entry.keyframe;
+      } else {
+        if (entry.delta != null) {
+          // A delta applies to the state after it.
+          if (state == null) {
+            state = new State(SandBox.unpack(base));
+            changed = new boolean[state.chunkChanged.length];
+          }
+          apply(entry.delta, state, changed);
+        }
+        items.add(pack(state));
+      }
+    }
+    Collections.reverse(items);
+    out.writeByte((byte) items.size());
+    for (byte[] item : items) {
       out.writeInt(item.length);
       out.write(item);
     }
@@ -88,7 +486,7 @@ public class UndoStack implements Recordable {
     byte stackSize = in.readByte();
     while (stackSize-- > 0) {
       byte[] item = new byte[in.readInt()];
-      in.read(item);
+      in.readFully(item);
       stack.push(item);
     }
     return stack;
@@ -0,0 +1,107 @@
+package com.loganh.sandblaster;
+
+
+// Where SandBox.update() spends its time: nanoseconds per phase, and counts of
+// what each phase did. Collected only when ENABLED is set at compile time, or
+// a test turns on collecting; otherwise the update loop skips all of it on one
+// local test per cell, and the stats stay at zero.
+public class UpdateStats {
+
+  static final public boolean ENABLED = false;
+
+  // Whether the sandbox collects into this object although ENABLED is off.
+  boolean collecting;
+
+  public long updates;
+
+  // Nanoseconds spent emitting from sources, deciding which chunks to
+  // simulate, in the row sweep as a whole, and in each phase of it. The
+  // phases are timed on one row per update and scaled up to the whole board,
+  // so they're estimates.
+  public long sourceNanos;
+  public long wakeNanos;
+  public long sweepNanos;
+  public long transmuteNanos;
+  public long decayNanos;
+  public long slideNanos;
+  public long fallNanos;
+
+  // Particles moved sideways and up or down, neighbors transmuted, particles
+  // decayed, and particles lost off the top and bottom edges.
+  public long slides;
+  public long swaps;
+  public long transmutations;
+  public long decays;
+  public long culled;
+
+  // Cells looked at, and cells passed over in settled chunks.
+  public long visited;
+  public long skipped;
+
+  public UpdateStats copy() {
+    UpdateStats copy = new UpdateStats();
+    copy.add(this);
+    return copy;
+  }
+
+  void add(UpdateStats other) {
+    updates += other.updates;
+    sourceNanos += other.sourceNanos;
+    wakeNanos += other.wakeNanos;
+    sweepNanos += other.sweepNanos;
+    transmuteNanos += other.transmuteNanos;
+    decayNanos += other.decayNanos;
+    slideNanos += other.slideNanos;
+    fallNanos += other.fallNanos;
+    slides += other.slides;
+    swaps += other.swaps;
+    transmutations += other.transmutations;
+    decays += other.decays;
+    culled += other.culled;
+    visited += other.visited;
+    skipped += other.skipped;
+  }
+
+  void reset() {
+    updates = 0;
+    sourceNanos = 0;
+    wakeNanos = 0;
+    sweepNanos = 0;
+    transmuteNanos = 0;
+    decayNanos = 0;
+    slideNanos = 0;
+    fallNanos = 0;
+    slides = 0;
+    swaps = 0;
+    transmutations = 0;
+    decays = 0;
+    culled = 0;
+    visited = 0;
+    skipped = 0;
+  }
+
+  static private String micros(long nanos, long n) {
+    return String.format("%.1f", n == 0 ? 0 : nanos / 1000.0 / n);
+  }
+
+  // Microseconds and counts per update.
+  @Override
+  public String toString() {
+    long n = updates;
+    return "updates=" + n
+        + " us/update: sources=" + micros(sourceNanos, n)
+        + " wake=" + micros(wakeNanos, n)
+        + " sweep=" + micros(sweepNanos, n)
+        + " (transmute=" + micros(transmuteNanos, n)
+        + " decay=" + micros(decayNanos, n)
+        + " slide=" + micros(slideNanos, n)
+        + " fall=" + micros(fallNanos, n)
+        + ") totals: slides=" + slides
+        + " swaps=" + swaps
+        + " transmutations=" + transmutations
+        + " decays=" + decays
+        + " culled=" + culled
+        + " visited=" + visited
+        + " skipped=" + skipped;
+  }
+}
@@ -111,20 +111,21 @@ abstract public class XmlSnapshot {
     }
     serializer.endTag(NS, "element-set");
 
-    for (SandBox.Source source : sandbox.getSources()) {
-      if (source.element != null) {
-        serializer.startTag(NS, "source")
-            .attribute(NS, "x", Integer.toString(source.x))
-            .attribute(NS, "y", Integer.toString(source.y))
-            .attribute(NS, "element", source.element.toString().toLowerCase());
-      }
+    SourceSet sources = sandbox.sources;
+    for (int i = 0; i < sources.size(); i++) {
+      int position = sources.position(i);
+      serializer.startTag(NS, "source")
+          .attribute(NS, "x", Integer.toString(position % w))
+          .attribute(NS, "y", Integer.toString(position / w))
+          .attribute(NS, "element", sandbox.elementTable.elements[sources.ordinal(i)].name.toLowerCase())
+          .endTag(NS, "source");
     }
 
     for (int y = 0; y < h; y++) {
       int runStart = -1;
       StringBuffer pack = new StringBuffer();
       for (int x = 0; x < w; x++) {
-        Element e = sandbox.elements[x][y];
+        Element e = sandbox.getElement(x, y);
         if (e != null) {
           if (runStart == -1) {
             runStart = x;
@@ -0,0 +1,88 @@
+package com.loganh.sandblaster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+
+public class BinarySnapshotTest extends TestCase {
+
+  private SandBox newSandBox() {
+    SandBox sandbox = new SandBox(50, 40);
+    sandbox.elementTable = Utils.getTestElementTable();
+    sandbox.setSeed(3);
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.line(wall, 0, 0, 49, 0);
+    sandbox.line(water, 3, 10, 20, 40, 20);
+    sandbox.addSource(sandbox.elementTable.resolve("Sand"), 25, 35);
+    for (int i = 0; i < 20; i++) {
+      sandbox.update();
+    }
+    return sandbox;
+  }
+
+  private SandBox copy(SandBox sandbox, ByteOrder order) throws IOException {
+    ByteBuffer buffer = BinarySnapshot.write(sandbox, order);
+    // Read from a direct buffer, as from a mapped file.
+    ByteBuffer direct = ByteBuffer.allocateDirect(buffer.remaining() + 3);
+    direct.put(buffer);
+    direct.put(new byte[] { 1, 2, 3 });
+    direct.flip();
+    SandBox result = BinarySnapshot.read(direct);
+    assertEquals(3, direct.remaining());
+    return result;
+  }
+
+  public void testRoundTrip() throws IOException {
+    SandBox sandbox = newSandBox();
+    for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+      SandBox copy = copy(sandbox, order);
+      assertEquals(sandbox, copy);
+      assertTrue(Arrays.equals(sandbox.getPixels(), copy.getPixels()));
+
+      // The copy carries on exactly like the original.
+      SandBox original = copy(sandbox, order);
+      for (int i = 0; i < 20; i++) {
+        original.update();
+        copy.update();
+      }
+      assertEquals(original, copy);
+    }
+  }
+
+  public void testCorrupt() throws IOException {
+    ByteBuffer buffer = BinarySnapshot.write(newSandBox());
+    assertTrue(BinarySnapshot.isSnapshot(buffer));
+    assertFalse(BinarySnapshot.isNative(buffer));
+
+    // Dimensions far bigger than the data are rejected before anything is
+    // allocated for them.
+    ByteBuffer huge = BinarySnapshot.write(newSandBox(), ByteOrder.BIG_ENDIAN);
+    huge.putInt(12, 100000);
+    huge.putInt(16, 100000);
+    try {
+      BinarySnapshot.read(huge);
+      fail();
+    } catch (IOException ex) {
+      // Expected.
+    }
+
+    ByteBuffer truncated = buffer.duplicate();
+    truncated.limit(truncated.limit() / 2);
+    try {
+      BinarySnapshot.read(truncated);
+      fail();
+    } catch (IOException ex) {
+      // Expected.
+    }
+
+    SandBox sandbox = new SandBox(5, 5);
+    sandbox.elementTable = Utils.getTestElementTable();
+    ByteBuffer legacy = ByteBuffer.wrap(sandbox.packToBytes());
+    assertFalse(BinarySnapshot.isSnapshot(legacy));
+  }
+}
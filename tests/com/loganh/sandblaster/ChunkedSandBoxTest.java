@@ -0,0 +1,204 @@
+package com.loganh.sandblaster;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+
+public class ChunkedSandBoxTest extends TestCase {
+
+  static private final int SIZE = 4096;
+
+  private ChunkedSandBox newWorld() {
+    ChunkedSandBox sandbox = new ChunkedSandBox(SIZE, SIZE);
+    sandbox.elementTable = Utils.getTestElementTable();
+    sandbox.setSeed(1);
+    return sandbox;
+  }
+
+  private int count(ChunkedSandBox sandbox, int x, int y, int w, int h) {
+    int n = 0;
+    for (byte ordinal : sandbox.copyRegion(x, y, w, h)) {
+      if (ordinal != BaseSandBox.EMPTY) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  public void testTooBig() {
+    // Source positions are ints, which caps the number of cells.
+    new ChunkedSandBox(46340, 46340);
+    try {
+      new ChunkedSandBox(65536, 65536);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+  }
+
+  public void testSparse() {
+    ChunkedSandBox sandbox = newWorld();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    assertEquals(0, sandbox.getTileCount());
+    sandbox.setParticle(10, 10, wall);
+    sandbox.setParticle(SIZE - 1, SIZE - 1, wall);
+    sandbox.setParticle(SIZE, 0, wall);
+    sandbox.setParticle(20, 20, null);
+    assertEquals(2, sandbox.getTileCount());
+    assertEquals(wall, sandbox.getElement(10, 10));
+    assertEquals(wall, sandbox.getElement(SIZE - 1, SIZE - 1));
+    assertNull(sandbox.getElement(11, 10));
+    assertNull(sandbox.getElement(2000, 2000));
+
+    // A wall across the whole world takes a row of tiles.
+    sandbox.fillRect(0, 100, SIZE, 1, wall);
+    assertEquals(2 + SIZE / BaseSandBox.CHUNK_SIZE, sandbox.getTileCount());
+    assertEquals(SIZE, count(sandbox, 0, 100, SIZE, 1));
+  }
+
+  public void testFallingAndFreeing() {
+    ChunkedSandBox sandbox = newWorld();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element sand = sandbox.elementTable.resolve("Sand");
+    sandbox.fillRect(0, 20, SIZE, 1, wall);
+    int floor = sandbox.getTileCount();
+    sandbox.setParticle(2048, 200, sand);
+    for (int i = 0; i < 250; i++) {
+      sandbox.update();
+    }
+    // The sand came to rest on the wall, and the tiles it fell through have
+    // been freed.
+    assertEquals(1, count(sandbox, 0, 21, SIZE, 1));
+    assertEquals(1, count(sandbox, 0, 21, SIZE, SIZE - 21));
+    assertEquals(floor, sandbox.getTileCount());
+
+    // Particles drop out of the bottom of the world, and take their tiles
+    // with them.
+    sandbox.fillRect(0, 20, SIZE, 2, null);
+    for (int i = 0; i < 100; i++) {
+      sandbox.update();
+    }
+    assertEquals(0, sandbox.getTileCount());
+  }
+
+  public void testSources() {
+    ChunkedSandBox sandbox = newWorld();
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.addSource(water, 3000, 3000);
+    sandbox.addSource(water, 10, 3000);
+    sandbox.addSource(null, 10, 3000);
+    sandbox.removeSource(-1, 3000);
+    assertEquals(1, sandbox.getSources().length);
+    assertEquals(3000, sandbox.getSources()[0].x);
+    assertEquals(3000, sandbox.getSources()[0].y);
+    for (int i = 0; i < 50; i++) {
+      sandbox.update();
+    }
+    assertTrue(count(sandbox, 2900, 2940, 200, 61) > 0);
+
+    sandbox.removeSource(3000, 3000);
+    assertEquals(0, sandbox.getSources().length);
+    for (int i = 0; i < 3500; i++) {
+      sandbox.update();
+    }
+    assertEquals(0, sandbox.getTileCount());
+  }
+
+  public void testMemoryBudget() {
+    ChunkedSandBox sandbox = newWorld();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    sandbox.setMemoryBudget(4 * ChunkedSandBox.TILE_BYTES);
+    sandbox.fillRect(0, 0, 10 * BaseSandBox.CHUNK_SIZE, 1, wall);
+    assertEquals(4, sandbox.getTileCount());
+    assertEquals(4 * BaseSandBox.CHUNK_SIZE, count(sandbox, 0, 0, SIZE, 1));
+    assertTrue(sandbox.getMemoryUse() <= sandbox.getMemoryBudget());
+
+    // Filling open space stops when the budget runs out.
+    sandbox.setMemoryBudget(8 * ChunkedSandBox.TILE_BYTES);
+    assertTrue(sandbox.floodFill(2000, 2000, wall) > 0);
+    assertEquals(8, sandbox.getTileCount());
+  }
+
+  public void testBudgetEdge() {
+    ChunkedSandBox sandbox = newWorld();
+    Element sand = sandbox.elementTable.resolve("Sand");
+    sandbox.setMemoryBudget(ChunkedSandBox.TILE_BYTES);
+    sandbox.setParticle(100, 100, sand);
+    for (int i = 0; i < 20; i++) {
+      sandbox.update();
+    }
+    // The tile below is past the budget, so the sand stops at the bottom of
+    // its own tile rather than vanishing into it.
+    assertEquals(1, sandbox.getTileCount());
+    assertSame(sand, sandbox.getElement(100, 96));
+    assertEquals(1, count(sandbox, 0, 0, SIZE, SIZE));
+    assertEquals(0, sandbox.getDroppedCount());
+
+    // Particles placed past the budget are dropped, and counted.
+    sandbox.setParticle(500, 500, sand);
+    sandbox.fillRect(1000, 1000, 2, 2, sand);
+    assertEquals(5, sandbox.getDroppedCount());
+    assertEquals(1, count(sandbox, 0, 0, SIZE, SIZE));
+  }
+
+  public void testReadWrite() throws IOException {
+    ChunkedSandBox sandbox = newWorld();
+    ElementTable table = sandbox.elementTable;
+    sandbox.fillRect(1000, 1000, 200, 2, table.resolve("Wall"));
+    sandbox.fillRect(1050, 1040, 40, 20, table.resolve("Water"));
+    sandbox.fillRect(1010, 1002, 60, 3, table.resolve("Plant"));
+    sandbox.fillCircle(1100, 1010, 4, table.resolve("Fire"));
+    sandbox.addSource(table.resolve("Sand"), 1150, 1100);
+    for (int i = 0; i < 20; i++) {
+      sandbox.update();
+    }
+    byte[] data = sandbox.packToBytes();
+    ChunkedSandBox copy = ChunkedSandBox.unpack(data);
+    assertTrue(Arrays.equals(data, copy.packToBytes()));
+
+    // The copy carries on exactly as the original does.
+    for (int i = 0; i < 50; i++) {
+      sandbox.update();
+      copy.update();
+    }
+    assertTrue(Arrays.equals(sandbox.packToBytes(), copy.packToBytes()));
+
+    data[0] ^= 1;
+    try {
+      ChunkedSandBox.unpack(data);
+      fail();
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  public void testRenderRegion() {
+    ChunkedSandBox sandbox = newWorld();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.setParticle(100, 100, wall);
+    sandbox.setParticle(102, 101, water);
+    sandbox.setParticle(3000, 3000, wall);
+
+    // Top row first.
+    int[] pixels = new int[3 * 2];
+    Arrays.fill(pixels, -1);
+    sandbox.renderRegion(100, 100, 3, 2, pixels);
+    assertTrue(Arrays.equals(new int[] { 0, 0, water.color, wall.color, 0, 0 }, pixels));
+
+    // Partly off the world.
+    pixels = new int[4 * 4];
+    sandbox.renderRegion(SIZE - 2, SIZE - 2, 4, 4, pixels);
+    assertTrue(Arrays.equals(new int[16], pixels));
+    sandbox.setParticle(SIZE - 1, SIZE - 2, wall);
+    sandbox.renderRegion(SIZE - 2, SIZE - 2, 4, 4, pixels);
+    assertEquals(wall.color, pixels[3 * 4 + 1]);
+
+    // A region bigger than the allocated tiles.
+    pixels = new int[SIZE];
+    sandbox.renderRegion(2990, 2990, 64, 64, pixels);
+    assertEquals(wall.color, pixels[(64 - 1 - 10) * 64 + 10]);
+  }
+}
@@ -11,4 +11,51 @@ public class ElementTableTest extends TestCase {
     assertEquals(elementTable, Utils.copy(elementTable));
   }
 
+  public void testReacts() {
+    ElementTable elementTable = Utils.getTestElementTable();
+    Element fire = elementTable.resolve("Fire");
+    Element plant = elementTable.resolve("Plant");
+    Element water = elementTable.resolve("Water");
+    assertTrue(elementTable.reacts(fire.ordinal, plant.ordinal));
+    assertTrue(elementTable.reacts(plant.ordinal, water.ordinal));
+    assertFalse(elementTable.reacts(plant.ordinal, fire.ordinal));
+    assertFalse(elementTable.reacts(water.ordinal, plant.ordinal));
+    assertSame(water, elementTable.maybeTransmutate(fire, water, new SandBox.RNG(1)));
+  }
+
+  public void testThresholds() {
+    // The integer thresholds must pick exactly what comparing nextFloat()
+    // against the probability would.
+    ElementTable elementTable = Utils.getTestElementTable();
+    Element fire = elementTable.resolve("Fire");
+    Element plant = elementTable.resolve("Plant");
+    Element smoke = elementTable.resolve("Smoke");
+    SandBox.RNG rng = new SandBox.RNG(7);
+    SandBox.RNG reference = new SandBox.RNG(7);
+    int burned = 0;
+    for (int i = 0; i < 10000; i++) {
+      Element product = elementTable.maybeTransmutate(fire, plant, rng);
+      boolean expected = reference.nextFloat() < 0.8f;
+      if (expected) {
+        burned++;
+      }
+      assertSame(expected ? smoke : plant, product);
+    }
+    assertTrue(burned > 7500 && burned < 8500);
+  }
+
+  public void testResolve() {
+    ElementTable elementTable = Utils.getTestElementTable();
+    Element plant = elementTable.elements[4];
+    assertSame(plant, elementTable.resolve("Plant"));
+    assertSame(plant, elementTable.resolve("pLANT"));
+    assertSame(plant, elementTable.resolve('P'));
+    assertSame(plant, elementTable.resolve((byte) 4));
+    assertNull(elementTable.resolve("Lava"));
+    assertNull(elementTable.resolve('Z'));
+    assertNull(elementTable.resolve('\uffff'));
+    assertNull(elementTable.resolve(BaseSandBox.EMPTY));
+    assertNull(elementTable.resolve((byte) 6));
+  }
+
 }
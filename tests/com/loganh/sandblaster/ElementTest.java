@@ -35,4 +35,29 @@ public class ElementTest extends TestCase {
     }
   }
 
+  public void testPickProduct() {
+    Element[] elements = Utils.getTestElementTable().elements;
+    Element.ProductSet productSet = new Element.ProductSet(
+        new Element[]{elements[0], elements[1], null, elements[2], elements[3]},
+        new float[]{1, 2, 3, 0, 4});
+    SandBox.RNG rng = new SandBox.RNG(3);
+    int[] counts = new int[elements.length + 1];
+    int n = 100000;
+    for (int i = 0; i < n; i++) {
+      Element product = productSet.pickProduct(rng);
+      counts[product == null ? elements.length : product.ordinal]++;
+    }
+    assertEquals(0.1, (double) counts[0] / n, 0.01);
+    assertEquals(0.2, (double) counts[1] / n, 0.01);
+    assertEquals(0.3, (double) counts[elements.length] / n, 0.01);
+    assertEquals(0, counts[2]);
+    assertEquals(0.4, (double) counts[3] / n, 0.01);
+
+    Element.ProductSet weightless = new Element.ProductSet(
+        new Element[]{elements[0], elements[1]}, new float[]{0, 0});
+    for (int i = 0; i < 100; i++) {
+      assertSame(elements[0], weightless.pickProduct(rng));
+    }
+  }
+
 }
@@ -0,0 +1,154 @@
+package com.loganh.sandblaster;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+
+public class FrameBufferTest extends TestCase {
+
+  private SandBox sandbox;
+  private Element wall;
+
+  @Override
+  protected void setUp() {
+    sandbox = new SandBox(20, 10);
+    sandbox.elementTable = Utils.getTestElementTable();
+    wall = sandbox.elementTable.resolve("Wall");
+  }
+
+  public void testTake() {
+    FrameBuffer frames = new FrameBuffer();
+    assertNull(frames.take());
+
+    frames.publish(sandbox);
+    FrameBuffer.Frame frame = frames.take();
+    assertNotNull(frame);
+    assertEquals(20, frame.width);
+    assertEquals(10, frame.height);
+    assertTrue(frame.allChanged);
+    assertNull(frames.take());
+
+    // Frames always match the sandbox at the time they were published.
+    for (int i = 0; i < 5; i++) {
+      sandbox.setParticle(i, i, wall);
+      frames.publish(sandbox);
+      frame = frames.take();
+      assertTrue(Arrays.equals(sandbox.getPixels(), frame.pixels));
+      assertFalse(frame.allChanged);
+    }
+  }
+
+  public void testChanges() {
+    FrameBuffer frames = new FrameBuffer();
+    frames.publish(sandbox);
+    frames.take();
+
+    sandbox.setParticle(3, 9, wall);
+    frames.publish(sandbox);
+    FrameBuffer.Frame frame = frames.take();
+    for (int row = 0; row < 10; row++) {
+      assertEquals(row == 0, frame.isChanged(row));
+    }
+    assertEquals(3, frame.changedLeft[0]);
+    assertEquals(3, frame.changedRight[0]);
+
+    // A frame that replaces one that was never taken carries its changes too.
+    sandbox.setParticle(5, 9, wall);
+    frames.publish(sandbox);
+    sandbox.setParticle(8, 9, wall);
+    sandbox.setParticle(1, 0, wall);
+    frames.publish(sandbox);
+    frame = frames.take();
+    assertTrue(Arrays.equals(sandbox.getPixels(), frame.pixels));
+    for (int row = 0; row < 10; row++) {
+      assertEquals(row == 0 || row == 9, frame.isChanged(row));
+    }
+    assertEquals(5, frame.changedLeft[0]);
+    assertEquals(8, frame.changedRight[0]);
+    assertEquals(1, frame.changedLeft[9]);
+    assertEquals(1, frame.changedRight[9]);
+  }
+
+  public void testNewSandBox() {
+    FrameBuffer frames = new FrameBuffer();
+    frames.publish(sandbox);
+    frames.take();
+
+    SandBox other = new SandBox(30, 5);
+    other.elementTable = sandbox.elementTable;
+    other.setParticle(0, 0, wall);
+    frames.publish(other);
+    FrameBuffer.Frame frame = frames.take();
+    assertEquals(30, frame.width);
+    assertEquals(5, frame.height);
+    assertTrue(frame.allChanged);
+    assertTrue(Arrays.equals(other.getPixels(), frame.pixels));
+  }
+
+  public void testRenderedOnDemand() {
+    SandBox rendered = new SandBox(20, 10) {
+      @Override
+      boolean rendersOnDemand() {
+        return true;
+      }
+
+      @Override
+      void renderPixels(ByteBuffer buffer) {
+        buffer.putInt(0, iteration);
+      }
+    };
+    rendered.elementTable = sandbox.elementTable;
+    FrameBuffer frames = new FrameBuffer();
+    for (int i = 0; i < 3; i++) {
+      rendered.update();
+      frames.publish(rendered);
+      FrameBuffer.Frame frame = frames.take();
+      assertNull(frame.pixels);
+      assertEquals(4 * 20 * 10, frame.buffer.capacity());
+      assertEquals(rendered.iteration, frame.buffer.getInt(0));
+      assertTrue(frame.allChanged);
+    }
+
+    // Back to copying pixels for a sandbox that keeps them.
+    sandbox.setParticle(0, 0, wall);
+    frames.publish(sandbox);
+    FrameBuffer.Frame frame = frames.take();
+    assertNull(frame.buffer);
+    assertTrue(frame.allChanged);
+    assertTrue(Arrays.equals(sandbox.getPixels(), frame.pixels));
+  }
+
+  public void testRegion() {
+    ChunkedSandBox chunked = new ChunkedSandBox(4096, 4096);
+    chunked.elementTable = sandbox.elementTable;
+    chunked.fillRect(1000, 3000, 5, 3, wall);
+    FrameBuffer frames = new FrameBuffer();
+    for (int i = 0; i < 2; i++) {
+      // Bitmap rows count down from the top, so board row 3000 is at 1095.
+      frames.publish(chunked, 990 + i, 1080, 20, 30);
+      FrameBuffer.Frame frame = frames.take();
+      assertEquals(20, frame.width);
+      assertEquals(30, frame.height);
+      assertEquals(990 + i, frame.left);
+      assertEquals(1080, frame.top);
+      assertEquals(4096, frame.boardWidth);
+      assertEquals(4096, frame.boardHeight);
+      assertTrue(frame.allChanged);
+      int[] expected = new int[20 * 30];
+      chunked.renderRegion(990 + i, 4096 - 1080 - 30, 20, 30, expected);
+      assertTrue(Arrays.equals(expected, frame.pixels));
+      assertTrue(frame.pixels[(1095 - 1080) * 20 + 1000 - 990 - i] != 0);
+    }
+
+    // And back to the whole of a dense sandbox.
+    frames.publish(sandbox);
+    FrameBuffer.Frame frame = frames.take();
+    assertEquals(0, frame.left);
+    assertEquals(0, frame.top);
+    assertEquals(20, frame.boardWidth);
+    assertTrue(frame.allChanged);
+    assertTrue(Arrays.equals(sandbox.getPixels(), frame.pixels));
+  }
+}
@@ -0,0 +1,62 @@
+package com.loganh.sandblaster;
+
+import junit.framework.TestCase;
+
+
+public class LatencyHistogramTest extends TestCase {
+
+  public void testBuckets() {
+    // Every value lands in a bucket whose range holds it, and buckets follow
+    // one another without gaps.
+    long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 999999, 1000000, 123456789L, Long.MAX_VALUE };
+    for (long value : values) {
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(value + " above its bucket", value <= LatencyHistogram.highestInBucket(bucket));
+      assertTrue(value + " below its bucket", bucket == 0 || value > LatencyHistogram.highestInBucket(bucket - 1));
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    for (int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+      long low = LatencyHistogram.highestInBucket(bucket - 1) + 1;
+      assertEquals(bucket, LatencyHistogram.bucket(low));
+      assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.highestInBucket(bucket)));
+    }
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(99));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000, histogram.getMax());
+    assertEquals(500500, histogram.getMean());
+    assertEquals(500000, histogram.getPercentile(50), 500000 / 32);
+    assertEquals(900000, histogram.getPercentile(90), 900000 / 32);
+    assertEquals(990000, histogram.getPercentile(99), 990000 / 32);
+    assertEquals(1000000, histogram.getPercentile(100));
+    assertEquals(1000, histogram.getPercentile(0), 1000 / 32);
+
+    LatencyHistogram copy = histogram.copy();
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(1000, copy.getCount());
+    assertEquals(1000000, copy.getPercentile(100));
+  }
+
+  public void testMissedDeadlines() {
+    FrameLatency latency = new FrameLatency(20);
+    assertEquals(50000000, latency.getFramePeriod());
+    latency.recordFrame(20000000, 10000000);
+    latency.recordFrame(40000000, 10000000);
+    latency.recordFrame(40000000, 10000001);
+    latency.recordUpdate(5000000);
+    assertEquals(1, latency.getMissedDeadlines());
+    assertEquals(3, latency.draw.getCount());
+    assertEquals(1, latency.update.getCount());
+    latency.reset();
+    assertEquals(0, latency.getMissedDeadlines());
+    assertEquals(0, latency.draw.getCount());
+  }
+}
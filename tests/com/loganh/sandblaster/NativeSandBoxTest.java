@@ -0,0 +1,221 @@
+package com.loganh.sandblaster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+
+// Runs the native engine beside SandBox from the same snapshot and seed, and
+// checks that the two boards never drift apart.
+public class NativeSandBoxTest extends TestCase {
+
+  static private final long SEED = 42;
+
+  // A board with something for every part of update() to do: sand and water
+  // to fall and slide, fire and smoke to rise and decay, plants to grow into
+  // the water and burn, and sources to keep it all going.
+  static private byte[] newBoard() throws IOException {
+    SandBox sandbox = new SandBox(64, 80);
+    sandbox.elementTable = Utils.getTestElementTable();
+    ElementTable table = sandbox.elementTable;
+    Element wall = table.resolve("Wall");
+    sandbox.fillRect(0, 0, 64, 2, wall);
+    sandbox.fillRect(20, 30, 24, 2, wall);
+    sandbox.fillRect(0, 40, 30, 10, table.resolve("Water"));
+    sandbox.fillRect(34, 50, 20, 10, table.resolve("Sand"));
+    sandbox.fillRect(10, 2, 40, 3, table.resolve("Plant"));
+    sandbox.fillCircle(32, 10, 4, table.resolve("Fire"));
+    sandbox.addSource(table.resolve("Water"), 5, 75);
+    sandbox.addSource(table.resolve("Sand"), 50, 75);
+    sandbox.addSource(table.resolve("Fire"), 32, 3);
+    sandbox.setSeed(SEED);
+    for (int i = 0; i < 10; i++) {
+      sandbox.update();
+    }
+    return sandbox.packToBytes();
+  }
+
+  // Fails with the number of cells that differ and the first of them, or if
+  // the saved states differ in any other way.
+  static private void assertSameBoard(SandBox expected, NativeSandBox actual) throws IOException {
+    actual.sync();
+    int diffs = 0;
+    String first = null;
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        Element e = expected.getElement(x, y);
+        Element a = actual.getElement(x, y);
+        if (e == null ? a != null : a == null || e.ordinal != a.ordinal) {
+          if (diffs++ == 0) {
+            first = "(" + x + ", " + y + "): " + e + " vs. " + a;
+          }
+        }
+      }
+    }
+    assertEquals("iteration " + expected.iteration + ": " + diffs + " cells differ, first at " + first, 0, diffs);
+    // Everything else a snapshot keeps: particle ages and timestamps, sources,
+    // chunk activity and the random state.
+    assertTrue("iteration " + expected.iteration + ": saved state differs",
+        Arrays.equals(expected.packToBytes(), actual.writeToBytes()));
+  }
+
+  static private void run(SandBox expected, NativeSandBox actual, int iterations) throws IOException {
+    for (int i = 0; i < iterations; i++) {
+      expected.update();
+      actual.update();
+      if (i % 10 == 9) {
+        assertSameBoard(expected, actual);
+      }
+    }
+    assertSameBoard(expected, actual);
+  }
+
+  public void testReadWrite() throws IOException {
+    byte[] data = newBoard();
+    NativeSandBox sandbox = NativeSandBox.read(data);
+    assertTrue(Arrays.equals(data, sandbox.writeToBytes()));
+    assertEquals(SandBox.unpack(data), sandbox);
+  }
+
+  public void testConformance() throws IOException {
+    byte[] data = newBoard();
+    SandBox expected = SandBox.unpack(data);
+    NativeSandBox actual = NativeSandBox.read(data);
+    expected.setSeed(SEED);
+    actual.setSeed(SEED);
+    run(expected, actual, 300);
+  }
+
+  public void testConformanceWithoutSkipping() throws IOException {
+    byte[] data = newBoard();
+    SandBox expected = SandBox.unpack(data);
+    NativeSandBox actual = NativeSandBox.read(data);
+    expected.setSkipSettledChunks(false);
+    actual.setSkipSettledChunks(false);
+    run(expected, actual, 100);
+  }
+
+  public void testEdits() throws IOException {
+    byte[] data = newBoard();
+    SandBox expected = SandBox.unpack(data);
+    NativeSandBox actual = NativeSandBox.read(data);
+    expected.setSeed(SEED);
+    actual.setSeed(SEED);
+    ElementTable table = expected.elementTable;
+    Element water = table.resolve("Water");
+    Element sand = table.resolve("Sand");
+    Element wall = table.resolve("Wall");
+    Element plant = table.resolve("Plant");
+    for (SandBox sandbox : new SandBox[] { expected, actual }) {
+      sandbox.line(water, 3, 5, 60, 40, 70);
+      sandbox.setParticle(50, 65, sand, 4);
+      sandbox.line(wall, 1, 10, 20, 30, 25);
+      sandbox.fillRect(40, 35, 10, 5, plant);
+      sandbox.floodFill(30, 78, sand);
+      sandbox.pasteRegion(0, 60, 8, 8, sandbox.copyRegion(20, 40, 8, 8));
+      sandbox.removeSource(5, 75);
+      sandbox.addSource(water, 60, 70);
+      sandbox.addSource(null, 50, 75);
+      assertEquals(0, sandbox.copyRegion(20, 40, -8, 8).length);
+    }
+    assertSameBoard(expected, actual);
+    run(expected, actual, 100);
+  }
+
+  public void testDispose() throws IOException {
+    NativeSandBox sandbox = NativeSandBox.read(newBoard());
+    sandbox.update();
+    sandbox.dispose();
+    try {
+      sandbox.update();
+      fail();
+    } catch (IllegalStateException ex) {
+      // Expected.
+    }
+    sandbox.close();
+
+    sandbox.clear();
+    sandbox.update();
+    sandbox.close();
+  }
+
+  public void testBinarySnapshot() throws IOException {
+    NativeSandBox sandbox = NativeSandBox.read(newBoard());
+    sandbox.update();
+    sandbox.sync();
+    ByteBuffer buffer = BinarySnapshot.write(sandbox);
+    assertTrue(BinarySnapshot.isNative(buffer));
+
+    // Loading the snapshot back into the native engine gives the same board.
+    SandBox copy = BinarySnapshot.read(buffer);
+    NativeSandBox actual = NativeSandBox.read(copy);
+    assertSameBoard(copy, actual);
+    assertTrue(Arrays.equals(sandbox.writeToBytes(), actual.writeToBytes()));
+    sandbox.close();
+    actual.close();
+  }
+
+  public void testUndo() throws IOException {
+    NativeSandBox sandbox = NativeSandBox.read(newBoard());
+    Element wall = sandbox.elementTable.resolve("Wall");
+    UndoStack stack = new UndoStack();
+    byte[][] states = new byte[3][];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = sandbox.writeToBytes();
+      assertTrue(stack.push(sandbox));
+      sandbox.fillRect(5 + 10 * i, 60, 8, 8, wall);
+      for (int j = 0; j < 5; j++) {
+        sandbox.update();
+      }
+    }
+    assertEquals(wall, sandbox.getElement(25, 60));
+    assertNull(sandbox.getElement(-1, 60));
+    assertNull(sandbox.getElement(sandbox.getWidth(), 60));
+
+    // Each pop restores the native sandbox in place, native edits and all.
+    for (int i = states.length - 1; i >= 0; i--) {
+      assertSame(sandbox, stack.pop());
+      assertTrue("state " + i, Arrays.equals(states[i], sandbox.writeToBytes()));
+    }
+    assertNull(sandbox.getElement(25, 60));
+    assertTrue(stack.isEmpty());
+    sandbox.close();
+  }
+
+  public void testRenderPixels() throws IOException {
+    SandBox sandbox = new SandBox(3, 2);
+    Element red = new Element("Red", 'R', 0xffff0000, true, false, 0, 1);
+    Element glass = new Element("Glass", 'G', 0x80336699, true, false, 0, 1);
+    sandbox.elementTable = new ElementTable(new Element[] { red, glass });
+    sandbox.setParticle(0, 0, red);
+    sandbox.setParticle(2, 1, glass);
+    NativeSandBox actual = NativeSandBox.read(sandbox.packToBytes());
+    assertTrue(actual.rendersOnDemand());
+
+    // Top row first; premultiplied red, green, blue and alpha bytes.
+    ByteBuffer buffer = ByteBuffer.allocateDirect(4 * 3 * 2);
+    actual.renderPixels(buffer);
+    byte[] pixels = new byte[buffer.capacity()];
+    buffer.get(pixels);
+    assertTrue(Arrays.equals(new byte[] {
+        0, 0, 0, 0,  0, 0, 0, 0,  26, 51, 77, (byte) 128,
+        (byte) 255, 0, 0, (byte) 255,  0, 0, 0, 0,  0, 0, 0, 0,
+    }, pixels));
+
+    // The Java sandbox renders the same bytes.
+    buffer.clear();
+    sandbox.renderPixels(buffer);
+    byte[] expected = new byte[buffer.capacity()];
+    buffer.get(expected);
+    assertTrue(Arrays.equals(pixels, expected));
+
+    try {
+      actual.renderPixels(ByteBuffer.allocate(4 * 3 * 2));
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package com.loganh.sandblaster;
 
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
 import android.os.SystemClock;
 import android.test.ActivityInstrumentationTestCase;
 
@@ -59,4 +62,73 @@ public class SandActivityPerformanceTest extends ActivityInstrumentationTestCase
     assertTrue(total < T);
   }
 
+  public void testRenderAllocations() {
+    SandBox sandbox = new SandBox(128, 160);
+    sandbox.elementTable = Utils.getTestElementTable();
+    sandbox.addSource(sandbox.elementTable.resolve("Water"), 64, 150);
+    PixelRenderer renderer = new PixelRenderer();
+    renderer.setSandBox(sandbox);
+    AbsRenderer.Camera camera = renderer.getCamera();
+    camera.setViewDimensions(320, 480);
+    camera.setScale(8);
+    Canvas canvas = new Canvas(Bitmap.createBitmap(320, 480, Bitmap.Config.ARGB_8888));
+
+    // The first frames set up the bitmap and the frame buffers.
+    for (int i = 0; i < 10; i++) {
+      sandbox.update();
+      renderer.publish();
+      renderer.drawFrame(canvas);
+      renderer.drawFps(canvas);
+    }
+
+    // Updating the sandbox isn't part of the render loop, so only the frames
+    // are counted.
+    int allocations = 0;
+    Debug.startAllocCounting();
+    try {
+      for (int i = 0; i < 50; i++) {
+        sandbox.update();
+        Debug.resetThreadAllocCount();
+        camera.pan(1, 0);
+        renderer.publish();
+        renderer.drawFrame(canvas);
+        renderer.drawFps(canvas);
+        allocations += Debug.getThreadAllocCount();
+      }
+    } finally {
+      Debug.stopAllocCounting();
+    }
+    assertEquals(0, allocations);
+  }
+
+  public void testFrameLatency() {
+    SandBox sandbox = new SandBox(256, 256);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.fillRect(0, 128, 256, 64, water);
+    sandbox.addSource(water, 128, 250);
+    PixelRenderer renderer = new PixelRenderer();
+    renderer.setSandBox(sandbox);
+    renderer.getCamera().setViewDimensions(320, 480);
+    Canvas canvas = new Canvas(Bitmap.createBitmap(320, 480, Bitmap.Config.ARGB_8888));
+
+    FrameLatency latency = renderer.getLatency();
+    int n = 200;
+    for (int i = 0; i < n; i++) {
+      long start = System.nanoTime();
+      sandbox.update();
+      latency.recordUpdate(System.nanoTime() - start);
+      renderer.publish();
+      renderer.drawFrame(canvas);
+    }
+
+    Log.i("frame latency: {0}", latency);
+    assertEquals(n, latency.update.getCount());
+    assertEquals(n, latency.draw.getCount());
+    assertEquals(n, latency.upload.getCount());
+    // Drawing alone must leave most of the frame for the simulation.
+    assertTrue(latency.draw.getPercentile(90) + latency.upload.getPercentile(90) < latency.getFramePeriod() / 2);
+    assertTrue(latency.getMissedDeadlines() <= n / 100);
+  }
+
 }
@@ -1,6 +1,9 @@
 package com.loganh.sandblaster;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -31,11 +34,378 @@ public class SandBoxTest extends TestCase {
     assertEquals(sandbox, Utils.copy(sandbox));
 
     sandbox.line(wall, 0, 0, 50, 50);
-    sandbox.ages[20][20] = 10;
-    sandbox.lastSet[30][30] = 100;
-    sandbox.lastChange[40][40] = 200;
-    sandbox.lastFloated[50][50] = 300;
+    sandbox.ages[sandbox.index(20, 20)] = 10;
+    sandbox.lastSet[sandbox.index(30, 30)] = 100;
+    sandbox.lastChange[sandbox.index(40, 40)] = 200;
+    sandbox.lastFloated[sandbox.index(50, 50)] = 300;
     assertEquals(sandbox, Utils.copy(sandbox));
   }
 
+  public void testPackingRuns() throws IOException {
+    SandBox sandbox = new SandBox(200, 200);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.fillRect(0, 0, 200, 10, wall);
+    sandbox.fillRect(0, 10, 100, 100, water);
+    sandbox.fillRect(101, 10, 99, 100, water);
+    sandbox.ages[sandbox.index(20, 20)] = 10;
+    sandbox.lastSet[sandbox.index(30, 30)] = 100;
+    assertEquals(sandbox, Utils.copy(sandbox));
+
+    // Runs of alike particles take a handful of bytes per row, where each
+    // particle used to take nine.
+    byte[] data = sandbox.packToBytes();
+    assertTrue("packed to " + data.length, data.length < 200 * 20);
+
+    // A run that overruns its row is rejected. The cells start where an
+    // empty sandbox's rows would, and the first run's length follows its gap.
+    SandBox empty = new SandBox(200, 200);
+    empty.elementTable = sandbox.elementTable;
+    int cells = empty.packToBytes().length - 2 * 200 - 4 * empty.chunkChanged.length;
+    data[cells + 2] = 1;
+    try {
+      SandBox.unpack(data);
+      fail();
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+
+  public void testReadVersion16() throws IOException {
+    // Version 1.6 wrote each particle in full, and had no random state or
+    // chunk activity.
+    ElementTable elementTable = Utils.getTestElementTable();
+    Element wall = elementTable.resolve("Wall");
+    Element sand = elementTable.resolve("Sand");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream stream = new DataOutputStream(bytes);
+    stream.writeFloat(1.6f);
+    elementTable.write(stream);
+    stream.writeShort(4);
+    stream.writeShort(2);
+    stream.writeInt(50);
+    stream.writeInt(1);
+    stream.writeShort(3);
+    stream.writeShort(0);
+    stream.writeByte(sand.ordinal);
+    stream.writeShort(1);
+    for (int x = 1; x < 3; x++) {
+      stream.writeByte(wall.ordinal);
+      stream.writeShort(x);
+      stream.writeShort(-x);
+      stream.writeShort(0);
+      stream.writeShort(0);
+      stream.writeShort(x < 2 ? x + 1 : -1);
+    }
+    stream.writeShort(4);
+    stream.close();
+
+    SandBox sandbox = SandBox.unpack(bytes.toByteArray());
+    assertEquals(4, sandbox.width);
+    assertEquals(2, sandbox.height);
+    assertEquals(50, sandbox.iteration);
+    assertEquals(1, sandbox.getSources().length);
+    assertNull(sandbox.getElement(0, 0));
+    assertEquals(wall, sandbox.getElement(1, 0));
+    assertEquals(wall, sandbox.getElement(2, 0));
+    assertNull(sandbox.getElement(3, 0));
+    assertEquals(2, sandbox.ages[sandbox.index(2, 0)]);
+    assertEquals(48, sandbox.lastSet[sandbox.index(2, 0)]);
+    assertEquals(sandbox, Utils.copy(sandbox));
+  }
+
+  public void testFalling() {
+    SandBox sandbox = new SandBox(10, 10);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.setParticle(5, 5, water);
+    assertEquals(water, sandbox.getElement(5, 5));
+    assertEquals(water.color, sandbox.getPixels()[4 * 10 + 5]);
+
+    sandbox.update();
+    assertNull(sandbox.getElement(5, 5));
+    assertEquals(water, sandbox.getElement(5, 4));
+    assertEquals(0, sandbox.getPixels()[4 * 10 + 5]);
+    assertEquals(water.color, sandbox.getPixels()[5 * 10 + 5]);
+
+    // Particles drop off the bottom edge.
+    for (int i = 0; i < 5; i++) {
+      sandbox.update();
+    }
+    for (int x = 0; x < 10; x++) {
+      for (int y = 0; y < 10; y++) {
+        assertNull(sandbox.getElement(x, y));
+      }
+    }
+  }
+
+
+  private SandBox newTank(int threads) {
+    SandBox sandbox = new SandBox(64, 80);
+    sandbox.elementTable = Utils.getTestElementTable();
+    sandbox.setThreadCount(threads);
+    sandbox.setSeed(1);
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element water = sandbox.elementTable.resolve("Water");
+    sandbox.line(wall, 0, 0, 63, 0);
+    sandbox.line(wall, 0, 0, 0, 79);
+    sandbox.line(wall, 63, 0, 63, 79);
+    for (int y = 40; y < 70; y++) {
+      sandbox.line(water, 1, y, 62, y);
+    }
+    return sandbox;
+  }
+
+  private int count(SandBox sandbox, Element element) {
+    int n = 0;
+    for (int x = 0; x < sandbox.getWidth(); x++) {
+      for (int y = 0; y < sandbox.getHeight(); y++) {
+        if (sandbox.getElement(x, y) == element) {
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  public void testParallelUpdate() {
+    SandBox two = newTank(2);
+    SandBox four = newTank(4);
+    Element water = two.elementTable.resolve("Water");
+    int total = count(two, water);
+    for (int i = 0; i < 100; i++) {
+      two.update();
+      four.update();
+    }
+    two.setThreadCount(1);
+    four.setThreadCount(1);
+    assertEquals(total, count(two, water));
+    assertEquals(two, four);
+  }
+
+  public void testSeed() throws IOException {
+    SandBox a = newTank(1);
+    SandBox b = newTank(1);
+    for (int i = 0; i < 50; i++) {
+      a.update();
+      b.update();
+    }
+    assertEquals(a, b);
+
+    // The random state survives packing, so a copy carries on identically.
+    // (Bookkeeping left behind in empty cells isn't packed, so compare what
+    // the run produces rather than the whole state.)
+    SandBox c = Utils.copy(a);
+    for (int i = 0; i < 50; i++) {
+      a.update();
+      c.update();
+    }
+    assertTrue(Arrays.equals(a.getPixels(), c.getPixels()));
+    assertEquals(a.rng.getState(), c.rng.getState());
+
+    // A different seed makes for a different run.
+    b = newTank(1);
+    b.setSeed(2);
+    for (int i = 0; i < 100; i++) {
+      b.update();
+    }
+    assertFalse(a.equals(b));
+  }
+
+  public void testDirtySpans() {
+    SandBox sandbox = new SandBox(20, 10);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element wall = sandbox.elementTable.resolve("Wall");
+
+    // A new sandbox is dirty all over.
+    for (int row = 0; row < 10; row++) {
+      assertEquals(0, sandbox.dirtyLeft[row]);
+      assertEquals(19, sandbox.dirtyRight[row]);
+    }
+
+    sandbox.clearDirty();
+    sandbox.setParticle(12, 2, wall);
+    sandbox.setParticle(5, 2, wall);
+    sandbox.setParticle(7, 8, wall);
+    for (int row = 0; row < 10; row++) {
+      if (row == 7) {
+        assertEquals(5, sandbox.dirtyLeft[row]);
+        assertEquals(12, sandbox.dirtyRight[row]);
+      } else if (row == 1) {
+        assertEquals(7, sandbox.dirtyLeft[row]);
+        assertEquals(7, sandbox.dirtyRight[row]);
+      } else {
+        assertTrue(sandbox.dirtyLeft[row] > sandbox.dirtyRight[row]);
+      }
+    }
+
+    // Setting a particle to what's already there changes nothing.
+    sandbox.clearDirty();
+    sandbox.setParticle(12, 2, wall);
+    assertTrue(sandbox.dirtyLeft[7] > sandbox.dirtyRight[7]);
+  }
+
+  public void testSettledChunks() {
+    SandBox sandbox = new SandBox(64, 64);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element water = sandbox.elementTable.resolve("Water");
+    for (int i = 0; i <= BaseSandBox.CHUNK_WAKE_ITERATIONS; i++) {
+      sandbox.update();
+    }
+
+    // Sneak a particle in without marking its chunk as changed; it stays put
+    // while the chunk sleeps.
+    sandbox.cells[sandbox.index(40, 40)] = (byte) water.ordinal;
+    sandbox.update();
+    assertEquals(water, sandbox.getElement(40, 40));
+
+    // A change in a neighboring chunk wakes it up.
+    sandbox.setParticle(40, 50, water);
+    sandbox.update();
+    assertNull(sandbox.getElement(40, 40));
+    assertEquals(water, sandbox.getElement(40, 39));
+
+    // Without skipping, everything is simulated.
+    sandbox = new SandBox(64, 64);
+    sandbox.elementTable = Utils.getTestElementTable();
+    sandbox.setSkipSettledChunks(false);
+    for (int i = 0; i <= BaseSandBox.CHUNK_WAKE_ITERATIONS; i++) {
+      sandbox.update();
+    }
+    sandbox.cells[sandbox.index(40, 40)] = (byte) water.ordinal;
+    sandbox.update();
+    assertEquals(water, sandbox.getElement(40, 39));
+  }
+
+  public void testFillRect() {
+    SandBox sandbox = new SandBox(20, 10);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    sandbox.clearDirty();
+    sandbox.fillRect(15, -2, 10, 5, wall);
+    assertEquals(15, count(sandbox, wall));
+    assertEquals(wall, sandbox.getElement(19, 2));
+    assertNull(sandbox.getElement(14, 2));
+    assertNull(sandbox.getElement(15, 3));
+    assertEquals(wall.color, sandbox.getPixels()[7 * 20 + 15]);
+    assertEquals(15, sandbox.dirtyLeft[7]);
+    assertEquals(19, sandbox.dirtyRight[7]);
+    assertTrue(sandbox.dirtyLeft[6] > sandbox.dirtyRight[6]);
+
+    sandbox.fillRect(-5, -5, 100, 100, null);
+    assertEquals(200, count(sandbox, null));
+  }
+
+  public void testFillCircle() {
+    // The solid brush and fillCircle cover the same disc.
+    SandBox brushed = new SandBox(30, 30);
+    brushed.elementTable = Utils.getTestElementTable();
+    Element wall = brushed.elementTable.resolve("Wall");
+    for (int i = -6; i <= 6; i++) {
+      for (int j = -6; j <= 6; j++) {
+        if (i * i + j * j <= 36) {
+          brushed.setParticle(3 + i, 20 + j, wall);
+        }
+      }
+    }
+    SandBox filled = new SandBox(30, 30);
+    filled.elementTable = brushed.elementTable;
+    filled.fillCircle(3, 20, 6, wall);
+    assertTrue(Arrays.equals(brushed.cells, filled.cells));
+    assertTrue(Arrays.equals(brushed.pixels, filled.pixels));
+  }
+
+  public void testFloodFill() {
+    SandBox sandbox = new SandBox(20, 20);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element water = sandbox.elementTable.resolve("Water");
+
+    // A walled box with a partial divider inside.
+    sandbox.fillRect(2, 2, 10, 1, wall);
+    sandbox.fillRect(2, 11, 10, 1, wall);
+    sandbox.fillRect(2, 2, 1, 10, wall);
+    sandbox.fillRect(11, 2, 1, 10, wall);
+    sandbox.fillRect(6, 2, 1, 6, wall);
+    assertEquals(0, sandbox.floodFill(2, 2, wall));
+    assertEquals(59, sandbox.floodFill(4, 4, water));
+    assertEquals(water, sandbox.getElement(9, 3));
+    assertEquals(water, sandbox.getElement(3, 10));
+    assertNull(sandbox.getElement(3, 12));
+
+    // Filling the walls replaces only what's connected to them.
+    assertEquals(41, sandbox.floodFill(2, 2, null));
+    assertEquals(59, count(sandbox, water));
+  }
+
+  public void testCopyPaste() {
+    SandBox sandbox = new SandBox(20, 20);
+    sandbox.elementTable = Utils.getTestElementTable();
+    Element wall = sandbox.elementTable.resolve("Wall");
+    Element plant = sandbox.elementTable.resolve("Plant");
+    sandbox.fillRect(0, 0, 3, 2, wall);
+    sandbox.setParticle(1, 1, plant);
+
+    byte[] region = sandbox.copyRegion(-1, 0, 4, 2);
+    assertEquals(8, region.length);
+    assertEquals(BaseSandBox.EMPTY, region[0]);
+    assertEquals((byte) wall.ordinal, region[1]);
+    assertEquals((byte) plant.ordinal, region[6]);
+
+    sandbox.pasteRegion(10, 18, 4, 2, region);
+    assertNull(sandbox.getElement(10, 18));
+    assertEquals(wall, sandbox.getElement(11, 18));
+    assertEquals(plant, sandbox.getElement(12, 19));
+    assertEquals(plant.color, sandbox.getPixels()[0 * 20 + 12]);
+    assertTrue(Arrays.equals(region, sandbox.copyRegion(10, 18, 4, 2)));
+
+    try {
+      sandbox.pasteRegion(0, 0, 4, 3, region);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      // Expected.
+    }
+
+    assertEquals(0, sandbox.copyRegion(0, 0, -4, 2).length);
+    assertEquals(0, sandbox.copyRegion(0, 0, 4, -2).length);
+  }
+
+  public void testStats() {
+    SandBox sandbox = newTank(1);
+    for (int i = 0; i < 20; i++) {
+      sandbox.update();
+    }
+    UpdateStats stats = sandbox.getStats();
+    if (!UpdateStats.ENABLED) {
+      assertEquals(0, stats.updates);
+      assertEquals(0, stats.visited);
+    }
+
+    // Rows 20 to 59 are timed, which takes in the falling water.
+    sandbox.resetStats();
+    sandbox.setCollectingStats(true);
+    for (int i = 0; i < 40; i++) {
+      sandbox.update();
+    }
+    stats = sandbox.getStats();
+    assertEquals(40, stats.updates);
+    assertEquals(40L * 64 * 80, stats.visited + stats.skipped);
+    assertTrue(stats.swaps > 0);
+    assertTrue(stats.sweepNanos > 0);
+    assertTrue(stats.fallNanos > 0);
+    sandbox.resetStats();
+    assertEquals(0, sandbox.getStats().updates);
+
+    // Bands count into their own stats, which add up to the same totals.
+    SandBox banded = newTank(2);
+    banded.setCollectingStats(true);
+    for (int i = 0; i < 20; i++) {
+      banded.update();
+    }
+    stats = banded.getStats();
+    assertEquals(20, stats.updates);
+    assertEquals(20L * 64 * 80, stats.visited + stats.skipped);
+    banded.setThreadCount(1);
+  }
 }
@@ -0,0 +1,57 @@
+package com.loganh.sandblaster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+public class SourceSetTest extends TestCase {
+
+  public void testPutRemove() {
+    SourceSet sources = new SourceSet();
+    assertEquals(BaseSandBox.EMPTY, sources.get(5));
+    sources.put(5, (byte) 1);
+    sources.put(7, (byte) 2);
+    sources.put(5, (byte) 3);
+    assertEquals(2, sources.size());
+    assertEquals(3, sources.get(5));
+    assertTrue(sources.remove(5));
+    assertFalse(sources.remove(5));
+    assertEquals(1, sources.size());
+    assertEquals(7, sources.position(0));
+    assertEquals(2, sources.ordinal(0));
+  }
+
+  public void testAgainstMap() {
+    // Lots of colliding positions, churned hard enough to grow the set and
+    // exercise removal from the middle of probe runs.
+    Random random = new Random(1);
+    SourceSet sources = new SourceSet();
+    Map<Integer, Byte> expected = new HashMap<Integer, Byte>();
+    for (int i = 0; i < 20000; i++) {
+      int position = random.nextInt(200) * 64;
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(position) != null, sources.remove(position));
+      } else {
+        byte ordinal = (byte) random.nextInt(10);
+        sources.put(position, ordinal);
+        expected.put(position, ordinal);
+      }
+    }
+    assertEquals(expected.size(), sources.size());
+    for (int position = 0; position < 200 * 64; position += 64) {
+      Byte ordinal = expected.get(position);
+      assertEquals(ordinal == null ? BaseSandBox.EMPTY : ordinal.byteValue(), sources.get(position));
+    }
+    for (int i = 0; i < sources.size(); i++) {
+      assertEquals(expected.get(sources.position(i)).byteValue(), sources.ordinal(i));
+    }
+
+    SourceSet copy = new SourceSet(sources);
+    assertEquals(sources, copy);
+    copy.remove(copy.position(0));
+    assertFalse(sources.equals(copy));
+  }
+}
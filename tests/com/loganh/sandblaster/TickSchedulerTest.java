@@ -0,0 +1,84 @@
+package com.loganh.sandblaster;
+
+import junit.framework.TestCase;
+
+
+public class TickSchedulerTest extends TestCase {
+
+  static private final long MS = 1000000L;
+
+  private static class Counter implements TickScheduler.Client {
+    int ticks;
+    int frames;
+
+    public void tick() {
+      ticks++;
+    }
+
+    public void frame() {
+      frames++;
+    }
+  }
+
+  public void testSteady() {
+    Counter counter = new Counter();
+    TickScheduler scheduler = new TickScheduler(counter, 10, 10);
+
+    // The first tick and frame are due right away.
+    assertEquals(100 * MS, scheduler.step(0));
+    assertEquals(1, counter.ticks);
+    assertEquals(1, counter.frames);
+
+    assertEquals(50 * MS, scheduler.step(50 * MS));
+    assertEquals(1, counter.ticks);
+
+    for (int i = 1; i <= 10; i++) {
+      assertEquals(100 * MS, scheduler.step(i * 100 * MS));
+    }
+    assertEquals(11, counter.ticks);
+    assertEquals(11, counter.frames);
+    assertEquals(0, scheduler.getDroppedTicks());
+    assertEquals(0, scheduler.getSkippedFrames());
+  }
+
+  public void testFrameRate() {
+    Counter counter = new Counter();
+    TickScheduler scheduler = new TickScheduler(counter, 20, 5);
+    for (int i = 0; i < 20; i++) {
+      scheduler.step(i * 50 * MS);
+    }
+    assertEquals(20, counter.ticks);
+    assertEquals(5, counter.frames);
+  }
+
+  public void testCatchUp() {
+    Counter counter = new Counter();
+    TickScheduler scheduler = new TickScheduler(counter, 10, 10);
+    scheduler.step(0);
+
+    // Falling three ticks behind catches up, without a frame.
+    scheduler.step(300 * MS);
+    assertEquals(4, counter.ticks);
+    assertEquals(1, counter.frames);
+    assertEquals(1, scheduler.getSkippedFrames());
+
+    // Falling far behind catches up only so far.
+    scheduler.step(2300 * MS);
+    assertEquals(4 + TickScheduler.MAX_CATCH_UP, counter.ticks);
+    assertEquals(20 - TickScheduler.MAX_CATCH_UP, scheduler.getDroppedTicks());
+
+    // Frames are never skipped for long.
+    for (int i = 1; i <= TickScheduler.MAX_FRAME_SKIP; i++) {
+      scheduler.step((2300 + 200 * i) * MS);
+    }
+    assertEquals(2, counter.frames);
+  }
+
+  public void testTargets() {
+    TickScheduler scheduler = new TickScheduler(new Counter(), 20, 30);
+    assertEquals(20f, scheduler.getTargetTps(), 0.01f);
+    assertEquals(30f, scheduler.getTargetFps(), 0.01f);
+    scheduler.setTargetTps(40);
+    assertEquals(40f, scheduler.getTargetTps(), 0.01f);
+  }
+}
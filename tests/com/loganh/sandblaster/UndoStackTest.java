@@ -1,6 +1,7 @@
 package com.loganh.sandblaster;
 
-import java.io.IOException;
+import java.io.*;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 
@@ -46,4 +47,105 @@ public class UndoStackTest extends TestCase {
     assertEquals(0, stack.totalBytes);
   }
 
+  private SandBox newSandBox() {
+    SandBox sandbox = new SandBox(64, 48);
+    sandbox.elementTable = Utils.getTestElementTable();
+    sandbox.setSeed(1);
+    Element wall = sandbox.elementTable.resolve("Wall");
+    sandbox.line(wall, 0, 5, 63, 5);
+    sandbox.addSource(sandbox.elementTable.resolve("Water"), 30, 40);
+    return sandbox;
+  }
+
+  public void testDeltas() throws IOException {
+    UndoStack stack = new UndoStack();
+    SandBox sandbox = newSandBox();
+    Element sand = sandbox.elementTable.resolve("Sand");
+    byte[][] states = new byte[4][];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = sandbox.packToBytes();
+      assertTrue(stack.push(sandbox));
+      sandbox.line(sand, 2, 10 * i, 20, 10 * i + 5, 30);
+      for (int j = 0; j < 10; j++) {
+        sandbox.update();
+      }
+    }
+
+    // Deltas take much less room than copies of whole states: under half a
+    // byte a cell each.
+    assertTrue(stack.totalBytes < (states.length - 1) * sandbox.width * sandbox.height / 2);
+
+    for (int i = states.length - 1; i >= 0; i--) {
+      sandbox = stack.pop();
+      assertTrue(Arrays.equals(states[i], sandbox.packToBytes()));
+    }
+    assertNull(stack.pop());
+    assertEquals(0, stack.totalBytes);
+  }
+
+  public void testPushAfterPop() throws IOException {
+    UndoStack stack = new UndoStack();
+    SandBox sandbox = newSandBox();
+    Element sand = sandbox.elementTable.resolve("Sand");
+    byte[] first = sandbox.packToBytes();
+    stack.push(sandbox);
+    sandbox.line(sand, 10, 20, 50, 20);
+    stack.push(sandbox);
+    sandbox.update();
+
+    // Carry on from an undone state.
+    sandbox = stack.pop();
+    sandbox.line(sand, 20, 30, 40, 30);
+    sandbox.update();
+    byte[] second = sandbox.packToBytes();
+    stack.push(sandbox);
+    sandbox.update();
+    SandBox other = new SandBox(10, 10);
+    other.elementTable = sandbox.elementTable;
+    stack.push(other);
+
+    stack.pop();
+    assertTrue(Arrays.equals(second, stack.pop().packToBytes()));
+    assertTrue(Arrays.equals(first, stack.pop().packToBytes()));
+    assertTrue(stack.isEmpty());
+  }
+
+  public void testOverflowDeltas() {
+    SandBox sandbox = newSandBox();
+    Element sand = sandbox.elementTable.resolve("Sand");
+    UndoStack stack = new UndoStack(2000);
+    for (int i = 0; i < 50; i++) {
+      stack.push(sandbox);
+      sandbox.line(sand, 2, i, 20, i, 30);
+      sandbox.update();
+    }
+    assertTrue(stack.totalBytes <= 2000);
+    int n = 0;
+    while (stack.pop() != null) {
+      n++;
+    }
+    assertTrue(n > 1 && n < 50);
+  }
+
+  public void testWrite() throws IOException {
+    UndoStack stack = new UndoStack();
+    SandBox sandbox = newSandBox();
+    Element sand = sandbox.elementTable.resolve("Sand");
+    byte[][] states = new byte[3][];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = sandbox.packToBytes();
+      stack.push(sandbox);
+      sandbox.line(sand, 2, 10 * i, 20, 10 * i + 5, 30);
+      sandbox.update();
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    stack.write(new DataOutputStream(out));
+    stack = UndoStack.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+    for (int i = states.length - 1; i >= 0; i--) {
+      assertTrue(Arrays.equals(states[i], stack.pop().packToBytes()));
+    }
+    assertTrue(stack.isEmpty());
+  }
+
 }
@@ -45,7 +45,8 @@ abstract public class Utils {
     Element fire = new Element("Fire", 'F', 0xff0000, true, true, -1, 0.5f, 3, 1);
     Element smoke = new Element("Smoke", 'S', 0xaaaaaa, false, true, -0.5f, 0.1f, 10, 1);
     Element plant = new Element("Plant", 'P', 0x00ff00, true, false, 0, 0.02f, 20, 1);
-    ElementTable elementTable = new ElementTable(new Element[]{wall, water, fire, smoke, plant});
+    Element sand = new Element("Sand", 'D', 0xeecc88, true, true, 1, 0.3f);
+    ElementTable elementTable = new ElementTable(new Element[]{wall, water, fire, smoke, plant, sand});
     fire.decayProducts = new Element.ProductSet(new Element[]{smoke, null}, new float[]{1, 5});
     plant.decayProducts = new Element.ProductSet(new Element[]{fire, null}, new float[]{1, 99});
     Element.ProductSet plantBurn = new Element.ProductSet(new Element[]{smoke}, new float[]{1});